@@ -0,0 +1,250 @@
+package common;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A map from UDP addresses (IP address + port) to values, for per-packet
+ * lookups.
+ *
+ * IPv4 addresses are packed with the port into a long and kept in an open
+ * addressing table, so looking up an IPv4 address allocates nothing. Other
+ * addresses (IPv6) are kept in a ConcurrentHashMap.
+ *
+ * Lookups never lock. Each slot holds an immutable entry (key and value), so
+ * a lookup always sees a key with its own value even when the slot is reused
+ * for another address. Changes are serialized; a change either replaces a
+ * slot of the current table, or builds a new table and publishes it at once.
+ *
+ * @param <V> type of the values.
+ * @author Jiachen Chen
+ */
+public class AddressTable<V> {
+
+    /**
+     * Set in every packed key, so that a key is never 0 or negative.
+     */
+    private static final long KEY_FLAG = 1L << 48;
+    /**
+     * A slot whose entry is removed, kept so that probing goes on past it. An
+     * empty slot is null.
+     */
+    private static final Entry DELETED = new Entry(-1, null);
+    /**
+     * In OpenJDK, the hash code of an Inet4Address is its address. Checked
+     * once, so that getAddress() (which copies the address) can be avoided.
+     */
+    private static final boolean INET4_HASH_IS_ADDRESS = checkInet4HashCode();
+
+    private static boolean checkInet4HashCode() {
+        try {
+            InetAddress a = InetAddress.getByAddress(new byte[]{10, (byte) 200, 3, 4});
+            return a.hashCode() == ByteBuffer.wrap(a.getAddress()).getInt();
+        } catch (UnknownHostException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Pack an IPv4 address and a port into a key.
+     *
+     * @param address the IPv4 address.
+     * @param port the port.
+     * @return the key.
+     */
+    public static long pack(Inet4Address address, int port) {
+        int ip = INET4_HASH_IS_ADDRESS ? address.hashCode() : ByteBuffer.wrap(address.getAddress()).getInt();
+        return KEY_FLAG | ((ip & 0xffffffffL) << 16) | (port & 0xffff);
+    }
+
+    private volatile Table _table = new Table(16);
+    private final ConcurrentHashMap<InetSocketAddress, V> _others = new ConcurrentHashMap<>();
+    /**
+     * Number of IPv4 entries, and of slots that are not empty (including
+     * DELETED). Changed by writers only.
+     */
+    private int _size = 0, _used = 0;
+
+    /**
+     * Get the value of an address without allocating for IPv4.
+     *
+     * @param address the IP address.
+     * @param port the port.
+     * @return the value, or null if not found.
+     */
+    public V get(InetAddress address, int port) {
+        if (address instanceof Inet4Address) {
+            return get(pack((Inet4Address) address, port));
+        }
+        return address == null ? null : _others.get(new InetSocketAddress(address, port));
+    }
+
+    public V get(InetSocketAddress address) {
+        return get(address.getAddress(), address.getPort());
+    }
+
+    @SuppressWarnings("unchecked")
+    private V get(long key) {
+        Table t = _table;
+        int index = t.indexOf(key);
+        while (true) {
+            Entry e = t._entries.get(index);
+            if (e == null) {
+                return null;
+            }
+            if (e._key == key) {
+                return (V) e._value;
+            }
+            index = (index + 1) & t._mask;
+        }
+    }
+
+    /**
+     * Add a value if the address is not in the table.
+     *
+     * @param address the address.
+     * @param value the value, cannot be null.
+     * @return the existing value, or null if the value is added.
+     */
+    public synchronized V putIfAbsent(InetSocketAddress address, V value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        if (!(address.getAddress() instanceof Inet4Address)) {
+            return _others.putIfAbsent(address, value);
+        }
+        long key = pack((Inet4Address) address.getAddress(), address.getPort());
+        V existing = get(key);
+        if (existing != null) {
+            return existing;
+        }
+        if ((_used + 1) * 4 > _table._entries.length() * 3) {
+            rehash();
+        }
+        Table t = _table;
+        int index = t.indexOf(key);
+        while (true) {
+            Entry e = t._entries.get(index);
+            if (e == null || e == DELETED) {
+                if (e == null) {
+                    _used++;
+                }
+                t._entries.set(index, new Entry(key, value));
+                _size++;
+                return null;
+            }
+            index = (index + 1) & t._mask;
+        }
+    }
+
+    /**
+     * Remove an address.
+     *
+     * @param address the address.
+     * @return the removed value, or null if not found.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized V remove(InetSocketAddress address) {
+        if (!(address.getAddress() instanceof Inet4Address)) {
+            return _others.remove(address);
+        }
+        long key = pack((Inet4Address) address.getAddress(), address.getPort());
+        Table t = _table;
+        int index = t.indexOf(key);
+        while (true) {
+            Entry e = t._entries.get(index);
+            if (e == null) {
+                return null;
+            }
+            if (e._key == key) {
+                t._entries.set(index, DELETED);
+                _size--;
+                return (V) e._value;
+            }
+            index = (index + 1) & t._mask;
+        }
+    }
+
+    /**
+     * Get all the values.
+     *
+     * @return the values.
+     */
+    @SuppressWarnings("unchecked")
+    public List<V> values() {
+        ArrayList<V> ret = new ArrayList<>();
+        Table t = _table;
+        for (int i = 0; i < t._entries.length(); i++) {
+            Entry e = t._entries.get(i);
+            if (e != null && e != DELETED) {
+                ret.add((V) e._value);
+            }
+        }
+        ret.addAll(_others.values());
+        return ret;
+    }
+
+    public synchronized int size() {
+        return _size + _others.size();
+    }
+
+    /**
+     * Build a new table without DELETED slots, doubled if it is more than half
+     * full, and publish it.
+     */
+    private void rehash() {
+        Table old = _table;
+        int capacity = old._entries.length();
+        if (_size * 2 >= capacity) {
+            capacity *= 2;
+        }
+        Table t = new Table(capacity);
+        for (int i = 0; i < old._entries.length(); i++) {
+            Entry e = old._entries.get(i);
+            if (e == null || e == DELETED) {
+                continue;
+            }
+            int index = t.indexOf(e._key);
+            while (t._entries.get(index) != null) {
+                index = (index + 1) & t._mask;
+            }
+            t._entries.set(index, e);
+        }
+        _used = _size;
+        _table = t;
+    }
+
+    private static final class Entry {
+
+        private final long _key;
+        private final Object _value;
+
+        private Entry(long key, Object value) {
+            _key = key;
+            _value = value;
+        }
+    }
+
+    private static final class Table {
+
+        private final AtomicReferenceArray<Entry> _entries;
+        private final int _mask;
+
+        private Table(int capacity) {
+            _entries = new AtomicReferenceArray<>(capacity);
+            _mask = capacity - 1;
+        }
+
+        private int indexOf(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h >>> 32) & _mask;
+        }
+    }
+}
\ No newline at end of file
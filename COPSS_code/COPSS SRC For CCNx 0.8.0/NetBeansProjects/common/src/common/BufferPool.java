@@ -0,0 +1,96 @@
+package common;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of fixed size ByteBuffers (optionally direct) used to receive
+ * datagrams without allocating a new buffer for every packet.
+ *
+ * Buffers are reference counted (see PooledBuffer). A buffer goes back to the
+ * pool when its last reference is released. If the pool is empty, a new
+ * buffer is allocated; if the pool is full on recycling, the buffer is left to
+ * the garbage collector.
+ *
+ * @author Jiachen Chen
+ */
+public class BufferPool {
+
+    private final int _bufferSize;
+    private final boolean _direct;
+    private final RingQueue<PooledBuffer> _free;
+    private final AtomicLong _allocated = new AtomicLong();
+    private final AtomicLong _acquired = new AtomicLong();
+
+    /**
+     * Create a buffer pool.
+     *
+     * @param bufferSize the size of each buffer.
+     * @param capacity the maximum number of free buffers kept in the pool.
+     * @param direct if the buffers are direct buffers.
+     */
+    public BufferPool(int bufferSize, int capacity, boolean direct) {
+        _bufferSize = bufferSize;
+        _direct = direct;
+        _free = new RingQueue<>(capacity);
+    }
+
+    /**
+     * Get a cleared buffer with a reference count of 1.
+     *
+     * @return the buffer.
+     */
+    public PooledBuffer acquire() {
+        _acquired.incrementAndGet();
+        PooledBuffer buffer = _free.poll();
+        if (buffer == null) {
+            _allocated.incrementAndGet();
+            buffer = new PooledBuffer(this, _direct
+                    ? ByteBuffer.allocateDirect(_bufferSize)
+                    : ByteBuffer.allocate(_bufferSize));
+        }
+        buffer.reset();
+        return buffer;
+    }
+
+    /**
+     * Put a buffer whose reference count dropped to 0 back to the pool.
+     *
+     * @param buffer the buffer.
+     */
+    void recycle(PooledBuffer buffer) {
+        _free.offer(buffer);
+    }
+
+    public int bufferSize() {
+        return _bufferSize;
+    }
+
+    public boolean isDirect() {
+        return _direct;
+    }
+
+    /**
+     * Get the number of buffers allocated by the pool so far.
+     *
+     * @return the number of buffers allocated.
+     */
+    public long allocated() {
+        return _allocated.get();
+    }
+
+    /**
+     * Get the number of acquire calls so far.
+     *
+     * @return the number of acquire calls.
+     */
+    public long acquired() {
+        return _acquired.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BufferPool: size=%d, direct=%b, free=%d, allocated=%d, acquired=%d",
+                _bufferSize, _direct, _free.size(), _allocated.get(), _acquired.get());
+    }
+}
@@ -0,0 +1,74 @@
+package common;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * InputStream reading the remaining bytes of a ByteBuffer without copying
+ * them. Reads use absolute positions, so the position of the buffer is not
+ * changed.
+ *
+ * @author Jiachen Chen
+ */
+public class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer _buffer;
+    private int _position;
+    private int _mark;
+
+    public ByteBufferInputStream(ByteBuffer buffer) {
+        _buffer = buffer;
+        _position = _mark = buffer.position();
+    }
+
+    @Override
+    public int read() {
+        if (_position >= _buffer.limit()) {
+            return -1;
+        }
+        return _buffer.get(_position++) & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+        int remaining = _buffer.limit() - _position;
+        if (remaining <= 0) {
+            return -1;
+        }
+        len = Math.min(len, remaining);
+        for (int i = 0; i < len; i++) {
+            b[off + i] = _buffer.get(_position++);
+        }
+        return len;
+    }
+
+    @Override
+    public long skip(long n) {
+        long skipped = Math.max(0, Math.min(n, _buffer.limit() - _position));
+        _position += (int) skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return _buffer.limit() - _position;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+        _mark = _position;
+    }
+
+    @Override
+    public synchronized void reset() {
+        _position = _mark;
+    }
+}
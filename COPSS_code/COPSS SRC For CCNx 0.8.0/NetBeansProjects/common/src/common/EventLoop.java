@@ -0,0 +1,338 @@
+package common;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * EventLoop serves many NetworkNodes with a few threads.
+ *
+ * Each loop thread owns a Selector. A node started in event loop mode
+ * registers its (non-blocking) DatagramChannel with one of the threads
+ * (round robin). On each wakeup, the thread receives up to DRAIN_LIMIT
+ * datagrams from each selected channel, so a flooded channel does not starve
+ * the others, and calls handlePacket of the node, so the
+ * handlePacket(DatagramPacket) contract is the same as in the thread-per-node
+ * mode: the packet (and its buffer) is only valid during the call. Nodes with
+ * a BufferPool receive into pooled buffers and get them through handleBuffer.
+ *
+ * Nodes are registered and unregistered by the thread serving them, between
+ * two wakeups, so a stopped node is detached only once the thread no longer
+ * uses it.
+ *
+ * When spinIterations &gt; 0, a thread polls its selector that many times
+ * before parking in select(). This trades CPU for latency and is meant for
+ * latency-critical deployments.
+ *
+ * @author Jiachen Chen
+ */
+@SuppressWarnings("CallToThreadDumpStack")
+public class EventLoop implements AutoCloseable {
+
+    /**
+     * Size of the receive buffer of a loop thread, same as in NetworkNode.run.
+     */
+    public static final int RECEIVE_BUFFER_SIZE = 8192;
+    /**
+     * Maximum number of datagrams received from a channel on a wakeup.
+     */
+    private static final int DRAIN_LIMIT = 64;
+    /**
+     * The loop threads.
+     */
+    private final LoopThread[] _threads;
+    /**
+     * Round robin counter used to pick a thread on registration.
+     */
+    private final AtomicInteger _next = new AtomicInteger();
+    /**
+     * Indicates if the loop is running.
+     */
+    private volatile boolean _running = true;
+
+    /**
+     * Create an event loop with one thread that parks as soon as it is idle.
+     *
+     * @throws IOException cannot open selector.
+     */
+    public EventLoop() throws IOException {
+        this(1, 0);
+    }
+
+    /**
+     * Create an event loop.
+     *
+     * @param threadCount number of loop threads.
+     * @param spinIterations number of empty polls before a thread parks in
+     * select(), 0 to park immediately.
+     * @throws IOException cannot open selector.
+     */
+    public EventLoop(int threadCount, int spinIterations) throws IOException {
+        if (threadCount <= 0) {
+            throw new IllegalArgumentException("threadCount should be positive: " + threadCount);
+        }
+        _threads = new LoopThread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            _threads[i] = new LoopThread(i, Math.max(0, spinIterations));
+        }
+        for (LoopThread t : _threads) {
+            t.start();
+        }
+    }
+
+    /**
+     * Get the number of loop threads.
+     *
+     * @return the number of loop threads.
+     */
+    public int threadCount() {
+        return _threads.length;
+    }
+
+    /**
+     * Register a node. The node's channel must be in non-blocking mode.
+     *
+     * @param node the node to be registered.
+     */
+    void register(NetworkNode node) {
+        if (!_running) {
+            throw new IllegalStateException("Event loop already closed!");
+        }
+        LoopThread t = _threads[(_next.getAndIncrement() & Integer.MAX_VALUE) % _threads.length];
+        t._pending.add(node);
+        t._selector.wakeup();
+    }
+
+    /**
+     * Wake up the thread serving the node so that it cancels the node's
+     * registration and detaches it (_running of the node should be false
+     * already). A node not registered yet is detached by registerPending.
+     *
+     * @param node the node to be unregistered.
+     */
+    void unregister(NetworkNode node) {
+        SelectionKey key = node._selectionKey;
+        if (key == null) {
+            return;
+        }
+        for (LoopThread t : _threads) {
+            if (t._selector == key.selector()) {
+                t._stopping.add(node);
+                t._selector.wakeup();
+                if (t._exited) {
+                    // the thread may have finished before the node was added
+                    node.loopDetached();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stop all the loop threads. Nodes still registered are detached.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        _running = false;
+        for (LoopThread t : _threads) {
+            t._selector.wakeup();
+        }
+        for (LoopThread t : _threads) {
+            t.join();
+        }
+    }
+
+    /**
+     * A thread that owns a selector.
+     */
+    private class LoopThread extends Thread {
+
+        private final Selector _selector;
+        private final int _spinIterations;
+        /**
+         * Nodes waiting to be registered by this thread.
+         */
+        private final ConcurrentLinkedQueue<NetworkNode> _pending = new ConcurrentLinkedQueue<>();
+        /**
+         * Stopped nodes waiting to be detached by this thread.
+         */
+        private final ConcurrentLinkedQueue<NetworkNode> _stopping = new ConcurrentLinkedQueue<>();
+        /**
+         * Set when the thread leaves its loop.
+         */
+        private volatile boolean _exited = false;
+        /**
+         * Receive buffer and packet shared by all the nodes of this thread.
+         */
+        private final ByteBuffer _buffer = ByteBuffer.allocate(RECEIVE_BUFFER_SIZE);
+        private final DatagramPacket _packet = new DatagramPacket(_buffer.array(), _buffer.capacity());
+
+        LoopThread(int index, int spinIterations) throws IOException {
+            super("EventLoop-" + index);
+            setDaemon(true);
+            _selector = Selector.open();
+            _spinIterations = spinIterations;
+        }
+
+        @Override
+        public void run() {
+            int idle = 0;
+            while (_running) {
+                try {
+                    registerPending();
+                    detachStopping();
+                    int ready = _selector.selectNow();
+                    if (ready == 0) {
+                        if (idle < _spinIterations) {
+                            idle++;
+                            continue;
+                        }
+                        // selectNow() clears a wakeup() made before it, check
+                        // what the wakeup was for before blocking
+                        if (!_running || !_pending.isEmpty() || !_stopping.isEmpty()) {
+                            continue;
+                        }
+                        ready = _selector.select();
+                    }
+                    idle = 0;
+                    if (ready > 0) {
+                        processSelected();
+                    }
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+            _exited = true;
+            for (SelectionKey key : _selector.keys()) {
+                ((NetworkNode) key.attachment()).loopDetached();
+            }
+            for (NetworkNode node : _pending) {
+                node.loopDetached();
+            }
+            for (NetworkNode node : _stopping) {
+                node.loopDetached();
+            }
+            try {
+                _selector.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+
+        private void registerPending() {
+            NetworkNode node;
+            while ((node = _pending.poll()) != null) {
+                if (!node._running) {
+                    node.loopDetached();
+                    continue;
+                }
+                try {
+                    node._selectionKey = node._channel.register(_selector, SelectionKey.OP_READ, node);
+                } catch (ClosedChannelException ex) {
+                    node.loopDetached();
+                    continue;
+                }
+                // stopped while registering, unregister() may have missed the key
+                if (!node._running) {
+                    node._selectionKey.cancel();
+                    node.loopDetached();
+                }
+            }
+        }
+
+        private void detachStopping() {
+            NetworkNode node;
+            while ((node = _stopping.poll()) != null) {
+                SelectionKey key = node._selectionKey;
+                if (key != null) {
+                    key.cancel();
+                }
+                node.loopDetached();
+            }
+        }
+
+        private void processSelected() {
+            Iterator<SelectionKey> it = _selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                NetworkNode node = (NetworkNode) key.attachment();
+                try {
+                    if (key.isReadable()) {
+                        drain(node);
+                    }
+                } catch (CancelledKeyException ex) {
+                    // node stopped during processing.
+                }
+            }
+        }
+
+        /**
+         * Receive until the channel has nothing more to read, or DRAIN_LIMIT
+         * datagrams. The rest stays ready for the next wakeup.
+         */
+        private void drain(NetworkNode node) {
+            if (node._bufferPool != null) {
+                drainPooled(node);
+                return;
+            }
+            for (int i = 0; i < DRAIN_LIMIT && node._running; i++) {
+                SocketAddress from;
+                _buffer.clear();
+                try {
+                    from = node._channel.receive(_buffer);
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                    return;
+                }
+                if (from == null) {
+                    return;
+                }
+                _packet.setData(_buffer.array(), 0, _buffer.position());
+                _packet.setSocketAddress(from);
+                try {
+                    node.handlePacket(_packet);
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }
+
+        /**
+         * Receive into pooled buffers until the channel has nothing more to
+         * read, or DRAIN_LIMIT datagrams.
+         */
+        private void drainPooled(NetworkNode node) {
+            BufferPool pool = node._bufferPool;
+            for (int i = 0; i < DRAIN_LIMIT && node._running; i++) {
+                PooledBuffer buffer = pool.acquire();
+                SocketAddress from;
+                try {
+                    from = node._channel.receive(buffer.buffer());
+                } catch (IOException ex) {
+                    buffer.release();
+                    ex.printStackTrace();
+                    return;
+                }
+                if (from == null) {
+                    buffer.release();
+                    return;
+                }
+                try {
+                    node.handleBuffer(buffer.flip(), (InetSocketAddress) from);
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }
+    }
+}
\ No newline at end of file
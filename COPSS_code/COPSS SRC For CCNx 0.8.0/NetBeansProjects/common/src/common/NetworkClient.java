@@ -1,10 +1,11 @@
 package common;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 
 /**
  * NetworkClient connects to a remote address using a random local port.
@@ -28,6 +29,19 @@ public abstract class NetworkClient extends NetworkNode {
         socket.connect(firstHopAddress.getAddress(), firstHopAddress.getPort());
         return socket;
     }
+
+    /**
+     * Create a UDP channel and connect it to the firstHopAddress.
+     *
+     * @param firstHopAddress the first hop address the UDP channel is going to connect.
+     * @return the new UDP channel.
+     * @throws IOException connection failure.
+     */
+    private static DatagramChannel getDatagramChannel(InetSocketAddress firstHopAddress) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.connect(firstHopAddress);
+        return channel;
+    }
     
     /** The first hop address the client linked to. */
     protected InetSocketAddress _firstHopAddress;
@@ -43,6 +57,20 @@ public abstract class NetworkClient extends NetworkNode {
         _firstHopAddress = firstHopAddress;
     }
 
+    /**
+     * Create a network client on a UDP channel and connect it to the first hop
+     * address.
+     *
+     * @param firstHopAddress the first hop address specified.
+     * @param eventLoop the event loop serving the client, or null to use a
+     * thread of its own.
+     * @throws IOException connection failure.
+     */
+    public NetworkClient(InetSocketAddress firstHopAddress, EventLoop eventLoop) throws IOException {
+        super(getDatagramChannel(firstHopAddress), eventLoop);
+        _firstHopAddress = firstHopAddress;
+    }
+
     /**
      * Send a packet to the first hop address.
      * 
@@ -50,7 +78,16 @@ public abstract class NetworkClient extends NetworkNode {
      * @throws IOException send failure.
      */
     protected void send(byte[] buf) throws IOException {
-        DatagramPacket dp = new DatagramPacket(buf, buf.length);
-        _listenSocket.send(dp);
+        sendDatagram(buf, null);
+    }
+
+    /**
+     * Send the remaining bytes of a buffer to the first hop address.
+     *
+     * @param buf the content of the packet.
+     * @throws IOException send failure.
+     */
+    protected void send(ByteBuffer buf) throws IOException {
+        sendDatagram(buf, null);
     }
 }
\ No newline at end of file
@@ -1,10 +1,13 @@
 package common;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 
 /**
  *
@@ -12,6 +15,64 @@ import java.net.SocketException;
  */
 public abstract class NetworkListener extends NetworkNode {
 
+    /**
+     * SO_REUSEPORT socket option, null if the runtime does not provide it.
+     */
+    private static final SocketOption<Boolean> SO_REUSEPORT = getReusePortOption();
+
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> getReusePortOption() {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (ReflectiveOperationException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Check if several UDP sockets can listen to the same port
+     * (SO_REUSEPORT).
+     *
+     * @return true if SO_REUSEPORT is supported.
+     */
+    public static boolean isReusePortSupported() {
+        if (SO_REUSEPORT == null) {
+            return false;
+        }
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            return channel.supportedOptions().contains(SO_REUSEPORT);
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Open a UDP channel bound to listenPort.
+     *
+     * @param listenPort the port to listen to.
+     * @param reusePort if SO_REUSEPORT should be set, so that other channels
+     * opened the same way can listen to the same port.
+     * @return the new UDP channel.
+     * @throws IOException cannot bind the port, or SO_REUSEPORT is not
+     * supported.
+     */
+    public static DatagramChannel openDatagramChannel(int listenPort, boolean reusePort) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            if (reusePort) {
+                if (SO_REUSEPORT == null) {
+                    throw new IOException("SO_REUSEPORT not supported");
+                }
+                channel.setOption(SO_REUSEPORT, true);
+            }
+            channel.bind(new InetSocketAddress(listenPort));
+        } catch (IOException | UnsupportedOperationException ex) {
+            channel.close();
+            throw ex;
+        }
+        return channel;
+    }
+
     protected final int _listenPort;
 
     public NetworkListener(int listenPort) throws SocketException {
@@ -19,8 +80,44 @@ public abstract class NetworkListener extends NetworkNode {
         _listenPort = listenPort;
     }
 
+    /**
+     * Create a listener on a UDP channel bound to listenPort.
+     *
+     * @param listenPort the port to listen to.
+     * @param eventLoop the event loop serving the listener, or null to use a
+     * thread of its own.
+     * @throws IOException cannot bind the port.
+     */
+    public NetworkListener(int listenPort, EventLoop eventLoop) throws IOException {
+        this(listenPort, eventLoop, false);
+    }
+
+    /**
+     * Create a listener on a UDP channel bound to listenPort.
+     *
+     * @param listenPort the port to listen to.
+     * @param eventLoop the event loop serving the listener, or null to use a
+     * thread of its own.
+     * @param reusePort if SO_REUSEPORT should be set on the channel.
+     * @throws IOException cannot bind the port.
+     */
+    public NetworkListener(int listenPort, EventLoop eventLoop, boolean reusePort) throws IOException {
+        super(openDatagramChannel(listenPort, reusePort), eventLoop);
+        _listenPort = listenPort;
+    }
+
     protected void send(InetSocketAddress target, byte[] buf) throws IOException {
-        DatagramPacket dp = new DatagramPacket(buf, buf.length, target);
-        _listenSocket.send(dp);
+        sendDatagram(buf, target);
+    }
+
+    /**
+     * Send the remaining bytes of a buffer to the target.
+     *
+     * @param target the target address.
+     * @param buf the content of the packet.
+     * @throws IOException send failure.
+     */
+    protected void send(InetSocketAddress target, ByteBuffer buf) throws IOException {
+        sendDatagram(buf, target);
     }
 }
\ No newline at end of file
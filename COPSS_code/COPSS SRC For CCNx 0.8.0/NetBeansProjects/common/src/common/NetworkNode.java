@@ -1,12 +1,26 @@
 package common;
 
+import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * NetworkNode class creates a thread that listens to a UDP socket
  * (DatagramSocket). On receiving a UDP packet from the remote end, handlePacket
  * function will be called.
  *
+ * Alternatively, a node can be created on a DatagramChannel with an
+ * EventLoop. In this mode, no thread is created for the node. The channel is
+ * served by the threads of the event loop, which call handlePacket in the same
+ * way.
+ *
+ * If a BufferPool is set, datagrams are received into pooled buffers and
+ * passed to handleBuffer instead, which by default copies the packet and
+ * calls handlePacket.
+ *
  * @author Jiachen Chen
  */
 @SuppressWarnings("CallToThreadDumpStack")
@@ -20,11 +34,32 @@ public abstract class NetworkNode implements Runnable, AutoCloseable {
     /**
      * Indicates if the node is listening
      */
-    protected boolean _running = false;
+    protected volatile boolean _running = false;
     /**
      * The UDP socket the node listens to
      */
     protected final DatagramSocket _listenSocket;
+    /**
+     * The channel of the UDP socket, null if the node is created on a socket.
+     */
+    protected final DatagramChannel _channel;
+    /**
+     * The event loop serving the node, null if the node runs its own thread.
+     */
+    protected final EventLoop _eventLoop;
+    /**
+     * Registration of the channel in the event loop.
+     */
+    volatile SelectionKey _selectionKey;
+    /**
+     * Released when the node leaves the event loop.
+     */
+    private volatile CountDownLatch _detached;
+    /**
+     * The pool of receive buffers, null if the node receives into a buffer of
+     * its own.
+     */
+    protected BufferPool _bufferPool;
     private Thread _runningThread;
 
     /**
@@ -34,12 +69,38 @@ public abstract class NetworkNode implements Runnable, AutoCloseable {
      */
     public NetworkNode(DatagramSocket listenSocket) {
         _listenSocket = listenSocket;
+        _channel = null;
+        _eventLoop = null;
+    }
+
+    /**
+     * Creates a NetworkNode using an existing UDP channel.
+     *
+     * @param channel the existing UDP channel the node will listen to.
+     * @param eventLoop the event loop that serves the channel, or null to
+     * listen with a thread of its own.
+     * @throws IOException cannot configure the channel.
+     */
+    public NetworkNode(DatagramChannel channel, EventLoop eventLoop) throws IOException {
+        if (eventLoop != null) {
+            channel.configureBlocking(false);
+        }
+        _listenSocket = channel.socket();
+        _channel = channel;
+        _eventLoop = eventLoop;
     }
 
     /**
      * Start a thread that runs the node.
      */
     public synchronized void start() throws Exception {
+        if (_eventLoop != null) {
+            if (_running) {
+                throw new Exception("Node already running!");
+            }
+            run();
+            return;
+        }
         if (_runningThread != null) {
             throw new Exception("Node already running!");
         }
@@ -51,6 +112,10 @@ public abstract class NetworkNode implements Runnable, AutoCloseable {
      * Join the node thread.
      */
     public void join() throws InterruptedException {
+        CountDownLatch detached = _detached;
+        if (detached != null) {
+            detached.await();
+        }
         if (_runningThread != null) {
             _runningThread.join();
         }
@@ -61,12 +126,92 @@ public abstract class NetworkNode implements Runnable, AutoCloseable {
      */
     public void stop() {
         _running = false;
+        if (_eventLoop != null) {
+            _eventLoop.unregister(this);
+        }
     }
 
+    /**
+     * Called (possibly more than once) when the node leaves the event loop.
+     */
+    void loopDetached() {
+        _selectionKey = null;
+        CountDownLatch detached = _detached;
+        if (detached != null) {
+            detached.countDown();
+        }
+    }
+
+    /**
+     * Receive packets into buffers of the pool. Should be called before the
+     * node starts. Direct buffers can only be used in event loop mode.
+     *
+     * @param pool the buffer pool, or null to stop using a pool.
+     */
+    public synchronized void setBufferPool(BufferPool pool) {
+        if (_running) {
+            throw new IllegalStateException("Node already running!");
+        }
+        if (pool != null && pool.isDirect() && _eventLoop == null) {
+            throw new IllegalArgumentException("Direct buffers need event loop mode.");
+        }
+        _bufferPool = pool;
+    }
+
+    /**
+     * Send the remaining bytes of a buffer using the listening UDP socket.
+     * Without a channel, the bytes are copied into a DatagramPacket.
+     *
+     * @param buf the content of the packet. Its position is moved to its
+     * limit.
+     * @param target the target address, or null if the socket is connected.
+     * @throws IOException send failure.
+     */
+    protected void sendDatagram(ByteBuffer buf, InetSocketAddress target) throws IOException {
+        if (_channel != null) {
+            if (target == null) {
+                _channel.write(buf);
+            } else {
+                _channel.send(buf, target);
+            }
+            return;
+        }
+        byte[] content = new byte[buf.remaining()];
+        buf.get(content);
+        sendDatagram(content, target);
+    }
+
+    /**
+     * Send a packet using the listening UDP socket.
+     *
+     * @param buf the content of the packet.
+     * @param target the target address, or null if the socket is connected.
+     * @throws IOException send failure.
+     */
+    protected void sendDatagram(byte[] buf, InetSocketAddress target) throws IOException {
+        if (_eventLoop != null) {
+            // socket adaptor cannot send in non-blocking mode
+            if (target == null) {
+                _channel.write(ByteBuffer.wrap(buf));
+            } else {
+                _channel.send(ByteBuffer.wrap(buf), target);
+            }
+            return;
+        }
+        DatagramPacket dp = target == null
+                ? new DatagramPacket(buf, buf.length)
+                : new DatagramPacket(buf, buf.length, target);
+        _listenSocket.send(dp);
+    }
+
+    /**
+     * Stop the node, wait for it and close the UDP socket.
+     */
     @Override
     public void close() throws Exception {
         stop();
         join();
+        _listenSocket.close();
     }
 
     /**
@@ -85,8 +230,30 @@ public abstract class NetworkNode implements Runnable, AutoCloseable {
      */
     protected abstract void handlePacket(DatagramPacket packet);
 
+    /**
+     * The handler for packets received into pooled buffers. The handler owns
+     * one reference of the buffer and must release it.
+     *
+     * By default, the packet is copied and passed to handlePacket.
+     *
+     * @param buffer the buffer holding the packet, see PooledBuffer.view().
+     * @param from the remote address.
+     */
+    protected void handleBuffer(PooledBuffer buffer, InetSocketAddress from) {
+        try {
+            byte[] content = new byte[buffer.length()];
+            buffer.view().get(content);
+            buffer.view().rewind();
+            handlePacket(new DatagramPacket(content, content.length, from.getAddress(), from.getPort()));
+        } finally {
+            buffer.release();
+        }
+    }
+
     /**
      * Listen to the UDP socket until _running == false.
+     *
+     * In event loop mode, register the channel in the event loop and return.
      */
     @Override
     public void run() {
@@ -95,6 +262,12 @@ public abstract class NetworkNode implements Runnable, AutoCloseable {
         }
         _running = true;
 
+        if (_eventLoop != null) {
+            _detached = new CountDownLatch(1);
+            _eventLoop.register(this);
+            return;
+        }
+
         byte[] buf = new byte[8192];
         DatagramPacket dp = new DatagramPacket(buf, buf.length);
 
@@ -106,11 +279,24 @@ public abstract class NetworkNode implements Runnable, AutoCloseable {
 //            Logger.getLogger(NetworkNode.class.getName()).log(Level.SEVERE, "Error in starting network node", ex);
         }
 
+        PooledBuffer pooled = null;
         while (_running) {
             try {
                 //System.out.println(_listenSocket.getLocalSocketAddress() + "->" + _listenSocket.getRemoteSocketAddress());
+                if (_bufferPool == null) {
+                    _listenSocket.receive(dp);
+                    handlePacket(dp);
+                    continue;
+                }
+                if (pooled == null) {
+                    pooled = _bufferPool.acquire();
+                    dp.setData(pooled.buffer().array(), 0, pooled.buffer().capacity());
+                }
                 _listenSocket.receive(dp);
-                handlePacket(dp);
+                pooled.buffer().position(dp.getLength());
+                PooledBuffer received = pooled.flip();
+                pooled = null;
+                handleBuffer(received, (InetSocketAddress) dp.getSocketAddress());
             } catch (SocketTimeoutException e) {
                 // listen timeout. do nothing.
             } catch (Exception ex) {
@@ -118,6 +304,9 @@ public abstract class NetworkNode implements Runnable, AutoCloseable {
 //                Logger.getLogger(NetworkNode.class.getName()).log(Level.SEVERE, "Error in receiving packet in network node", ex);
             }
         }
+        if (pooled != null) {
+            pooled.release();
+        }
         System.out.println("Listen thread finished!");
         _runningThread = null;
     }
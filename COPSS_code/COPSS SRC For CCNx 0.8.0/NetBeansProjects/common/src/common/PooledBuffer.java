@@ -0,0 +1,101 @@
+package common;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference counted buffer from a BufferPool.
+ *
+ * The receiver fills buffer() and calls flip(). From then on, handlers only
+ * read the packet through view(), a read-only ByteBuffer covering the
+ * received bytes. Whoever keeps the packet beyond the handler call (e.g. a
+ * queue or a pending send) must retain() it and release() it when done. The
+ * buffer goes back to the pool when the last reference is released.
+ *
+ * @author Jiachen Chen
+ */
+public final class PooledBuffer {
+
+    private final BufferPool _pool;
+    private final ByteBuffer _buffer;
+    private final ByteBuffer _view;
+    private final AtomicInteger _refCount = new AtomicInteger();
+
+    PooledBuffer(BufferPool pool, ByteBuffer buffer) {
+        _pool = pool;
+        _buffer = buffer;
+        _view = buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Clear the buffer and set the reference count to 1.
+     */
+    void reset() {
+        _buffer.clear();
+        _view.clear().limit(0);
+        _refCount.set(1);
+    }
+
+    /**
+     * Get the writable buffer, used to receive a packet.
+     *
+     * @return the writable buffer.
+     */
+    public ByteBuffer buffer() {
+        return _buffer;
+    }
+
+    /**
+     * Make the bytes written to buffer() visible through view().
+     *
+     * @return this.
+     */
+    public PooledBuffer flip() {
+        _buffer.flip();
+        _view.limit(_buffer.limit()).position(0);
+        return this;
+    }
+
+    /**
+     * Get the read-only view of the packet. Readers that move its position
+     * should rewind it before passing it on.
+     *
+     * @return the read-only view.
+     */
+    public ByteBuffer view() {
+        return _view;
+    }
+
+    /**
+     * Get the length of the packet.
+     *
+     * @return the length of the packet.
+     */
+    public int length() {
+        return _view.limit();
+    }
+
+    /**
+     * Add a reference.
+     *
+     * @return this.
+     */
+    public PooledBuffer retain() {
+        if (_refCount.getAndIncrement() <= 0) {
+            throw new IllegalStateException("Buffer already released!");
+        }
+        return this;
+    }
+
+    /**
+     * Remove a reference. The buffer goes back to the pool on the last one.
+     */
+    public void release() {
+        int count = _refCount.decrementAndGet();
+        if (count == 0) {
+            _pool.recycle(this);
+        } else if (count < 0) {
+            throw new IllegalStateException("Buffer released too many times!");
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free queue backed by a ring array.
+ *
+ * Any number of threads may offer and poll concurrently. Each slot carries a
+ * sequence number telling if it is ready to be written or read in the current
+ * lap, so producers and consumers only contend on the head and tail counters.
+ *
+ * @param <E> type of the elements.
+ * @author Jiachen Chen
+ */
+public class RingQueue<E> {
+
+    private final int _mask;
+    private final AtomicReferenceArray<E> _elements;
+    private final AtomicLongArray _sequences;
+    private final AtomicLong _head = new AtomicLong();
+    private final AtomicLong _tail = new AtomicLong();
+    /**
+     * Number of times an offer lost the race for the tail and tried again.
+     */
+    private final AtomicLong _offerRetries = new AtomicLong();
+
+    /**
+     * Create a queue.
+     *
+     * @param capacity the capacity, rounded up to a power of 2.
+     */
+    public RingQueue(int capacity) {
+        if (capacity <= 0 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        _mask = size - 1;
+        _elements = new AtomicReferenceArray<>(size);
+        _sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            _sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Get the capacity of the queue.
+     *
+     * @return the capacity of the queue.
+     */
+    public int capacity() {
+        return _mask + 1;
+    }
+
+    /**
+     * Add an element at the tail of the queue.
+     *
+     * @param e the element, cannot be null.
+     * @return false if the queue is full.
+     */
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        while (true) {
+            long tail = _tail.get();
+            int index = (int) tail & _mask;
+            long diff = _sequences.get(index) - tail;
+            if (diff == 0) {
+                if (_tail.compareAndSet(tail, tail + 1)) {
+                    _elements.lazySet(index, e);
+                    _sequences.set(index, tail + 1);
+                    return true;
+                }
+                _offerRetries.incrementAndGet();
+            } else if (diff < 0) {
+                return false;
+            } else {
+                // another producer moved the tail since it was read
+                _offerRetries.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Remove the element at the head of the queue.
+     *
+     * @return the element, or null if the queue is empty.
+     */
+    public E poll() {
+        while (true) {
+            long head = _head.get();
+            int index = (int) head & _mask;
+            long diff = _sequences.get(index) - (head + 1);
+            if (diff == 0) {
+                if (_head.compareAndSet(head, head + 1)) {
+                    E e = _elements.get(index);
+                    _elements.lazySet(index, null);
+                    _sequences.set(index, head + _mask + 1);
+                    return e;
+                }
+            } else if (diff < 0) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Get the number of elements in the queue (approximate under concurrency).
+     *
+     * @return the number of elements.
+     */
+    public int size() {
+        long size = _tail.get() - _head.get();
+        return (int) Math.max(0, Math.min(size, _mask + 1));
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Get the number of times an offer retried because of another producer,
+     * a measure of the contention on the tail.
+     *
+     * @return the number of retries.
+     */
+    public long offerRetries() {
+        return _offerRetries.get();
+    }
+}
\ No newline at end of file
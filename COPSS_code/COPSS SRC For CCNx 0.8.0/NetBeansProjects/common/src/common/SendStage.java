@@ -0,0 +1,256 @@
+package common;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends datagrams for many threads through a few sender threads.
+ *
+ * Each sender thread owns one of the channels, so senders never contend on
+ * a socket. A datagram is added to the bounded lock-free queue of a sender
+ * chosen by its target, so the datagrams to a target are sent in order. When
+ * the queue is full, the datagram is dropped. A datagram in a PooledBuffer is
+ * queued as a reference to it (retained until sent), so a packet sent to
+ * many targets is never copied. Other datagrams are copied into a pooled
+ * direct buffer (the copy the JDK would make for a heap buffer anyway).
+ *
+ * A sender drains its queue, up to maxBatch datagrams, sending them back to
+ * back (one send call each) before checking for more. It never waits for a
+ * drain to fill: under low load a drain is a single datagram sent right
+ * away, under load the drains grow with the backlog, and the senders stay
+ * awake instead of being parked and woken up for every datagram.
+ *
+ * The contention between the threads queueing to a sender is measured by
+ * the retries of the queue (see RingQueue.offerRetries).
+ *
+ * The channels may be blocking or not. A non-blocking channel whose send
+ * buffer is full is retried after a short pause (counted as a stall).
+ *
+ * @author Jiachen Chen
+ */
+@SuppressWarnings("CallToThreadDumpStack")
+public class SendStage implements AutoCloseable {
+
+    /**
+     * Number of empty polls before a sender parks.
+     */
+    private static final int SPIN_ITERATIONS = 100;
+    /**
+     * Pause (ns) before retrying a send on a full socket buffer.
+     */
+    private static final long STALL_PAUSE = 20000;
+    private final Sender[] _senders;
+    private final int _maxBatch;
+    private final BufferPool _pool;
+    private final AtomicLong _dropped = new AtomicLong();
+    private volatile boolean _running = true;
+
+    /**
+     * Create and start the senders, one for each channel.
+     *
+     * @param channels the channels the datagrams are sent from.
+     * @param queueCapacity capacity of the queue of each sender.
+     * @param maxBatch the maximum number of datagrams a sender takes from its
+     * queue in one drain.
+     */
+    public SendStage(DatagramChannel[] channels, int queueCapacity, int maxBatch) {
+        if (channels.length == 0) {
+            throw new IllegalArgumentException("No channel to send from!");
+        }
+        _maxBatch = Math.max(1, maxBatch);
+        _pool = new BufferPool(EventLoop.RECEIVE_BUFFER_SIZE, queueCapacity * channels.length, true);
+        _senders = new Sender[channels.length];
+        for (int i = 0; i < channels.length; i++) {
+            _senders[i] = new Sender(i, channels[i], queueCapacity);
+        }
+        for (Sender s : _senders) {
+            s.start();
+        }
+    }
+
+    /**
+     * Queue the remaining bytes of a buffer to a target. The bytes are
+     * copied.
+     *
+     * @param buf the content of the datagram. Its position is moved to its
+     * limit.
+     * @param target the target address.
+     * @return false if the datagram is dropped.
+     */
+    public boolean send(ByteBuffer buf, InetSocketAddress target) {
+        return send(buf, null, target);
+    }
+
+    /**
+     * Queue the remaining bytes of a buffer to a target. If the buffer is in a
+     * PooledBuffer, it is retained until sent instead of copied.
+     *
+     * @param buf the content of the datagram. Its position is moved to its
+     * limit.
+     * @param owner the pooled buffer holding the bytes, which must not change
+     * until it is released, or null if the bytes are copied.
+     * @param target the target address.
+     * @return false if the datagram is dropped.
+     */
+    public boolean send(ByteBuffer buf, PooledBuffer owner, InetSocketAddress target) {
+        ByteBuffer copy;
+        if (owner != null) {
+            owner.retain();
+            copy = buf.duplicate();
+            buf.position(buf.limit());
+        } else if (buf.remaining() <= _pool.bufferSize()) {
+            owner = _pool.acquire();
+            copy = owner.buffer();
+            copy.put(buf);
+            copy.flip();
+        } else {
+            copy = ByteBuffer.allocate(buf.remaining());
+            copy.put(buf);
+            copy.flip();
+        }
+        Sender s = _senders[(target.hashCode() & Integer.MAX_VALUE) % _senders.length];
+        if (!_running || !s._queue.offer(new Datagram(copy, owner, target))) {
+            _dropped.incrementAndGet();
+            if (owner != null) {
+                owner.release();
+            }
+            return false;
+        }
+        if (s._parked) {
+            LockSupport.unpark(s);
+        }
+        return true;
+    }
+
+    /**
+     * Queue a datagram to a target.
+     *
+     * @param buf the content of the datagram.
+     * @param target the target address.
+     * @return false if the datagram is dropped.
+     */
+    public boolean send(byte[] buf, InetSocketAddress target) {
+        return send(ByteBuffer.wrap(buf), target);
+    }
+
+    /**
+     * Stop the senders. Datagrams still queued are discarded.
+     */
+    @Override
+    public void close() {
+        _running = false;
+        for (Sender s : _senders) {
+            LockSupport.unpark(s);
+        }
+    }
+
+    public int senderCount() {
+        return _senders.length;
+    }
+
+    public long dropped() {
+        return _dropped.get();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("SendStage: senders=");
+        builder.append(_senders.length);
+        builder.append(", dropped=");
+        builder.append(_dropped.get());
+        for (Sender s : _senders) {
+            builder.append(String.format("%n\t\t[%s: queued=%d, sent=%d, drains=%d (avg %.1f, max %d), enqueue retries=%d, stalls=%d, errors=%d]",
+                    s.getName(), s._queue.size(), s._sent, s._drains, s._drains == 0 ? 0 : (double) s._sent / s._drains,
+                    s._largestDrain, s._queue.offerRetries(), s._stalls, s._errors));
+        }
+        return builder.toString();
+    }
+
+    private static class Datagram {
+
+        private final ByteBuffer _buffer;
+        private final PooledBuffer _owner;
+        private final InetSocketAddress _target;
+
+        Datagram(ByteBuffer buffer, PooledBuffer owner, InetSocketAddress target) {
+            _buffer = buffer;
+            _owner = owner;
+            _target = target;
+        }
+    }
+
+    private class Sender extends Thread {
+
+        private final DatagramChannel _channel;
+        private final RingQueue<Datagram> _queue;
+        private volatile boolean _parked = false;
+        /**
+         * Statistics, only written by the sender.
+         */
+        private volatile long _sent = 0, _drains = 0, _largestDrain = 0, _stalls = 0, _errors = 0;
+
+        Sender(int index, DatagramChannel channel, int queueCapacity) {
+            super("SendStage-Sender-" + index);
+            setDaemon(true);
+            _channel = channel;
+            _queue = new RingQueue<>(queueCapacity);
+        }
+
+        @Override
+        public void run() {
+            int idle = 0;
+            while (_running) {
+                int drained = 0;
+                Datagram d;
+                while (drained < _maxBatch && (d = _queue.poll()) != null) {
+                    send(d);
+                    drained++;
+                }
+                if (drained > 0) {
+                    _sent += drained;
+                    _drains++;
+                    if (drained > _largestDrain) {
+                        _largestDrain = drained;
+                    }
+                    idle = 0;
+                    continue;
+                }
+                if (idle++ < SPIN_ITERATIONS) {
+                    Thread.yield();
+                    continue;
+                }
+                _parked = true;
+                if (_queue.isEmpty() && _running) {
+                    LockSupport.park(this);
+                }
+                _parked = false;
+                idle = 0;
+            }
+            for (Datagram d = _queue.poll(); d != null; d = _queue.poll()) {
+                if (d._owner != null) {
+                    d._owner.release();
+                }
+            }
+        }
+
+        private void send(Datagram d) {
+            try {
+                while (_channel.send(d._buffer, d._target) == 0 && _running) {
+                    _stalls++;
+                    LockSupport.parkNanos(STALL_PAUSE);
+                }
+            } catch (IOException ex) {
+                _errors++;
+                ex.printStackTrace();
+            } finally {
+                if (d._owner != null) {
+                    d._owner.release();
+                }
+            }
+        }
+    }
+}
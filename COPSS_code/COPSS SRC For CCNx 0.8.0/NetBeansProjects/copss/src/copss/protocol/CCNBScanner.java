@@ -0,0 +1,212 @@
+package copss.protocol;
+
+import java.nio.ByteBuffer;
+import org.ccnx.ccn.impl.encoding.BinaryXMLCodec;
+import org.ccnx.ccn.io.content.ContentDecodingException;
+
+/**
+ * Reads the elements of a ccnb (binary XML) encoded packet in place, by
+ * absolute position, without decoding the packet into objects.
+ *
+ * A header is a big-endian number of 7-bit bytes ending with a byte that has
+ * the high bit set and carries the type in its lowest 3 bits. An element ends
+ * with a 0 byte (CLOSE).
+ *
+ * @author Jiachen Chen
+ */
+final class CCNBScanner {
+
+    private final ByteBuffer _buffer;
+    private final int _limit;
+    private int _position;
+    /**
+     * Type and value of the last header read.
+     */
+    private int _type;
+    private long _value;
+
+    /**
+     * Scan a packet from the position to the limit of a buffer. The position
+     * of the buffer is not changed.
+     *
+     * @param buffer the packet.
+     */
+    CCNBScanner(ByteBuffer buffer) {
+        _buffer = buffer;
+        _position = buffer.position();
+        _limit = buffer.limit();
+    }
+
+    int position() {
+        return _position;
+    }
+
+    boolean atClose() {
+        return _position < _limit && _buffer.get(_position) == BinaryXMLCodec.XML_CLOSE;
+    }
+
+    void readClose() throws ContentDecodingException {
+        if (!atClose()) {
+            throw new ContentDecodingException("Expected CLOSE at " + _position);
+        }
+        _position++;
+    }
+
+    private void readHeader() throws ContentDecodingException {
+        long value = 0;
+        int b;
+        while (true) {
+            if (_position >= _limit) {
+                throw new ContentDecodingException("Truncated ccnb header at " + _position);
+            }
+            b = _buffer.get(_position++) & BinaryXMLCodec.BYTE_MASK;
+            if ((b & BinaryXMLCodec.XML_TT_NO_MORE) != 0) {
+                break;
+            }
+            value = (value << BinaryXMLCodec.XML_REG_VAL_BITS) | b;
+        }
+        _type = b & BinaryXMLCodec.XML_TT_MASK;
+        _value = (value << BinaryXMLCodec.XML_TT_VAL_BITS) | ((b >>> BinaryXMLCodec.XML_TT_BITS) & BinaryXMLCodec.XML_TT_VAL_MASK);
+    }
+
+    /**
+     * Get the DTAG of the next element without reading it.
+     *
+     * @return the DTAG, or -1 if the next item is not a DTAG.
+     */
+    long peekDTag() {
+        if (_position >= _limit || atClose()) {
+            return -1;
+        }
+        int position = _position;
+        try {
+            readHeader();
+            return _type == BinaryXMLCodec.XML_DTAG ? _value : -1;
+        } catch (ContentDecodingException ex) {
+            return -1;
+        } finally {
+            _position = position;
+        }
+    }
+
+    void readStartElement(long tag) throws ContentDecodingException {
+        int position = _position;
+        if (atClose()) {
+            throw new ContentDecodingException("Expected DTAG " + tag + " at " + position + ", got CLOSE");
+        }
+        readHeader();
+        if (_type != BinaryXMLCodec.XML_DTAG || _value != tag) {
+            throw new ContentDecodingException("Expected DTAG " + tag + " at " + position + ", got " + _type + "/" + _value);
+        }
+    }
+
+    /**
+     * Read the data (BLOB or UDATA) of an element whose start is read, without
+     * copying. An element without data has a length of 0.
+     *
+     * @return the length of the data, which starts at position() - length.
+     */
+    int readData() throws ContentDecodingException {
+        if (atClose()) {
+            return 0;
+        }
+        readHeader();
+        if (_type != BinaryXMLCodec.XML_BLOB && _type != BinaryXMLCodec.XML_UDATA) {
+            throw new ContentDecodingException("Expected BLOB or UDATA at " + _position + ", got " + _type);
+        }
+        if (_value > _limit - _position) {
+            throw new ContentDecodingException("Truncated data at " + _position);
+        }
+        _position += (int) _value;
+        return (int) _value;
+    }
+
+    /**
+     * Read a (tag, BLOB) element.
+     *
+     * @return a copy of the BLOB.
+     */
+    byte[] readBinaryElement(long tag) throws ContentDecodingException {
+        readStartElement(tag);
+        int length = readData();
+        byte[] ret = new byte[length];
+        for (int i = 0; i < length; i++) {
+            ret[i] = _buffer.get(_position - length + i);
+        }
+        readClose();
+        return ret;
+    }
+
+    /**
+     * Read a (tag, integer as UDATA) element.
+     */
+    int readIntegerElement(long tag) throws ContentDecodingException {
+        readStartElement(tag);
+        int length = readData();
+        if (length == 0) {
+            throw new ContentDecodingException("Empty integer at " + _position);
+        }
+        int ret = 0;
+        for (int i = _position - length; i < _position; i++) {
+            int digit = _buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new ContentDecodingException("Invalid integer at " + i);
+            }
+            ret = ret * 10 + digit;
+        }
+        readClose();
+        return ret;
+    }
+
+    /**
+     * Check if the data of the element (whose start is read) equals a value,
+     * and skip the data.
+     */
+    boolean dataEquals(byte[] value) throws ContentDecodingException {
+        int length = readData();
+        if (length != value.length) {
+            return false;
+        }
+        int start = _position - length;
+        for (int i = 0; i < length; i++) {
+            if (_buffer.get(start + i) != value[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Skip a (tag, data) element.
+     */
+    void skipDataElement(long tag) throws ContentDecodingException {
+        readStartElement(tag);
+        readData();
+        readClose();
+    }
+
+    /**
+     * Write a header, as XMLEncoder does. The ccnx codec deprecates writing
+     * headers into an array in favor of its encoder streams, but the packets
+     * built in place (batches, split multicasts) have no encoder to write to.
+     *
+     * @param type the type (XML_DTAG, XML_BLOB, ...).
+     * @param value the tag or the length of the data.
+     * @param buf the buffer written to.
+     * @param offset the offset of the header in buf.
+     * @return the size of the header, BinaryXMLCodec.numEncodingBytes(value).
+     */
+    @SuppressWarnings("deprecation")
+    static int writeHeader(int type, long value, byte[] buf, int offset) {
+        return BinaryXMLCodec.encodeTypeAndVal(type, value, buf, offset);
+    }
+
+    /**
+     * Encode a header, see writeHeader.
+     */
+    static byte[] header(int type, long value) {
+        byte[] header = new byte[BinaryXMLCodec.numEncodingBytes(value)];
+        writeHeader(type, value, header, 0);
+        return header;
+    }
+}
@@ -15,6 +15,10 @@ public final class COPSSProtocolDTags {
      * Packet type Multicast
      */
     public static final int Multicast = 201;
+    /**
+     * Packet type MulticastBatch (multiple Multicasts in one packet)
+     */
+    public static final int MulticastBatch = 202;
     /**
      * Control packet sub type FIB change
      */
@@ -47,4 +51,20 @@ public final class COPSSProtocolDTags {
      * Multicast packet field ContentName add count
      */
     public static final int Content = 233;
+    /**
+     * MulticastBatch packet field Multicast count
+     */
+    public static final int MulticastCount = 234;
+    /**
+     * Multicast packet field fragment ID (optional, after Content)
+     */
+    public static final int FragmentID = 235;
+    /**
+     * Multicast packet field fragment index
+     */
+    public static final int FragmentIndex = 236;
+    /**
+     * Multicast packet field fragment count
+     */
+    public static final int FragmentCount = 237;
 }
\ No newline at end of file
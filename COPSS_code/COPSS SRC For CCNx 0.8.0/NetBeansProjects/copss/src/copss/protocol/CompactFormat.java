@@ -0,0 +1,190 @@
+package copss.protocol;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import org.ccnx.ccn.io.content.ContentDecodingException;
+import org.ccnx.ccn.protocol.ContentName;
+
+/**
+ * Compact binary wire format of COPSS packets, an alternative to the ccnb
+ * encoding.
+ *
+ * A packet starts with a fixed header of HEADER_SIZE bytes:
+ * <pre>
+ * magic (1) | version (1) | type (1) | flags (1) | CD count (2) | payload length (4)
+ * </pre>
+ * followed by the type specific fields, the CDs and the payload. Numbers in
+ * the body are varints, a name is (component count, (length, bytes)*).
+ *
+ * The magic byte would be an ATTR header in ccnb, which never starts a
+ * packet, so both formats can be told apart by the first byte.
+ *
+ * @author Jiachen Chen
+ */
+public final class CompactFormat {
+
+    public static final byte MAGIC = (byte) 0xC3;
+    public static final byte VERSION = 1;
+    public static final int HEADER_SIZE = 10;
+    static final byte TYPE_CONTROL = 1;
+    static final byte TYPE_MULTICAST = 2;
+    /**
+     * A MulticastBatch: the CD count field holds the number of Multicasts and
+     * the payload is the Multicasts in the compact format.
+     */
+    static final byte TYPE_MULTICAST_BATCH = 3;
+    /**
+     * Flag of a Multicast that is a fragment: (ID (8), index, count) follow
+     * the CDs.
+     */
+    static final int FLAG_FRAGMENT = 0x01;
+
+    private CompactFormat() {
+    }
+
+    /**
+     * Check if a packet is in the compact format.
+     *
+     * @param packet the packet, from position to limit (not changed).
+     * @return if the packet starts with the magic byte.
+     */
+    public static boolean isCompact(ByteBuffer packet) {
+        return packet.remaining() >= HEADER_SIZE && packet.get(packet.position()) == MAGIC;
+    }
+
+    /**
+     * Get the type of a compact packet.
+     *
+     * @param packet the packet, from position to limit (not changed).
+     * @return COPSSProtocolDTags.Multicast, COPSSProtocolDTags.Control or
+     * COPSSProtocolDTags.MulticastBatch, or -1 if unknown.
+     */
+    static int type(ByteBuffer packet) {
+        switch (packet.get(packet.position() + 2)) {
+            case TYPE_MULTICAST:
+                return COPSSProtocolDTags.Multicast;
+            case TYPE_CONTROL:
+                return COPSSProtocolDTags.Control;
+            case TYPE_MULTICAST_BATCH:
+                return COPSSProtocolDTags.MulticastBatch;
+            default:
+                return -1;
+        }
+    }
+
+    static void writeHeader(ByteBuffer buffer, byte type, int flags, int cdCount, int payloadLength) {
+        buffer.put(MAGIC);
+        buffer.put(VERSION);
+        buffer.put(type);
+        buffer.put((byte) flags);
+        buffer.putShort((short) cdCount);
+        buffer.putInt(payloadLength);
+    }
+
+    /**
+     * Read the header of a compact packet of the given type.
+     *
+     * @return {flags, CD count, payload length}.
+     */
+    static int[] readHeader(ByteBuffer buffer, byte type) throws ContentDecodingException {
+        if (buffer.remaining() < HEADER_SIZE || buffer.get() != MAGIC) {
+            throw new ContentDecodingException("Not a compact COPSS packet.");
+        }
+        byte version = buffer.get();
+        if (version != VERSION) {
+            throw new ContentDecodingException("Unsupported compact format version: " + version);
+        }
+        byte t = buffer.get();
+        if (t != type) {
+            throw new ContentDecodingException("Compact packet type mismatch: " + t);
+        }
+        int flags = buffer.get() & 0xff;
+        int cdCount = buffer.getShort() & 0xffff;
+        int payloadLength = buffer.getInt();
+        if (payloadLength < 0) {
+            throw new ContentDecodingException("Invalid payload length: " + payloadLength);
+        }
+        return new int[]{flags, cdCount, payloadLength};
+    }
+
+    static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7f) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    static void writeVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7f) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static int readVarint(ByteBuffer buffer) throws ContentDecodingException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new ContentDecodingException("Varint too long.");
+    }
+
+    /**
+     * Zigzag encoding, for numbers that may be negative (e.g. TTL -1).
+     */
+    static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static int nameSize(ContentName name) {
+        int size = varintSize(name.count());
+        for (int i = 0; i < name.count(); i++) {
+            int length = name.component(i).length;
+            size += varintSize(length) + length;
+        }
+        return size;
+    }
+
+    static void writeName(ByteBuffer buffer, ContentName name) {
+        writeVarint(buffer, name.count());
+        for (int i = 0; i < name.count(); i++) {
+            byte[] component = name.component(i);
+            writeVarint(buffer, component.length);
+            buffer.put(component);
+        }
+    }
+
+    static ContentName readName(ByteBuffer buffer) throws ContentDecodingException {
+        int count = readVarint(buffer);
+        if (count < 0 || count > buffer.remaining()) {
+            throw new ContentDecodingException("Invalid component count: " + count);
+        }
+        byte[][] components = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            int length = readVarint(buffer);
+            if (length < 0 || length > buffer.remaining()) {
+                throw new ContentDecodingException("Invalid component length: " + length);
+            }
+            components[i] = new byte[length];
+            buffer.get(components[i]);
+        }
+        return new ContentName(components);
+    }
+
+    static ContentDecodingException truncated(BufferUnderflowException ex) {
+        ContentDecodingException ret = new ContentDecodingException("Truncated compact COPSS packet.");
+        ret.initCause(ex);
+        return ret;
+    }
+}
\ No newline at end of file
@@ -1,8 +1,10 @@
 package copss.protocol;
 
+import copss.util.CDRPMapping;
 import copss.util.Utility;
 import java.io.IOException;
-import java.net.URLDecoder;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Map.Entry;
@@ -27,7 +29,7 @@ public class Control extends GenericXMLEncodable {
     /**
      * Encapsulates the control packet using prefix /RPName/control/
      */
-    private static final String CONTROL_ENCAPSULATE_NAME = "control";
+    public static final String CONTROL_ENCAPSULATE_NAME = "control";
 
     /**
      * Type of control packets: FIB change and ST change.
@@ -145,6 +147,94 @@ public class Control extends GenericXMLEncodable {
         encoder.writeEndElement();
     }
 
+    /**
+     * Get the size of the packet in the compact format.
+     *
+     * @return the number of bytes encodeTo() writes.
+     */
+    public int encodedSize() {
+        int size = CompactFormat.HEADER_SIZE
+                + CompactFormat.varintSize(_type.value())
+                + CompactFormat.varintSize(_contentNameAdd.size())
+                + CompactFormat.varintSize(CompactFormat.zigzag(_version))
+                + CompactFormat.varintSize(CompactFormat.zigzag(_ttl));
+        for (ContentName name : _contentNameAdd) {
+            size += CompactFormat.nameSize(name);
+        }
+        for (ContentName name : _contentNameRemove) {
+            size += CompactFormat.nameSize(name);
+        }
+        return size;
+    }
+
+    /**
+     * Encodes the packet in the compact format (see CompactFormat). The body
+     * is (type, add count, version, ttl), followed by the added and the
+     * removed CDs, and its length is the payload length of the header.
+     *
+     * @param buffer the buffer to write into, from its position.
+     * @throws ContentEncodingException if fields are missing or the buffer is
+     * too small.
+     */
+    public void encodeTo(ByteBuffer buffer) throws ContentEncodingException {
+        if (!validate() || _type == null || _contentNameAdd.size() + _contentNameRemove.size() > 0xffff) {
+            throw new ContentEncodingException("Cannot encode " + this.getClass().getName() + ": field values missing.");
+        }
+        int size = encodedSize();
+        if (buffer.remaining() < size) {
+            throw new ContentEncodingException("Buffer too small for " + this.getClass().getName());
+        }
+        CompactFormat.writeHeader(buffer, CompactFormat.TYPE_CONTROL, 0, _contentNameAdd.size() + _contentNameRemove.size(),
+                size - CompactFormat.HEADER_SIZE);
+        CompactFormat.writeVarint(buffer, _type.value());
+        CompactFormat.writeVarint(buffer, _contentNameAdd.size());
+        CompactFormat.writeVarint(buffer, CompactFormat.zigzag(_version));
+        CompactFormat.writeVarint(buffer, CompactFormat.zigzag(_ttl));
+        for (ContentName name : _contentNameAdd) {
+            CompactFormat.writeName(buffer, name);
+        }
+        for (ContentName name : _contentNameRemove) {
+            CompactFormat.writeName(buffer, name);
+        }
+    }
+
+    /**
+     * Decodes a packet in the compact format (see CompactFormat).
+     *
+     * @param buffer the buffer to read from, its position is moved to the end
+     * of the packet.
+     * @throws ContentDecodingException
+     */
+    public void decodeFrom(ByteBuffer buffer) throws ContentDecodingException {
+        try {
+            int[] header = CompactFormat.readHeader(buffer, CompactFormat.TYPE_CONTROL);
+            if (header[2] > buffer.remaining()) {
+                throw new ContentDecodingException("Invalid payload length: " + header[2]);
+            }
+            int end = buffer.position() + header[2];
+            _type = ControlType.fromInt(CompactFormat.readVarint(buffer));
+            if (_type == null) {
+                throw new ContentDecodingException("Cannot decode " + this.getClass().getName() + ": type mismatch.");
+            }
+            int addCount = CompactFormat.readVarint(buffer);
+            if (addCount < 0 || addCount > header[1]) {
+                throw new ContentDecodingException("Invalid add count: " + addCount);
+            }
+            _version = CompactFormat.unzigzag(CompactFormat.readVarint(buffer));
+            _ttl = CompactFormat.unzigzag(CompactFormat.readVarint(buffer));
+            _contentNameAdd = new LinkedList<>();
+            _contentNameRemove = new LinkedList<>();
+            for (int i = 0; i < header[1]; i++) {
+                (i < addCount ? _contentNameAdd : _contentNameRemove).add(CompactFormat.readName(buffer));
+            }
+            if (buffer.position() != end) {
+                throw new ContentDecodingException("Invalid payload length: " + header[2]);
+            }
+        } catch (BufferUnderflowException ex) {
+            throw CompactFormat.truncated(ex);
+        }
+    }
+
     @Override
     public long getElementLabel() {
         return COPSSProtocolDTags.Control;
@@ -260,19 +350,105 @@ public class Control extends GenericXMLEncodable {
      * @throws ContentEncodingException 
      */
     public LinkedList<Interest> encapsulate(InterestTable<ContentName> CD2RPMappingTable) throws ContentEncodingException {
+        return encapsulate(CD2RPMappingTable, false);
+    }
+
+    /**
+     * Encapsulates a control packet into Interest packet(s) according to the CD2RPMappingTable.
+     * 
+     * @param CD2RPMappingTable The CD to RP mapping.
+     * @param binary if the packets are carried as raw name components, or as
+     * base64 text (understood by old routers).
+     * @return the encapsulated interest packets
+     * @throws ContentEncodingException 
+     */
+    public LinkedList<Interest> encapsulate(InterestTable<ContentName> CD2RPMappingTable, boolean binary) throws ContentEncodingException {
+        return encapsulate(Utility.splitContentNames(CD2RPMappingTable, _contentNameAdd),
+                Utility.splitContentNames(CD2RPMappingTable, _contentNameRemove), binary);
+    }
+
+    /**
+     * Encapsulates a control packet into Interest packet(s) according to a
+     * compiled CD to RP mapping.
+     * 
+     * @param mapping The CD to RP mapping.
+     * @param binary if the packets are carried as raw name components, or as
+     * base64 text (understood by old routers).
+     * @return the encapsulated interest packets
+     * @throws ContentEncodingException 
+     */
+    public LinkedList<Interest> encapsulate(CDRPMapping mapping, boolean binary) throws ContentEncodingException {
+        return encapsulate(Utility.splitContentNames(mapping, _contentNameAdd),
+                Utility.splitContentNames(mapping, _contentNameRemove), binary);
+    }
 
+    /**
+     * Encapsulates a control packet into Interest packet(s) according to the
+     * split plans of its CDs.
+     * 
+     * @param adds the plan of contentNameAdd().
+     * @param removes the plan of contentNameRemove().
+     * @param binary if the packets are carried as raw name components, or as
+     * base64 text (understood by old routers).
+     * @return the encapsulated interest packets
+     * @throws ContentEncodingException 
+     */
+    public LinkedList<Interest> encapsulate(SplitPlan adds, SplitPlan removes, boolean binary) throws ContentEncodingException {
         HashMap<ContentName, Control> ret = new HashMap<>();
+        HashMap<ContentName, ContentName> prefixes = new HashMap<>();
+
+        for (int i = 0; i < adds.size(); i++) {
+            ret.put(adds.rp(i), new Control(_type, adds.group(i), new LinkedList<ContentName>(), _version, _ttl));
+            prefixes.put(adds.rp(i), adds.controlPrefix(i));
+        }
+        for (int i = 0; i < removes.size(); i++) {
+            Control c = ret.get(removes.rp(i));
+            if (c == null) {
+                ret.put(removes.rp(i), new Control(_type, new LinkedList<ContentName>(), removes.group(i), _version, _ttl));
+                prefixes.put(removes.rp(i), removes.controlPrefix(i));
+            } else {
+                c._contentNameRemove = removes.group(i);
+            }
+        }
 
-        HashMap<ContentName, LinkedList<ContentName>> tmp;
+        LinkedList<Interest> ret2 = new LinkedList<>();
+        for (Entry<ContentName, Control> entry : ret.entrySet()) {
+            ret2.add(entry.getValue().encapsulate(prefixes.get(entry.getKey()), binary));
+        }
+        return ret2;
+    }
 
-        tmp = Utility.splitContentNames(CD2RPMappingTable, _contentNameAdd);
+    /**
+     * Encapsulates the whole control packet into one Interest packet to an
+     * RP.
+     * 
+     * @param controlPrefix /RPName/control, see SplitPlan.controlPrefix.
+     * @param binary if the packet is carried as a raw name component, or as
+     * base64 text (understood by old routers).
+     * @return the encapsulated interest packet
+     * @throws ContentEncodingException 
+     */
+    public Interest encapsulate(ContentName controlPrefix, boolean binary) throws ContentEncodingException {
+        byte[] component;
+        if (binary) {
+            component = Encapsulation.binaryComponent(this);
+        } else {
+            component = DataUtils.getBytesFromUTF8String(
+                    DataUtils.base64Encode(encode(), Integer.MAX_VALUE).replaceAll("\n|\r", ""));
+        }
+        return new Interest(new ContentName(controlPrefix, component));
+    }
 
-        for (Entry<ContentName, LinkedList<ContentName>> entry : tmp.entrySet()) {
+    private LinkedList<Interest> encapsulate(HashMap<ContentName, LinkedList<ContentName>> adds,
+            HashMap<ContentName, LinkedList<ContentName>> removes, boolean binary) throws ContentEncodingException {
+
+        HashMap<ContentName, Control> ret = new HashMap<>();
+
+        for (Entry<ContentName, LinkedList<ContentName>> entry : adds.entrySet()) {
             ret.put(entry.getKey(), new Control(_type, entry.getValue(), new LinkedList<ContentName>(), _version, _ttl));
         }
 
-        tmp = Utility.splitContentNames(CD2RPMappingTable, _contentNameRemove);
-        for (Entry<ContentName, LinkedList<ContentName>> entry : tmp.entrySet()) {
+        for (Entry<ContentName, LinkedList<ContentName>> entry : removes.entrySet()) {
             Control c = ret.get(entry.getKey());
             if (c == null) {
                 ret.put(entry.getKey(), new Control(_type, new LinkedList<ContentName>(), entry.getValue(), _version, _ttl));
@@ -284,6 +460,10 @@ public class Control extends GenericXMLEncodable {
         LinkedList<Interest> ret2 = new LinkedList<>();
 
         for (Entry<ContentName, Control> entry : ret.entrySet()) {
+            if (binary) {
+                ret2.add(new Interest(Encapsulation.binaryName(entry.getKey(), CONTROL_ENCAPSULATE_NAME, entry.getValue())));
+                continue;
+            }
             String content = DataUtils.base64Encode(entry.getValue().encode(), Integer.MAX_VALUE).replaceAll("\n|\r", "");
             ret2.add(new Interest(
                     new ContentName(entry.getKey(), CONTROL_ENCAPSULATE_NAME, content)
@@ -303,14 +483,16 @@ public class Control extends GenericXMLEncodable {
      * @throws IOException 
      */
     public boolean decapsulate(Interest interest) throws ContentDecodingException, IOException {
-        ContentName name = interest.name();
-
-        if (name.count() <= 1 || !name.stringComponent(1).equals(CONTROL_ENCAPSULATE_NAME)) {
+        byte[] component = Encapsulation.packetComponent(interest.name(), Encapsulation.CONTROL_COMPONENT);
+        if (component == null) {
             return false;
         }
-        String base64String = URLDecoder.decode(name.stringComponent(2), "UTF-8");
-//        System.out.println(base64String);
-        byte[] buf = DataUtils.base64Decode(DataUtils.getBytesFromUTF8String(base64String));
+        if (Encapsulation.isBinary(component)) {
+            Encapsulation.decode(this, component);
+            return true;
+        }
+        // the component holds the base64 text as it is, stringComponent would escape it.
+        byte[] buf = DataUtils.base64Decode(component);
         decode(buf);
         return true;
     }
@@ -0,0 +1,131 @@
+package copss.protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.ccnx.ccn.impl.encoding.GenericXMLEncodable;
+import org.ccnx.ccn.impl.support.DataUtils;
+import org.ccnx.ccn.io.content.ContentDecodingException;
+import org.ccnx.ccn.io.content.ContentEncodingException;
+import org.ccnx.ccn.protocol.ContentName;
+
+/**
+ * Binary encapsulation of COPSS packets in Interest names:
+ * /RPName/type/(marker + encoded packet).
+ *
+ * The RP name may have several components, so the type is the second to last
+ * component and the packet the last one.
+ *
+ * The packet is carried as a raw name component, prefixed with a marker byte.
+ * The original encapsulation carries it as base64 text, which never starts
+ * with the marker, so both can be told apart from the component.
+ *
+ * @author Jiachen Chen
+ */
+final class Encapsulation {
+
+    /**
+     * First byte of a binary encapsulated packet (not a base64 character).
+     */
+    static final byte BINARY_MARKER = (byte) 0xC0;
+    static final byte[] CONTROL_COMPONENT = DataUtils.getBytesFromUTF8String(Control.CONTROL_ENCAPSULATE_NAME);
+    static final byte[] MULTICAST_COMPONENT = DataUtils.getBytesFromUTF8String(Multicast.MULTICAST_ENCAPSULATE_NAME);
+    static final byte[] BATCH_COMPONENT = DataUtils.getBytesFromUTF8String(MulticastBatch.BATCH_ENCAPSULATE_NAME);
+
+    private Encapsulation() {
+    }
+
+    /**
+     * Get the packet component of an encapsulated name.
+     *
+     * @param name /RPName/type/packet.
+     * @param type the type component expected.
+     * @return the packet component, or null if the name is not an
+     * encapsulated packet of the type.
+     */
+    static byte[] packetComponent(ContentName name, byte[] type) {
+        int count = name.count();
+        if (count < 3 || !Arrays.equals(name.component(count - 2), type)) {
+            return null;
+        }
+        return name.component(count - 1);
+    }
+
+    /**
+     * Build the name of a binary encapsulated packet.
+     *
+     * @param rp the name of the RP.
+     * @param type the type component (multicast or control).
+     * @param packet the packet.
+     * @return /rp/type/(marker + encoded packet).
+     * @throws ContentEncodingException
+     */
+    static ContentName binaryName(ContentName rp, String type, GenericXMLEncodable packet) throws ContentEncodingException {
+        return new ContentName(rp, DataUtils.getBytesFromUTF8String(type), binaryComponent(packet));
+    }
+
+    /**
+     * Encode a packet as a binary encapsulated name component.
+     *
+     * @param packet the packet.
+     * @return marker + encoded packet.
+     * @throws ContentEncodingException
+     */
+    static byte[] binaryComponent(GenericXMLEncodable packet) throws ContentEncodingException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(BINARY_MARKER);
+        packet.encode(out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Encode an encoded packet as a name component.
+     *
+     * @param packet the encoded packet.
+     * @param binary marker + packet, or the packet as base64 text.
+     * @return the name component.
+     */
+    static byte[] component(byte[] packet, boolean binary) {
+        if (!binary) {
+            return DataUtils.getBytesFromUTF8String(
+                    DataUtils.base64Encode(packet, Integer.MAX_VALUE).replaceAll("\n|\r", ""));
+        }
+        byte[] ret = new byte[packet.length + 1];
+        ret[0] = BINARY_MARKER;
+        System.arraycopy(packet, 0, ret, 1, packet.length);
+        return ret;
+    }
+
+    /**
+     * Check if a name component holds a binary encapsulated packet.
+     *
+     * @param component the last component of the Interest name.
+     * @return if the packet is binary encapsulated.
+     */
+    static boolean isBinary(byte[] component) {
+        return component.length > 0 && component[0] == BINARY_MARKER;
+    }
+
+    /**
+     * Decode a binary encapsulated packet in place.
+     *
+     * @param packet the object to decode into.
+     * @param component the name component, see isBinary.
+     * @throws ContentDecodingException
+     */
+    static void decode(GenericXMLEncodable packet, byte[] component) throws ContentDecodingException {
+        packet.decode(new ByteArrayInputStream(component, 1, component.length - 1));
+    }
+
+    /**
+     * Get the encoded packet of a binary encapsulated component, without
+     * copying.
+     *
+     * @param component the name component, see isBinary.
+     * @return the encoded packet.
+     */
+    static ByteBuffer packet(byte[] component) {
+        return ByteBuffer.wrap(component, 1, component.length - 1).slice();
+    }
+}
\ No newline at end of file
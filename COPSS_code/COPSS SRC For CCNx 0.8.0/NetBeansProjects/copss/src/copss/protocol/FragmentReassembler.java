@@ -0,0 +1,194 @@
+package copss.protocol;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import org.ccnx.ccn.protocol.ContentName;
+
+/**
+ * Reassembles fragmented payloads (see Multicast.fragment) at a subscriber.
+ *
+ * The fragments of a payload are kept by their fragment ID until all of them
+ * arrive, in any order. The memory is bounded: a payload not complete within
+ * the timeout is dropped, and when the fragments kept exceed the memory limit,
+ * the oldest incomplete payloads are dropped first. A payload is charged for
+ * its fragments and for the array holding them, sized by the fragment count
+ * of its first fragment, so a forged count cannot take more than the limit.
+ *
+ * A payload whose CDs are served by several RPs arrives once through each of
+ * them. The IDs of the completed payloads are kept for the timeout, so it is
+ * only delivered once.
+ *
+ * @author Jiachen Chen
+ */
+public class FragmentReassembler {
+
+    /**
+     * Fragment count above which a payload is refused.
+     */
+    public static final int MAX_FRAGMENTS = 0xffff;
+    /**
+     * Bytes charged for each fragment of a payload, the size of its slot in
+     * the array of the parts.
+     */
+    private static final int SLOT_SIZE = 8;
+    /**
+     * Maximum number of completed IDs kept.
+     */
+    private static final int MAX_COMPLETED = 0xffff;
+    private final int _maxBytes;
+    private final long _timeout;
+    /**
+     * Incomplete payloads by fragment ID, oldest first.
+     */
+    private final LinkedHashMap<Long, Partial> _partials = new LinkedHashMap<>();
+    /**
+     * Completion time of the payloads completed recently, oldest first.
+     */
+    private final LinkedHashMap<Long, Long> _completedIDs = new LinkedHashMap<Long, Long>() {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+            return size() > MAX_COMPLETED;
+        }
+    };
+    private int _bytes = 0;
+    private long _completed = 0, _expired = 0, _evicted = 0, _dropped = 0, _duplicates = 0;
+
+    /**
+     * Create a reassembler.
+     *
+     * @param maxBytes the maximum size of the fragments kept.
+     * @param timeout the time (ms) a payload may take to complete.
+     */
+    public FragmentReassembler(int maxBytes, long timeout) {
+        _maxBytes = maxBytes;
+        _timeout = timeout;
+    }
+
+    /**
+     * Add a received multicast.
+     *
+     * @param multicast the multicast, a fragment or not.
+     * @return the multicast if it is not a fragment, the reassembled payload
+     * if it is the last missing fragment, otherwise null.
+     */
+    public synchronized Multicast add(Multicast multicast) {
+        if (!multicast.isFragment()) {
+            return multicast;
+        }
+        long now = System.currentTimeMillis();
+        expire(now);
+        int count = multicast.fragmentCount(), index = multicast.fragmentIndex();
+        if (_completedIDs.containsKey(multicast.fragmentID())) {
+            _duplicates++;
+            return null;
+        }
+        Partial partial = _partials.get(multicast.fragmentID());
+        if (partial == null) {
+            if (count > MAX_FRAGMENTS || (long) count * SLOT_SIZE > _maxBytes || index < 0 || index >= count) {
+                _dropped++;
+                return null;
+            }
+            partial = new Partial(multicast.contentNames(), count, now);
+            _partials.put(multicast.fragmentID(), partial);
+            _bytes += partial.size();
+        }
+        if (count != partial._parts.length || index < 0 || index >= count) {
+            _dropped++;
+            return null;
+        }
+        if (partial._parts[index] != null) {
+            _duplicates++;
+            return null;
+        }
+        byte[] part = multicast.content();
+        partial._parts[index] = part;
+        partial._received++;
+        partial._bytes += part.length;
+        _bytes += part.length;
+        if (partial._received == count) {
+            _partials.remove(multicast.fragmentID());
+            _completedIDs.put(multicast.fragmentID(), now);
+            _bytes -= partial.size();
+            _completed++;
+            return partial.reassemble();
+        }
+        // evict the oldest payloads, including this one if it is too large
+        Iterator<Partial> it = _partials.values().iterator();
+        while (_bytes > _maxBytes && it.hasNext()) {
+            _bytes -= it.next().size();
+            it.remove();
+            _evicted++;
+        }
+        return null;
+    }
+
+    private void expire(long now) {
+        Iterator<Partial> it = _partials.values().iterator();
+        while (it.hasNext()) {
+            Partial partial = it.next();
+            if (now - partial._created < _timeout) {
+                break;
+            }
+            _bytes -= partial.size();
+            it.remove();
+            _expired++;
+        }
+        Iterator<Long> completed = _completedIDs.values().iterator();
+        while (completed.hasNext() && now - completed.next() >= _timeout) {
+            completed.remove();
+        }
+    }
+
+    /**
+     * Drop the payloads that have timed out, without adding a fragment.
+     */
+    public synchronized void expire() {
+        expire(System.currentTimeMillis());
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("FragmentReassembler: pending=%d (%d bytes, max %d), completed=%d, expired=%d, evicted=%d, dropped=%d, duplicates=%d",
+                _partials.size(), _bytes, _maxBytes, _completed, _expired, _evicted, _dropped, _duplicates);
+    }
+
+    /**
+     * The fragments of a payload received so far.
+     */
+    private static class Partial {
+
+        private final LinkedList<ContentName> _contentNames;
+        private final byte[][] _parts;
+        private final long _created;
+        /**
+         * Number and total size of the fragments received.
+         */
+        private int _received = 0, _bytes = 0;
+
+        Partial(LinkedList<ContentName> contentNames, int count, long created) {
+            _contentNames = contentNames;
+            _parts = new byte[count][];
+            _created = created;
+        }
+
+        /**
+         * @return the memory charged for the payload.
+         */
+        int size() {
+            return _parts.length * SLOT_SIZE + _bytes;
+        }
+
+        Multicast reassemble() {
+            byte[] content = new byte[_bytes];
+            int offset = 0;
+            for (byte[] part : _parts) {
+                System.arraycopy(part, 0, content, offset, part.length);
+                offset += part.length;
+            }
+            return new Multicast(_contentNames, content);
+        }
+    }
+}
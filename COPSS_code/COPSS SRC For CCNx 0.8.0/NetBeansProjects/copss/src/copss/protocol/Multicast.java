@@ -1,13 +1,17 @@
 package copss.protocol;
 
+import copss.util.CDRPMapping;
 import copss.util.Utility;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.net.URLDecoder;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Map;
 import org.ccnx.ccn.impl.InterestTable;
+import org.ccnx.ccn.impl.encoding.BinaryXMLCodec;
 import org.ccnx.ccn.impl.encoding.GenericXMLEncodable;
 import org.ccnx.ccn.impl.encoding.XMLDecoder;
 import org.ccnx.ccn.impl.encoding.XMLEncoder;
@@ -20,6 +24,12 @@ import org.ccnx.ccn.protocol.Interest;
 
 /**
  * Multicast (Publish) packet.
+ *
+ * A payload larger than a datagram is published as fragments (see
+ * fragment()): Multicasts with the same CDs, each carrying a part of the
+ * payload and (fragment ID, index, count) after the content. Routers forward
+ * fragments as any other multicast, subscribers reassemble them (see
+ * FragmentReassembler).
  * 
  * @author Jiachen Chen
  */
@@ -32,6 +42,11 @@ public class Multicast extends GenericXMLEncodable {
     
     private LinkedList<ContentName> _contentNames;
     private byte[] _content;
+    private long _fragmentID;
+    /**
+     * Fragment count, 0 if the multicast is not a fragment.
+     */
+    private int _fragmentIndex, _fragmentCount;
 
     public Multicast() {
     }
@@ -41,6 +56,68 @@ public class Multicast extends GenericXMLEncodable {
         _content = content;
     }
 
+    /**
+     * Create a fragment.
+     *
+     * @param contentNames the CDs of the whole payload.
+     * @param content the part of the payload.
+     * @param fragmentID the ID shared by the fragments of the payload.
+     * @param fragmentIndex the index of the part.
+     * @param fragmentCount the number of fragments of the payload.
+     */
+    public Multicast(LinkedList<ContentName> contentNames, byte[] content, long fragmentID, int fragmentIndex, int fragmentCount) {
+        this(contentNames, content);
+        _fragmentID = fragmentID;
+        _fragmentIndex = fragmentIndex;
+        _fragmentCount = fragmentCount;
+    }
+
+    /**
+     * Split the multicast into fragments of up to fragmentSize bytes of
+     * content.
+     *
+     * @param fragmentSize the maximum content size of a fragment, 0 for no
+     * fragmentation.
+     * @param fragmentID the ID of the fragments, unique for the publisher
+     * (e.g. random).
+     * @return the fragments, or the multicast itself if its content fits.
+     */
+    public LinkedList<Multicast> fragment(int fragmentSize, long fragmentID) {
+        LinkedList<Multicast> ret = new LinkedList<>();
+        if (fragmentSize <= 0 || _content.length <= fragmentSize) {
+            ret.add(this);
+            return ret;
+        }
+        int count = (_content.length + fragmentSize - 1) / fragmentSize;
+        for (int i = 0; i < count; i++) {
+            int from = i * fragmentSize;
+            byte[] part = Arrays.copyOfRange(_content, from, Math.min(from + fragmentSize, _content.length));
+            ret.add(new Multicast(_contentNames, part, fragmentID, i, count));
+        }
+        return ret;
+    }
+
+    /**
+     * Check if the multicast is a fragment of a larger payload.
+     *
+     * @return if the fragment fields are set.
+     */
+    public boolean isFragment() {
+        return _fragmentCount > 0;
+    }
+
+    public long fragmentID() {
+        return _fragmentID;
+    }
+
+    public int fragmentIndex() {
+        return _fragmentIndex;
+    }
+
+    public int fragmentCount() {
+        return _fragmentCount;
+    }
+
     /**
      * Dangerous: original list returned. Do NOT change content!
      *
@@ -79,6 +156,16 @@ public class Multicast extends GenericXMLEncodable {
 
         _content = decoder.readBinaryElement(COPSSProtocolDTags.Content);
 
+        if (decoder.peekStartElement(COPSSProtocolDTags.FragmentID)) {
+            byte[] id = decoder.readBinaryElement(COPSSProtocolDTags.FragmentID);
+            if (id.length != 8) {
+                throw new ContentDecodingException("Invalid fragment ID length: " + id.length);
+            }
+            _fragmentID = ByteBuffer.wrap(id).getLong();
+            _fragmentIndex = decoder.readIntegerElement(COPSSProtocolDTags.FragmentIndex);
+            _fragmentCount = decoder.readIntegerElement(COPSSProtocolDTags.FragmentCount);
+        }
+
         try {
             decoder.readEndElement();
         } catch (ContentDecodingException e) {
@@ -102,9 +189,87 @@ public class Multicast extends GenericXMLEncodable {
 
         encoder.writeElement(COPSSProtocolDTags.Content, _content);
 
+        if (isFragment()) {
+            encoder.writeElement(COPSSProtocolDTags.FragmentID, ByteBuffer.allocate(8).putLong(_fragmentID).array());
+            encoder.writeElement(COPSSProtocolDTags.FragmentIndex, _fragmentIndex);
+            encoder.writeElement(COPSSProtocolDTags.FragmentCount, _fragmentCount);
+        }
+
         encoder.writeEndElement();
     }
 
+    /**
+     * Get the size of the packet in the compact format.
+     *
+     * @return the number of bytes encodeTo() writes.
+     */
+    public int encodedSize() {
+        int size = CompactFormat.HEADER_SIZE;
+        for (ContentName name : _contentNames) {
+            size += CompactFormat.nameSize(name);
+        }
+        if (isFragment()) {
+            size += 8 + CompactFormat.varintSize(_fragmentIndex) + CompactFormat.varintSize(_fragmentCount);
+        }
+        return size + _content.length;
+    }
+
+    /**
+     * Encodes the packet in the compact format (see CompactFormat).
+     *
+     * @param buffer the buffer to write into, from its position.
+     * @throws ContentEncodingException if fields are missing or the buffer is
+     * too small.
+     */
+    public void encodeTo(ByteBuffer buffer) throws ContentEncodingException {
+        if (!validate() || _contentNames.size() > 0xffff) {
+            throw new ContentEncodingException("Cannot encode " + this.getClass().getName() + ": field values missing.");
+        }
+        if (buffer.remaining() < encodedSize()) {
+            throw new ContentEncodingException("Buffer too small for " + this.getClass().getName());
+        }
+        CompactFormat.writeHeader(buffer, CompactFormat.TYPE_MULTICAST, isFragment() ? CompactFormat.FLAG_FRAGMENT : 0,
+                _contentNames.size(), _content.length);
+        for (ContentName name : _contentNames) {
+            CompactFormat.writeName(buffer, name);
+        }
+        if (isFragment()) {
+            buffer.putLong(_fragmentID);
+            CompactFormat.writeVarint(buffer, _fragmentIndex);
+            CompactFormat.writeVarint(buffer, _fragmentCount);
+        }
+        buffer.put(_content);
+    }
+
+    /**
+     * Decodes a packet in the compact format (see CompactFormat).
+     *
+     * @param buffer the buffer to read from, its position is moved to the end
+     * of the packet.
+     * @throws ContentDecodingException
+     */
+    public void decodeFrom(ByteBuffer buffer) throws ContentDecodingException {
+        try {
+            int[] header = CompactFormat.readHeader(buffer, CompactFormat.TYPE_MULTICAST);
+            _contentNames = new LinkedList<>();
+            for (int i = 0; i < header[1]; i++) {
+                _contentNames.addLast(CompactFormat.readName(buffer));
+            }
+            if ((header[0] & CompactFormat.FLAG_FRAGMENT) != 0) {
+                _fragmentID = buffer.getLong();
+                _fragmentIndex = CompactFormat.readVarint(buffer);
+                _fragmentCount = CompactFormat.readVarint(buffer);
+            }
+            if (header[2] > buffer.remaining()) {
+                throw new ContentDecodingException("Invalid payload length: " + header[2]);
+            }
+            _content = new byte[header[2]];
+            buffer.get(_content);
+        } catch (BufferUnderflowException ex) {
+            throw CompactFormat.truncated(ex);
+        }
+    }
+
     @Override
     public long getElementLabel() {
         return COPSSProtocolDTags.Multicast;
@@ -112,7 +277,8 @@ public class Multicast extends GenericXMLEncodable {
 
     @Override
     public boolean validate() {
-        return _contentNames != null && _contentNames.size() > 0 && _content != null;
+        return _contentNames != null && _contentNames.size() > 0 && _content != null
+                && _fragmentCount >= 0 && (_fragmentCount == 0 || _fragmentIndex >= 0 && _fragmentIndex < _fragmentCount);
     }
 
     @Override
@@ -121,6 +287,9 @@ public class Multicast extends GenericXMLEncodable {
         sb.append(_contentNames);
         sb.append("\n\tContent=");
         sb.append(DataUtils.printHexBytes(_content));
+        if (isFragment()) {
+            sb.append(String.format("%n\tFragment %016x: %d/%d", _fragmentID, _fragmentIndex, _fragmentCount));
+        }
         return sb.toString();
     }
 
@@ -132,12 +301,87 @@ public class Multicast extends GenericXMLEncodable {
      * @throws ContentEncodingException 
      */
     public LinkedList<Interest> encapsulate(InterestTable<ContentName> CD2RPMappingTable) throws ContentEncodingException {
-        LinkedList<Interest> ret = new LinkedList<>();
-        HashMap<ContentName, LinkedList<ContentName>> tmp;
-        tmp = Utility.splitContentNames(CD2RPMappingTable, _contentNames);
+        return encapsulate(CD2RPMappingTable, false);
+    }
 
+    /**
+     * Encapsulates the multicast packet into Interest packet(s) according to the CD2RPMappingTable
+     * 
+     * @param CD2RPMappingTable CD to RP mapping.
+     * @param binary if the packets are carried as raw name components, or as
+     * base64 text (understood by old routers).
+     * @return encapsulated Interest packets.
+     * @throws ContentEncodingException 
+     */
+    public LinkedList<Interest> encapsulate(InterestTable<ContentName> CD2RPMappingTable, boolean binary) throws ContentEncodingException {
+        return encapsulate(Utility.splitContentNames(CD2RPMappingTable, _contentNames), binary);
+    }
+
+    /**
+     * Encapsulates the multicast packet into Interest packet(s) according to a
+     * compiled CD to RP mapping.
+     * 
+     * @param mapping CD to RP mapping.
+     * @param binary if the packets are carried as raw name components, or as
+     * base64 text (understood by old routers).
+     * @return encapsulated Interest packets.
+     * @throws ContentEncodingException 
+     */
+    public LinkedList<Interest> encapsulate(CDRPMapping mapping, boolean binary) throws ContentEncodingException {
+        return encapsulate(Utility.splitContentNames(mapping, _contentNames), binary);
+    }
+
+    /**
+     * Encapsulates the multicast packet into Interest packet(s) according to
+     * the split plan of its CDs.
+     * 
+     * @param plan the plan of contentNames().
+     * @param binary if the packets are carried as raw name components, or as
+     * base64 text (understood by old routers).
+     * @return encapsulated Interest packets.
+     */
+    public LinkedList<Interest> encapsulate(SplitPlan plan, boolean binary) {
+        return plan.encapsulateMulticast(ByteBuffer.wrap(_content), ByteBuffer.wrap(ccnbTrailer()), binary);
+    }
+
+    /**
+     * Get the ccnb of the fields after the content, as encode() writes them.
+     *
+     * @return the fragment fields, empty if not a fragment.
+     */
+    byte[] ccnbTrailer() {
+        if (!isFragment()) {
+            return new byte[0];
+        }
+        byte[] id = element(COPSSProtocolDTags.FragmentID, BinaryXMLCodec.XML_BLOB, ByteBuffer.allocate(8).putLong(_fragmentID).array()),
+                index = element(COPSSProtocolDTags.FragmentIndex, BinaryXMLCodec.XML_UDATA, DataUtils.getBytesFromUTF8String(Integer.toString(_fragmentIndex))),
+                count = element(COPSSProtocolDTags.FragmentCount, BinaryXMLCodec.XML_UDATA, DataUtils.getBytesFromUTF8String(Integer.toString(_fragmentCount)));
+        return ByteBuffer.allocate(id.length + index.length + count.length).put(id).put(index).put(count).array();
+    }
+
+    /**
+     * Encode a (tag, data) element in ccnb.
+     *
+     * @param tag the DTAG.
+     * @param type XML_BLOB, or XML_UDATA for integers (in decimal).
+     * @param data the data.
+     * @return the element.
+     */
+    static byte[] element(long tag, int type, byte[] data) {
+        byte[] start = CCNBScanner.header(BinaryXMLCodec.XML_DTAG, tag),
+                header = CCNBScanner.header(type, data.length);
+        return ByteBuffer.allocate(start.length + header.length + data.length + 1)
+                .put(start).put(header).put(data).put(BinaryXMLCodec.XML_CLOSE).array();
+    }
+
+    private LinkedList<Interest> encapsulate(HashMap<ContentName, LinkedList<ContentName>> tmp, boolean binary) throws ContentEncodingException {
+        LinkedList<Interest> ret = new LinkedList<>();
         for (Map.Entry<ContentName, LinkedList<ContentName>> entry : tmp.entrySet()) {
-            Multicast multicast = new Multicast(entry.getValue(), _content);
+            Multicast multicast = new Multicast(entry.getValue(), _content, _fragmentID, _fragmentIndex, _fragmentCount);
+            if (binary) {
+                ret.add(new Interest(Encapsulation.binaryName(entry.getKey(), MULTICAST_ENCAPSULATE_NAME, multicast)));
+                continue;
+            }
             String content = DataUtils.base64Encode(multicast.encode(), Integer.MAX_VALUE).replaceAll("\n|\r", "");
             ret.add(new Interest(
                     new ContentName(entry.getKey(), MULTICAST_ENCAPSULATE_NAME, content)
@@ -156,13 +400,16 @@ public class Multicast extends GenericXMLEncodable {
      * @throws IOException 
      */
     public boolean decapsulate(Interest interest) throws UnsupportedEncodingException, IOException {
-        ContentName name = interest.name();
-        if (!name.stringComponent(1).equals(MULTICAST_ENCAPSULATE_NAME)) {
+        byte[] component = Encapsulation.packetComponent(interest.name(), Encapsulation.MULTICAST_COMPONENT);
+        if (component == null) {
             return false;
         }
-        String base64String = URLDecoder.decode(name.stringComponent(2), "UTF-8");
-//        System.out.println(base64String);
-        byte[] buf = DataUtils.base64Decode(DataUtils.getBytesFromUTF8String(base64String));
+        if (Encapsulation.isBinary(component)) {
+            Encapsulation.decode(this, component);
+            return true;
+        }
+        // the component holds the base64 text as it is, stringComponent would escape it.
+        byte[] buf = DataUtils.base64Decode(component);
         decode(buf);
         return true;
     }
@@ -0,0 +1,213 @@
+package copss.protocol;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.List;
+import org.ccnx.ccn.impl.encoding.BinaryXMLCodec;
+import org.ccnx.ccn.impl.encoding.GenericXMLEncodable;
+import org.ccnx.ccn.impl.encoding.XMLDecoder;
+import org.ccnx.ccn.impl.encoding.XMLEncoder;
+import org.ccnx.ccn.impl.support.DataUtils;
+import org.ccnx.ccn.io.content.ContentDecodingException;
+import org.ccnx.ccn.io.content.ContentEncodingException;
+
+/**
+ * Multiple Multicast packets sent as one packet.
+ *
+ * In ccnb, the batch is (MulticastCount, Multicast*). In the compact format,
+ * the CD count field of the header holds the number of Multicasts and the
+ * payload is the Multicasts in the compact format. Either way the messages
+ * are complete Multicast packets, so a router can forward some of them
+ * without decoding them (see MulticastBatchView).
+ *
+ * @author Jiachen Chen
+ */
+public class MulticastBatch extends GenericXMLEncodable {
+
+    /**
+     * Encapsulates the batch using prefix /RPName/batch/
+     */
+    public static final String BATCH_ENCAPSULATE_NAME = "batch";
+    private LinkedList<Multicast> _multicasts;
+
+    public MulticastBatch() {
+    }
+
+    public MulticastBatch(LinkedList<Multicast> multicasts) {
+        _multicasts = multicasts;
+    }
+
+    /**
+     * Dangerous: original list returned. Do NOT change content!
+     *
+     * @return original Multicast list
+     */
+    public LinkedList<Multicast> multicasts() {
+        return _multicasts;
+    }
+
+    @Override
+    public void decode(XMLDecoder decoder) throws ContentDecodingException {
+        decoder.readStartElement(getElementLabel());
+        int count = decoder.readIntegerElement(COPSSProtocolDTags.MulticastCount);
+        _multicasts = new LinkedList<>();
+        for (int i = 0; i < count; i++) {
+            Multicast multicast = new Multicast();
+            multicast.decode(decoder);
+            _multicasts.addLast(multicast);
+        }
+        decoder.readEndElement();
+    }
+
+    @Override
+    public void encode(XMLEncoder encoder) throws ContentEncodingException {
+        if (!validate()) {
+            throw new ContentEncodingException("Cannot encode " + this.getClass().getName() + ": field values missing.");
+        }
+        encoder.writeStartElement(getElementLabel());
+        encoder.writeElement(COPSSProtocolDTags.MulticastCount, _multicasts.size());
+        for (Multicast multicast : _multicasts) {
+            multicast.encode(encoder);
+        }
+        encoder.writeEndElement();
+    }
+
+    /**
+     * Get the size of the packet in the compact format.
+     *
+     * @return the number of bytes encodeTo() writes.
+     */
+    public int encodedSize() {
+        int size = CompactFormat.HEADER_SIZE;
+        for (Multicast multicast : _multicasts) {
+            size += multicast.encodedSize();
+        }
+        return size;
+    }
+
+    /**
+     * Encodes the packet in the compact format (see CompactFormat).
+     *
+     * @param buffer the buffer to write into, from its position.
+     * @throws ContentEncodingException if fields are missing or the buffer is
+     * too small.
+     */
+    public void encodeTo(ByteBuffer buffer) throws ContentEncodingException {
+        if (!validate() || _multicasts.size() > 0xffff) {
+            throw new ContentEncodingException("Cannot encode " + this.getClass().getName() + ": field values missing.");
+        }
+        int size = encodedSize();
+        if (buffer.remaining() < size) {
+            throw new ContentEncodingException("Buffer too small for " + this.getClass().getName());
+        }
+        CompactFormat.writeHeader(buffer, CompactFormat.TYPE_MULTICAST_BATCH, 0, _multicasts.size(), size - CompactFormat.HEADER_SIZE);
+        for (Multicast multicast : _multicasts) {
+            multicast.encodeTo(buffer);
+        }
+    }
+
+    /**
+     * Decodes a packet in the compact format (see CompactFormat).
+     *
+     * @param buffer the buffer to read from, its position is moved to the end
+     * of the packet.
+     * @throws ContentDecodingException
+     */
+    public void decodeFrom(ByteBuffer buffer) throws ContentDecodingException {
+        try {
+            int[] header = CompactFormat.readHeader(buffer, CompactFormat.TYPE_MULTICAST_BATCH);
+            int end = buffer.position() + header[2];
+            _multicasts = new LinkedList<>();
+            for (int i = 0; i < header[1]; i++) {
+                Multicast multicast = new Multicast();
+                multicast.decodeFrom(buffer);
+                _multicasts.addLast(multicast);
+            }
+            if (buffer.position() != end) {
+                throw new ContentDecodingException("Invalid payload length: " + header[2]);
+            }
+        } catch (BufferUnderflowException ex) {
+            throw CompactFormat.truncated(ex);
+        }
+    }
+
+    /**
+     * Get the size of a batch packed by pack().
+     *
+     * @param count the number of Multicasts.
+     * @param length the total size of the encoded Multicasts.
+     * @param compact if the batch is in the compact format, otherwise ccnb.
+     * @return the size of the batch.
+     */
+    public static int packedSize(int count, int length, boolean compact) {
+        return compact ? CompactFormat.HEADER_SIZE + length : ccnbHead(count).length + length + 1;
+    }
+
+    /**
+     * Pack encoded Multicasts into a batch, without decoding them. The result
+     * is the same as encoding a MulticastBatch of them.
+     *
+     * @param multicasts the encoded Multicasts, from position to limit (not
+     * changed), all in the format of the batch.
+     * @param compact if the batch is in the compact format, otherwise ccnb.
+     * @return the batch.
+     */
+    public static byte[] pack(List<ByteBuffer> multicasts, boolean compact) {
+        int length = 0;
+        for (ByteBuffer multicast : multicasts) {
+            length += multicast.remaining();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(packedSize(multicasts.size(), length, compact));
+        if (compact) {
+            CompactFormat.writeHeader(buffer, CompactFormat.TYPE_MULTICAST_BATCH, 0, multicasts.size(), length);
+        } else {
+            buffer.put(ccnbHead(multicasts.size()));
+        }
+        for (ByteBuffer multicast : multicasts) {
+            buffer.put(multicast.duplicate());
+        }
+        if (!compact) {
+            buffer.put(BinaryXMLCodec.XML_CLOSE);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * The ccnb of a batch up to its first Multicast, as XMLEncoder writes it.
+     */
+    private static byte[] ccnbHead(int count) {
+        byte[] tag = CCNBScanner.header(BinaryXMLCodec.XML_DTAG, COPSSProtocolDTags.MulticastBatch),
+                countElement = Multicast.element(COPSSProtocolDTags.MulticastCount, BinaryXMLCodec.XML_UDATA,
+                        DataUtils.getBytesFromUTF8String(Integer.toString(count)));
+        return ByteBuffer.allocate(tag.length + countElement.length).put(tag).put(countElement).array();
+    }
+
+    @Override
+    public long getElementLabel() {
+        return COPSSProtocolDTags.MulticastBatch;
+    }
+
+    @Override
+    public boolean validate() {
+        if (_multicasts == null || _multicasts.isEmpty()) {
+            return false;
+        }
+        for (Multicast multicast : _multicasts) {
+            if (!multicast.validate()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("MulticastBatch:");
+        for (Multicast multicast : _multicasts) {
+            sb.append("\n");
+            sb.append(multicast);
+        }
+        return sb.toString();
+    }
+}
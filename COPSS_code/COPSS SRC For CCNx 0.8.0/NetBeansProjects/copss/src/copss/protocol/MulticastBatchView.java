@@ -0,0 +1,267 @@
+package copss.protocol;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import org.ccnx.ccn.impl.support.DataUtils;
+import org.ccnx.ccn.io.content.ContentDecodingException;
+import org.ccnx.ccn.io.content.ContentEncodingException;
+import org.ccnx.ccn.protocol.ContentName;
+import org.ccnx.ccn.protocol.Interest;
+
+/**
+ * A read-only view of a ccnb (or compact) encoded MulticastBatch packet in a
+ * buffer. Each message is read through a MulticastView of its own bytes, so
+ * a router can forward a batch, or any of its messages, without copying or
+ * re-encoding them.
+ *
+ * The buffer must not change while the view is used.
+ *
+ * @author Jiachen Chen
+ */
+public class MulticastBatchView {
+
+    private final ByteBuffer _packet;
+    private MulticastView[] _messages;
+    /**
+     * ccnb of the messages of a compact batch, converted on demand.
+     */
+    private byte[][] _ccnbMessages;
+
+    /**
+     * Create a view of a MulticastBatch packet.
+     *
+     * @param packet the packet, from position to limit (not changed).
+     */
+    public MulticastBatchView(ByteBuffer packet) {
+        _packet = packet;
+    }
+
+    /**
+     * Get a view of the batch encapsulated in an Interest
+     * (/RPName/batch/...).
+     *
+     * @param interest the Interest.
+     * @return the view, or null if the Interest is not an encapsulated batch.
+     * @throws IOException
+     */
+    public static MulticastBatchView decapsulate(Interest interest) throws IOException {
+        byte[] component = Encapsulation.packetComponent(interest.name(), Encapsulation.BATCH_COMPONENT);
+        if (component == null) {
+            return null;
+        }
+        if (Encapsulation.isBinary(component)) {
+            return new MulticastBatchView(Encapsulation.packet(component));
+        }
+        return new MulticastBatchView(ByteBuffer.wrap(DataUtils.base64Decode(component)));
+    }
+
+    /**
+     * Get the encoded batch.
+     *
+     * @return the packet, from position to limit.
+     */
+    public ByteBuffer packet() {
+        return _packet.duplicate();
+    }
+
+    /**
+     * Check if the packet is in the compact format (see CompactFormat).
+     *
+     * @return if the packet is in the compact format, otherwise it is ccnb.
+     */
+    public boolean isCompact() {
+        return CompactFormat.isCompact(_packet);
+    }
+
+    /**
+     * Get the number of messages in the batch.
+     *
+     * @return the number of Multicasts.
+     * @throws ContentDecodingException
+     */
+    public int size() throws ContentDecodingException {
+        if (_messages == null) {
+            parse();
+        }
+        return _messages.length;
+    }
+
+    /**
+     * Get a message of the batch.
+     *
+     * @param i the index of the message.
+     * @return the view of the i-th Multicast.
+     * @throws ContentDecodingException
+     */
+    public MulticastView message(int i) throws ContentDecodingException {
+        if (_messages == null) {
+            parse();
+        }
+        return _messages[i];
+    }
+
+    /**
+     * Get a packet holding some of the messages: the batch itself if it holds
+     * all of them, the Multicast if it holds one, otherwise a new batch of
+     * them.
+     *
+     * @param messages the indices of the messages.
+     * @param ccnb if the packet must be in ccnb, a compact batch is converted.
+     * Otherwise, the packet is in the format of the batch.
+     * @return the packet, from position to limit.
+     * @throws IOException
+     */
+    public ByteBuffer select(BitSet messages, boolean ccnb) throws IOException {
+        int count = messages.cardinality();
+        boolean convert = ccnb && isCompact();
+        if (count == size() && !convert) {
+            return packet();
+        }
+        ArrayList<ByteBuffer> selected = new ArrayList<>(count);
+        for (int i = messages.nextSetBit(0); i >= 0; i = messages.nextSetBit(i + 1)) {
+            selected.add(convert ? ByteBuffer.wrap(ccnbMessage(i)) : message(i).packet());
+        }
+        if (count == 1) {
+            return selected.get(0);
+        }
+        return ByteBuffer.wrap(MulticastBatch.pack(selected, isCompact() && !convert));
+    }
+
+    /**
+     * Encapsulates the batch into Interest packets, one for each RP the
+     * messages are sent to (see split).
+     *
+     * @param plans the split plans under the current CD to RP mapping.
+     * @param binary if the packets are carried as raw name components, or as
+     * base64 text.
+     * @return encapsulated Interest packets.
+     * @throws IOException
+     */
+    public LinkedList<Interest> encapsulate(SplitPlanCache plans, boolean binary) throws IOException {
+        LinkedList<Interest> ret = new LinkedList<>();
+        for (Map.Entry<ContentName, byte[]> part : split(plans).entrySet()) {
+            ret.add(encapsulate(part.getKey(), part.getValue(), binary));
+        }
+        return ret;
+    }
+
+    /**
+     * Split the batch among the RPs its messages are sent to. Each message is
+     * split according to its plan (see SplitPlan), and the parts sent to the
+     * same RP are packed into one batch, or kept as a Multicast if there is
+     * only one.
+     *
+     * @param plans the split plans under the current CD to RP mapping.
+     * @return the ccnb packet (a MulticastBatch or a Multicast) of each RP.
+     * @throws IOException
+     */
+    public LinkedHashMap<ContentName, byte[]> split(SplitPlanCache plans) throws IOException {
+        LinkedHashMap<ContentName, ArrayList<ByteBuffer>> groups = new LinkedHashMap<>();
+        for (int m = 0; m < size(); m++) {
+            MulticastView message = _messages[m];
+            SplitPlan plan = plans.get(message.contentNames());
+            ByteBuffer content = message.content(), trailer = message.trailer();
+            for (int i = 0; i < plan.size(); i++) {
+                ArrayList<ByteBuffer> group = groups.get(plan.rp(i));
+                if (group == null) {
+                    groups.put(plan.rp(i), group = new ArrayList<>());
+                }
+                group.add(ByteBuffer.wrap(plan.multicast(i, content, trailer)));
+            }
+        }
+        LinkedHashMap<ContentName, byte[]> ret = new LinkedHashMap<>();
+        for (Map.Entry<ContentName, ArrayList<ByteBuffer>> entry : groups.entrySet()) {
+            ArrayList<ByteBuffer> group = entry.getValue();
+            ret.put(entry.getKey(), group.size() == 1 ? group.get(0).array() : MulticastBatch.pack(group, false));
+        }
+        return ret;
+    }
+
+    /**
+     * Encapsulates a packet of split() to its RP: /RPName/batch/... for a
+     * batch, /RPName/multicast/... for a Multicast.
+     *
+     * @param rp the name of the RP.
+     * @param packet the ccnb MulticastBatch or Multicast.
+     * @param binary if the packet is carried as a raw name component, or as
+     * base64 text.
+     * @return the encapsulated Interest.
+     */
+    public static Interest encapsulate(ContentName rp, byte[] packet, boolean binary) {
+        byte[] type = PacketClassifier.type(ByteBuffer.wrap(packet)) == COPSSProtocolDTags.MulticastBatch ? Encapsulation.BATCH_COMPONENT : Encapsulation.MULTICAST_COMPONENT;
+        return new Interest(new ContentName(rp, type, Encapsulation.component(packet, binary)));
+    }
+
+    /**
+     * Decode the whole batch.
+     *
+     * @return the batch, with copies of the contents.
+     * @throws ContentDecodingException
+     */
+    public MulticastBatch toMulticastBatch() throws ContentDecodingException {
+        LinkedList<Multicast> multicasts = new LinkedList<>();
+        for (int i = 0; i < size(); i++) {
+            multicasts.add(_messages[i].toMulticast());
+        }
+        return new MulticastBatch(multicasts);
+    }
+
+    private byte[] ccnbMessage(int i) throws ContentEncodingException, ContentDecodingException {
+        if (_ccnbMessages == null) {
+            _ccnbMessages = new byte[size()][];
+        }
+        if (_ccnbMessages[i] == null) {
+            _ccnbMessages[i] = _messages[i].toMulticast().encode();
+        }
+        return _ccnbMessages[i];
+    }
+
+    private void parse() throws ContentDecodingException {
+        ByteBuffer buffer = _packet.duplicate();
+        int count, end;
+        if (isCompact()) {
+            try {
+                int[] header = CompactFormat.readHeader(buffer, CompactFormat.TYPE_MULTICAST_BATCH);
+                count = header[1];
+                end = buffer.position() + header[2];
+            } catch (BufferUnderflowException ex) {
+                throw CompactFormat.truncated(ex);
+            }
+            if (end > buffer.limit()) {
+                throw new ContentDecodingException("Truncated compact COPSS packet.");
+            }
+            buffer.limit(end);
+        } else {
+            CCNBScanner scanner = new CCNBScanner(buffer);
+            scanner.readStartElement(COPSSProtocolDTags.MulticastBatch);
+            count = scanner.readIntegerElement(COPSSProtocolDTags.MulticastCount);
+            buffer.position(scanner.position());
+        }
+        if (count == 0) {
+            throw new ContentDecodingException("Empty MulticastBatch.");
+        }
+        MulticastView[] messages = new MulticastView[count];
+        for (int i = 0; i < count; i++) {
+            messages[i] = MulticastView.next(buffer);
+        }
+        if (isCompact() ? buffer.hasRemaining() : !new CCNBScanner(buffer).atClose()) {
+            throw new ContentDecodingException("Invalid end of MulticastBatch at " + buffer.position());
+        }
+        _messages = messages;
+    }
+
+    @Override
+    public String toString() {
+        try {
+            return String.format("MulticastBatchView: %d messages, %d bytes", size(), _packet.remaining());
+        } catch (ContentDecodingException ex) {
+            return "MulticastBatchView: " + ex.getMessage();
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package copss.protocol;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import org.ccnx.ccn.impl.encoding.BinaryXMLCodec;
+import org.ccnx.ccn.impl.encoding.CCNProtocolDTags;
+import org.ccnx.ccn.io.content.ContentDecodingException;
+import org.ccnx.ccn.protocol.ContentName;
+import org.ccnx.ccn.protocol.Interest;
+
+/**
+ * A read-only view of a ccnb (or compact) encoded Multicast packet in a
+ * buffer.
+ *
+ * The CDs are decoded on the first call of contentNames(); the content is
+ * never copied unless toMulticast() is called. The buffer must not change
+ * while the view is used.
+ *
+ * @author Jiachen Chen
+ */
+public class MulticastView {
+
+    private final ByteBuffer _packet;
+    private LinkedList<ContentName> _contentNames;
+    private int _contentOffset, _contentLength;
+    /**
+     * The fields after the content in ccnb (before the CLOSE of Multicast).
+     */
+    private int _trailerOffset, _trailerEnd;
+    private long _fragmentID;
+    private int _fragmentIndex, _fragmentCount;
+
+    /**
+     * Create a view of a Multicast packet.
+     *
+     * @param packet the packet, from position to limit (not changed).
+     */
+    public MulticastView(ByteBuffer packet) {
+        _packet = packet;
+    }
+
+    /**
+     * Get a view of the multicast encapsulated in an Interest. A binary
+     * encapsulated multicast is read in place, from the name component.
+     *
+     * @param interest the Interest.
+     * @return the view, or null if the Interest is not an encapsulated
+     * multicast.
+     * @throws IOException
+     */
+    public static MulticastView decapsulate(Interest interest) throws IOException {
+        byte[] component = Encapsulation.packetComponent(interest.name(), Encapsulation.MULTICAST_COMPONENT);
+        if (component == null) {
+            return null;
+        }
+        if (Encapsulation.isBinary(component)) {
+            return new MulticastView(Encapsulation.packet(component));
+        }
+        Multicast multicast = new Multicast();
+        multicast.decapsulate(interest);
+        return new MulticastView(ByteBuffer.wrap(multicast.encode()));
+    }
+
+    /**
+     * Read a multicast from a sequence of encoded multicasts (e.g. in a
+     * MulticastBatch).
+     *
+     * @param packets the multicasts, the position is moved to the end of the
+     * one read.
+     * @return the view of the multicast, limited to its own bytes.
+     * @throws ContentDecodingException
+     */
+    static MulticastView next(ByteBuffer packets) throws ContentDecodingException {
+        ByteBuffer packet = packets.duplicate();
+        MulticastView ret = new MulticastView(packet);
+        ret.parse();
+        int end = ret._contentOffset + ret._contentLength;
+        if (!ret.isCompact()) {
+            end = ret._trailerEnd;
+            if (end >= packet.limit() || packet.get(end) != BinaryXMLCodec.XML_CLOSE) {
+                throw new ContentDecodingException("Expected CLOSE of Multicast at " + end);
+            }
+            end++;
+        }
+        packet.limit(end);
+        packets.position(end);
+        return ret;
+    }
+
+    /**
+     * Get the encoded multicast.
+     *
+     * @return the packet, from position to limit.
+     */
+    public ByteBuffer packet() {
+        return _packet.duplicate();
+    }
+
+    /**
+     * Dangerous: the same list is returned on each call. Do NOT change
+     * content!
+     *
+     * @return the CDs of the multicast.
+     * @throws ContentDecodingException
+     */
+    public LinkedList<ContentName> contentNames() throws ContentDecodingException {
+        if (_contentNames == null) {
+            parse();
+        }
+        return _contentNames;
+    }
+
+    /**
+     * Get the content without copying it.
+     *
+     * @return a read-only buffer of the content.
+     * @throws ContentDecodingException
+     */
+    public ByteBuffer content() throws ContentDecodingException {
+        if (_contentNames == null) {
+            parse();
+        }
+        ByteBuffer ret = _packet.duplicate();
+        ret.limit(_contentOffset + _contentLength).position(_contentOffset);
+        return ret.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Get the ccnb of the fields after the content (the fragment fields), to
+     * be copied into a Multicast re-encoded with other CDs (see SplitPlan).
+     *
+     * @return a read-only buffer of the fields, empty if there are none.
+     * @throws ContentDecodingException
+     */
+    public ByteBuffer trailer() throws ContentDecodingException {
+        if (_contentNames == null) {
+            parse();
+        }
+        if (isCompact()) {
+            return ByteBuffer.wrap(new Multicast(_contentNames, new byte[0], _fragmentID, _fragmentIndex, _fragmentCount).ccnbTrailer());
+        }
+        ByteBuffer ret = _packet.duplicate();
+        ret.limit(_trailerEnd).position(_trailerOffset);
+        return ret.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Check if the multicast is a fragment (see Multicast.fragment).
+     *
+     * @return if the fragment fields are set.
+     * @throws ContentDecodingException
+     */
+    public boolean isFragment() throws ContentDecodingException {
+        if (_contentNames == null) {
+            parse();
+        }
+        return _fragmentCount > 0;
+    }
+
+    /**
+     * Decode the whole multicast.
+     *
+     * @return the multicast, with a copy of the content.
+     * @throws ContentDecodingException
+     */
+    public Multicast toMulticast() throws ContentDecodingException {
+        ByteBuffer content = content();
+        byte[] buf = new byte[content.remaining()];
+        content.get(buf);
+        return new Multicast(new LinkedList<>(_contentNames), buf, _fragmentID, _fragmentIndex, _fragmentCount);
+    }
+
+    /**
+     * Check if the packet is in the compact format (see CompactFormat).
+     *
+     * @return if the packet is in the compact format, otherwise it is ccnb.
+     */
+    public boolean isCompact() {
+        return CompactFormat.isCompact(_packet);
+    }
+
+    private void parse() throws ContentDecodingException {
+        if (isCompact()) {
+            parseCompact();
+            return;
+        }
+        CCNBScanner scanner = new CCNBScanner(_packet);
+        scanner.readStartElement(COPSSProtocolDTags.Multicast);
+        LinkedList<ContentName> names = new LinkedList<>();
+        if (scanner.peekDTag() == COPSSProtocolDTags.ContentNameAddCount) {
+            int count = scanner.readIntegerElement(COPSSProtocolDTags.ContentNameAddCount);
+            for (int i = 0; i < count; i++) {
+                names.add(readName(scanner));
+            }
+        }
+        scanner.readStartElement(COPSSProtocolDTags.Content);
+        _contentLength = scanner.readData();
+        _contentOffset = scanner.position() - _contentLength;
+        scanner.readClose();
+        _trailerOffset = scanner.position();
+        if (scanner.peekDTag() == COPSSProtocolDTags.FragmentID) {
+            byte[] id = scanner.readBinaryElement(COPSSProtocolDTags.FragmentID);
+            if (id.length != 8) {
+                throw new ContentDecodingException("Invalid fragment ID length: " + id.length);
+            }
+            _fragmentID = ByteBuffer.wrap(id).getLong();
+            _fragmentIndex = scanner.readIntegerElement(COPSSProtocolDTags.FragmentIndex);
+            _fragmentCount = scanner.readIntegerElement(COPSSProtocolDTags.FragmentCount);
+        }
+        _trailerEnd = scanner.position();
+        _contentNames = names;
+    }
+
+    private void parseCompact() throws ContentDecodingException {
+        ByteBuffer buffer = _packet.duplicate();
+        LinkedList<ContentName> names = new LinkedList<>();
+        try {
+            int[] header = CompactFormat.readHeader(buffer, CompactFormat.TYPE_MULTICAST);
+            for (int i = 0; i < header[1]; i++) {
+                names.add(CompactFormat.readName(buffer));
+            }
+            if ((header[0] & CompactFormat.FLAG_FRAGMENT) != 0) {
+                _fragmentID = buffer.getLong();
+                _fragmentIndex = CompactFormat.readVarint(buffer);
+                _fragmentCount = CompactFormat.readVarint(buffer);
+            }
+            if (buffer.remaining() < header[2]) {
+                throw new ContentDecodingException("Truncated compact COPSS packet.");
+            }
+            _contentOffset = buffer.position();
+            _contentLength = header[2];
+        } catch (BufferUnderflowException ex) {
+            throw CompactFormat.truncated(ex);
+        }
+        _contentNames = names;
+    }
+
+    private static ContentName readName(CCNBScanner scanner) throws ContentDecodingException {
+        scanner.readStartElement(CCNProtocolDTags.Name);
+        ArrayList<byte[]> components = new ArrayList<>();
+        while (!scanner.atClose()) {
+            components.add(scanner.readBinaryElement(CCNProtocolDTags.Component));
+        }
+        scanner.readClose();
+        return new ContentName(components.toArray(new byte[components.size()][]));
+    }
+
+    @Override
+    public String toString() {
+        try {
+            return String.format("MulticastView: CDs=%s, content=%d bytes", contentNames(), _contentLength);
+        } catch (ContentDecodingException ex) {
+            return "MulticastView: " + ex.getMessage();
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,121 @@
+package copss.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.ccnx.ccn.impl.encoding.CCNProtocolDTags;
+import org.ccnx.ccn.io.content.ContentDecodingException;
+import org.ccnx.ccn.protocol.ContentName;
+
+/**
+ * Classifies ccnb (or compact) encoded packets by reading only their headers (and, for
+ * Interests, the first name components), so that packets can be dispatched
+ * without being decoded.
+ *
+ * @author Jiachen Chen
+ */
+public final class PacketClassifier {
+
+    private PacketClassifier() {
+    }
+
+    /**
+     * Get the type of a packet: the DTAG of its top level element, e.g.
+     * COPSSProtocolDTags.Multicast, COPSSProtocolDTags.Control or
+     * CCNProtocolDTags.Interest. Packets in the compact format are reported
+     * with the DTAG of the same COPSS packet in ccnb.
+     *
+     * @param packet the packet, from position to limit (not changed).
+     * @return the DTAG, or -1 if the packet does not start with a DTAG.
+     */
+    public static int type(ByteBuffer packet) {
+        if (CompactFormat.isCompact(packet)) {
+            return CompactFormat.type(packet);
+        }
+        return (int) new CCNBScanner(packet).peekDTag();
+    }
+
+    /**
+     * Find the type component of an encapsulated COPSS packet
+     * (/RPName/type/packet, see Encapsulation): the second to last name
+     * component, as the RP name may have several.
+     *
+     * @param scanner the scanner, at the first name component. It is moved to
+     * the end of the name.
+     * @return the position of the type component, or -1 if the name has less
+     * than 3 components.
+     */
+    private static int typeComponent(CCNBScanner scanner) throws ContentDecodingException {
+        int count = 0, previous = -1, last = -1;
+        while (scanner.peekDTag() == CCNProtocolDTags.Component) {
+            previous = last;
+            last = scanner.position();
+            scanner.skipDataElement(CCNProtocolDTags.Component);
+            count++;
+        }
+        return count < 3 ? -1 : previous;
+    }
+
+    /**
+     * Check if an Interest is an encapsulated Control packet
+     * (/RPName/control/...) without copying its name.
+     *
+     * @param packet the Interest, from position to limit (not changed).
+     * @return if the Interest carries a Control packet.
+     */
+    public static boolean isEncapsulatedControl(ByteBuffer packet) {
+        try {
+            CCNBScanner scanner = new CCNBScanner(packet);
+            scanner.readStartElement(CCNProtocolDTags.Interest);
+            scanner.readStartElement(CCNProtocolDTags.Name);
+            int type = typeComponent(scanner);
+            if (type < 0) {
+                return false;
+            }
+            ByteBuffer component = packet.duplicate();
+            component.position(type);
+            scanner = new CCNBScanner(component);
+            scanner.readStartElement(CCNProtocolDTags.Component);
+            return scanner.dataEquals(Encapsulation.CONTROL_COMPONENT);
+        } catch (ContentDecodingException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Get the name of an encapsulated COPSS packet without its last component
+     * (the packet): /RPName/multicast, /RPName/batch or /RPName/control. Only
+     * the name components before the packet are copied.
+     *
+     * @param packet the Interest, from position to limit (not changed).
+     * @return the prefix, or null if the packet is not an encapsulated COPSS
+     * packet.
+     */
+    public static ContentName encapsulationPrefix(ByteBuffer packet) {
+        try {
+            CCNBScanner scanner = new CCNBScanner(packet);
+            scanner.readStartElement(CCNProtocolDTags.Interest);
+            scanner.readStartElement(CCNProtocolDTags.Name);
+            ByteBuffer components = packet.duplicate();
+            components.position(scanner.position());
+            int type = typeComponent(scanner);
+            if (type < 0) {
+                return null;
+            }
+            scanner = new CCNBScanner(components);
+            ArrayList<byte[]> prefix = new ArrayList<>();
+            byte[] component;
+            do {
+                component = scanner.readBinaryElement(CCNProtocolDTags.Component);
+                prefix.add(component);
+            } while (scanner.position() <= type);
+            if (!Arrays.equals(component, Encapsulation.MULTICAST_COMPONENT) && !Arrays.equals(component, Encapsulation.BATCH_COMPONENT)
+                    && !Arrays.equals(component, Encapsulation.CONTROL_COMPONENT)) {
+                return null;
+            }
+            return new ContentName(prefix.toArray(new byte[prefix.size()][]));
+        } catch (ContentDecodingException ex) {
+            return null;
+        }
+    }
+}
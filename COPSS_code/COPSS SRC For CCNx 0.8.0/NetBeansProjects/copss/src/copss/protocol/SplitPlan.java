@@ -0,0 +1,224 @@
+package copss.protocol;
+
+import copss.util.CDRPMapping;
+import copss.util.Utility;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import org.ccnx.ccn.impl.encoding.BinaryXMLCodec;
+import org.ccnx.ccn.impl.support.DataUtils;
+import org.ccnx.ccn.io.content.ContentEncodingException;
+import org.ccnx.ccn.protocol.ContentName;
+import org.ccnx.ccn.protocol.Interest;
+
+/**
+ * How a CD set is split among RPs: the CDs of each RP, the encapsulation
+ * name prefixes (/RP/multicast and /RP/control) and the ccnb encoding of a
+ * Multicast to each RP up to its content. Encapsulating a multicast with a
+ * plan only appends the content to the pre-encoded parts.
+ *
+ * Plans are immutable, so they can be cached (see SplitPlanCache) as long as
+ * the CD to RP mapping does not change.
+ *
+ * @author Jiachen Chen
+ */
+public final class SplitPlan {
+
+    /**
+     * Size of the tail of a Multicast encoded with 1 byte of content: BLOB
+     * header, content, CLOSE (Content), CLOSE (Multicast).
+     */
+    private static final int ONE_BYTE_TAIL = 4;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private final ContentName[] _rps;
+    private final ArrayList<LinkedList<ContentName>> _groups;
+    private final ContentName[] _multicastPrefixes, _controlPrefixes;
+    /**
+     * ccnb of the Multicast to each RP, up to (including) the Content tag.
+     */
+    private final byte[][] _multicastHeads;
+
+    private SplitPlan(HashMap<ContentName, LinkedList<ContentName>> split) throws ContentEncodingException {
+        int size = split.size();
+        _rps = new ContentName[size];
+        _groups = new ArrayList<>(size);
+        _multicastPrefixes = new ContentName[size];
+        _controlPrefixes = new ContentName[size];
+        _multicastHeads = new byte[size][];
+        int i = 0;
+        for (Map.Entry<ContentName, LinkedList<ContentName>> entry : split.entrySet()) {
+            _rps[i] = entry.getKey();
+            _groups.add(entry.getValue());
+            _multicastPrefixes[i] = new ContentName(entry.getKey(), Multicast.MULTICAST_ENCAPSULATE_NAME);
+            _controlPrefixes[i] = new ContentName(entry.getKey(), Control.CONTROL_ENCAPSULATE_NAME);
+            byte[] encoded = new Multicast(entry.getValue(), new byte[1]).encode();
+            _multicastHeads[i] = new byte[encoded.length - ONE_BYTE_TAIL];
+            System.arraycopy(encoded, 0, _multicastHeads[i], 0, _multicastHeads[i].length);
+            i++;
+        }
+    }
+
+    /**
+     * Split a CD set according to a CD to RP mapping. CDs without RP are
+     * dropped (see Utility.splitContentNames).
+     *
+     * @param mapping the CD to RP mapping.
+     * @param CDs the CDs.
+     * @return the plan.
+     * @throws ContentEncodingException
+     */
+    public static SplitPlan create(CDRPMapping mapping, Collection<ContentName> CDs) throws ContentEncodingException {
+        return new SplitPlan(Utility.splitContentNames(mapping, CDs));
+    }
+
+    /**
+     * Get the number of RPs the CD set is split to.
+     *
+     * @return the number of groups.
+     */
+    public int size() {
+        return _rps.length;
+    }
+
+    /**
+     * Get the name of an RP.
+     *
+     * @param i the index of the group.
+     * @return the RP of group(i).
+     */
+    public ContentName rp(int i) {
+        return _rps[i];
+    }
+
+    /**
+     * Dangerous: original list returned. Do NOT change content!
+     *
+     * @param i the index of the group.
+     * @return the CDs sent to rp(i).
+     */
+    public LinkedList<ContentName> group(int i) {
+        return _groups.get(i);
+    }
+
+    /**
+     * Get the name prefix of the Control packets encapsulated to rp(i).
+     *
+     * @param i the index of the group.
+     * @return /rp(i)/control.
+     */
+    public ContentName controlPrefix(int i) {
+        return _controlPrefixes[i];
+    }
+
+    /**
+     * Encapsulates a multicast with the CD set of the plan into Interest
+     * packet(s), the same as Multicast.encapsulate.
+     *
+     * @param content the content of the multicast, from position to limit
+     * (not changed).
+     * @param binary if the packets are carried as raw name components, or as
+     * base64 text (understood by old routers).
+     * @return encapsulated Interest packets.
+     */
+    public LinkedList<Interest> encapsulateMulticast(ByteBuffer content, boolean binary) {
+        return encapsulateMulticast(content, EMPTY, binary);
+    }
+
+    /**
+     * Encapsulates a multicast with the CD set of the plan and fields after
+     * the content (e.g. a fragment, see MulticastView.trailer).
+     *
+     * @param content the content of the multicast, from position to limit
+     * (not changed).
+     * @param trailer the ccnb of the fields after the content (not changed).
+     * @param binary if the packets are carried as raw name components, or as
+     * base64 text (understood by old routers).
+     * @return encapsulated Interest packets.
+     */
+    public LinkedList<Interest> encapsulateMulticast(ByteBuffer content, ByteBuffer trailer, boolean binary) {
+        LinkedList<Interest> ret = new LinkedList<>();
+        for (int i = 0; i < _rps.length; i++) {
+            ret.add(encapsulateMulticast(i, content, trailer, binary));
+        }
+        return ret;
+    }
+
+    /**
+     * Encapsulates the part of a multicast to rp(i).
+     *
+     * @param i the index of the group.
+     * @param content the content of the multicast, from position to limit
+     * (not changed).
+     * @param trailer the ccnb of the fields after the content (not changed).
+     * @param binary if the packet is carried as a raw name component, or as
+     * base64 text.
+     * @return /rp(i)/multicast/(Multicast with the CDs of group(i)).
+     */
+    public Interest encapsulateMulticast(int i, ByteBuffer content, ByteBuffer trailer, boolean binary) {
+        int offset = binary ? 1 : 0;
+        byte[] packet = new byte[offset + multicastSize(i, content, trailer)];
+        if (binary) {
+            packet[0] = Encapsulation.BINARY_MARKER;
+        }
+        writeMulticast(i, content, trailer, packet, offset);
+        if (!binary) {
+            packet = DataUtils.getBytesFromUTF8String(
+                    DataUtils.base64Encode(packet, Integer.MAX_VALUE).replaceAll("\n|\r", ""));
+        }
+        return new Interest(new ContentName(_multicastPrefixes[i], packet));
+    }
+
+    /**
+     * Encode the Multicast to rp(i) with a content, in ccnb.
+     *
+     * @param i the index of the group.
+     * @param content the content of the multicast, from position to limit
+     * (not changed).
+     * @param trailer the ccnb of the fields after the content (not changed).
+     * @return the Multicast with the CDs of group(i).
+     */
+    public byte[] multicast(int i, ByteBuffer content, ByteBuffer trailer) {
+        byte[] packet = new byte[multicastSize(i, content, trailer)];
+        writeMulticast(i, content, trailer, packet, 0);
+        return packet;
+    }
+
+    private int multicastSize(int i, ByteBuffer content, ByteBuffer trailer) {
+        int length = content.remaining();
+        // an empty content has no BLOB header, as in XMLEncoder
+        int headerSize = length == 0 ? 0 : BinaryXMLCodec.numEncodingBytes(length);
+        return _multicastHeads[i].length + headerSize + length + trailer.remaining() + 2;
+    }
+
+    private void writeMulticast(int i, ByteBuffer content, ByteBuffer trailer, byte[] packet, int offset) {
+        byte[] head = _multicastHeads[i];
+        int length = content.remaining();
+        System.arraycopy(head, 0, packet, offset, head.length);
+        offset += head.length;
+        if (length > 0) {
+            offset += CCNBScanner.writeHeader(BinaryXMLCodec.XML_BLOB, length, packet, offset);
+            content.duplicate().get(packet, offset, length);
+            offset += length;
+        }
+        packet[offset++] = BinaryXMLCodec.XML_CLOSE;
+        int trailerLength = trailer.remaining();
+        trailer.duplicate().get(packet, offset, trailerLength);
+        offset += trailerLength;
+        packet[offset] = BinaryXMLCodec.XML_CLOSE;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("SplitPlan:");
+        for (int i = 0; i < _rps.length; i++) {
+            sb.append("\n\t");
+            sb.append(_rps[i]);
+            sb.append(": ");
+            sb.append(_groups.get(i));
+        }
+        return sb.toString();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,105 @@
+package copss.protocol;
+
+import copss.util.CDRPMapping;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.ccnx.ccn.io.content.ContentEncodingException;
+import org.ccnx.ccn.protocol.ContentName;
+
+/**
+ * Caches the split plans (see SplitPlan) of CD sets under a CD to RP
+ * mapping. The cache is bounded and evicts the least recently used plan.
+ *
+ * A cache belongs to one mapping: when the mapping changes, a new cache is
+ * created with it, so a plan of the old mapping is never used with the new
+ * one.
+ *
+ * @author Jiachen Chen
+ */
+public class SplitPlanCache {
+
+    private final CDRPMapping _mapping;
+    private final int _capacity;
+    /**
+     * Keys are Lists of ContentNames, in the order of the packets.
+     */
+    private final LinkedHashMap<List<ContentName>, SplitPlan> _entries;
+    private final AtomicLong _hits = new AtomicLong(), _misses = new AtomicLong();
+
+    /**
+     * Create a split plan cache.
+     *
+     * @param mapping the CD to RP mapping.
+     * @param capacity the maximum number of plans, 0 to create a plan on
+     * each call.
+     */
+    public SplitPlanCache(CDRPMapping mapping, int capacity) {
+        _mapping = mapping;
+        _capacity = capacity;
+        _entries = new LinkedHashMap<List<ContentName>, SplitPlan>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<ContentName>, SplitPlan> eldest) {
+                return size() > _capacity;
+            }
+        };
+    }
+
+    /**
+     * Get the mapping the plans are created with.
+     *
+     * @return the CD to RP mapping.
+     */
+    public CDRPMapping mapping() {
+        return _mapping;
+    }
+
+    /**
+     * Get the maximum number of plans cached.
+     *
+     * @return the capacity.
+     */
+    public int capacity() {
+        return _capacity;
+    }
+
+    /**
+     * Get the plan of a CD set, created and cached on a miss.
+     *
+     * @param CDs the CDs, not changed afterwards by the caller.
+     * @return the plan.
+     * @throws ContentEncodingException
+     */
+    public SplitPlan get(List<ContentName> CDs) throws ContentEncodingException {
+        if (_capacity <= 0) {
+            return SplitPlan.create(_mapping, CDs);
+        }
+        SplitPlan plan;
+        synchronized (_entries) {
+            plan = _entries.get(CDs);
+        }
+        if (plan != null) {
+            _hits.incrementAndGet();
+            return plan;
+        }
+        _misses.incrementAndGet();
+        plan = SplitPlan.create(_mapping, CDs);
+        synchronized (_entries) {
+            _entries.put(new ArrayList<>(CDs), plan);
+        }
+        return plan;
+    }
+
+    @Override
+    public String toString() {
+        int size;
+        synchronized (_entries) {
+            size = _entries.size();
+        }
+        return String.format("SplitPlanCache: size=%d/%d, hits=%d, misses=%d, %s",
+                size, _capacity, _hits.get(), _misses.get(), _mapping);
+    }
+}
@@ -0,0 +1,286 @@
+package copss.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.ccnx.ccn.protocol.ContentName;
+import org.ccnx.ccn.protocol.MalformedContentNameStringException;
+
+/**
+ * Immutable CD to RP mapping. The RP of a CD is the one of its longest
+ * prefix in the mapping, as in an InterestTable.
+ *
+ * The prefixes are compiled into a trie in flat arrays (see CDRegistry):
+ * a node keeps its parent, its last component and the index of its RP.
+ * Children are found through an open addressing table keyed by (parent,
+ * component), so a lookup walks the CD once without locking or allocating.
+ * The table never changes after it is built, a new mapping is built and
+ * swapped in instead.
+ *
+ * @author Jiachen Chen
+ */
+public final class CDRPMapping {
+
+    private static final int ROOT = 0;
+    private static final int NO_NODE = -1;
+    private static final int NO_RP = -1;
+    private final int[] _parent;
+    private final byte[][] _component;
+    /**
+     * Index of the RP of each node in _rpNames, NO_RP if the node is not a
+     * prefix in the mapping.
+     */
+    private final int[] _rp;
+    private final ContentName[] _rpNames;
+    /**
+     * Child table: (node + 1), 0 if empty.
+     */
+    private final int[] _slots;
+    private final int _nodeCount, _ruleCount;
+
+    /**
+     * Compile a mapping.
+     *
+     * @param rules CD prefix to RP name.
+     */
+    public CDRPMapping(Map<ContentName, ContentName> rules) {
+        this(build(rules));
+    }
+
+    private CDRPMapping(Builder builder) {
+        _nodeCount = builder._count;
+        _ruleCount = builder._rules;
+        _parent = Arrays.copyOf(builder._parent, _nodeCount);
+        _component = Arrays.copyOf(builder._component, _nodeCount);
+        _rp = Arrays.copyOf(builder._rp, _nodeCount);
+        _rpNames = builder._rpNames.toArray(new ContentName[builder._rpNames.size()]);
+        _slots = builder._slots;
+    }
+
+    /**
+     * Load a mapping file. Each line holds a CD prefix and its RP name,
+     * separated by white spaces, e.g. "/sports /RP1". Empty lines and lines
+     * starting with # are ignored. If a prefix appears more than once, the
+     * last line wins.
+     *
+     * @param file the mapping file.
+     * @return the compiled mapping.
+     * @throws IOException if the file cannot be read or a line is invalid.
+     */
+    public static CDRPMapping load(File file) throws IOException {
+        Builder builder = new Builder();
+        // RP names are shared by many rules, parse each of them once
+        HashMap<String, ContentName> rps = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            int lineNumber = 0;
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] parts = line.split("\\s+");
+                if (parts.length != 2) {
+                    throw new IOException(String.format("%s:%d: expecting \"%%CD%% %%RP%%\"", file, lineNumber));
+                }
+                try {
+                    ContentName rp = rps.get(parts[1]);
+                    if (rp == null) {
+                        rps.put(parts[1], rp = ContentName.fromNative(parts[1]));
+                    }
+                    builder.add(parseName(parts[0]), rp);
+                } catch (MalformedContentNameStringException ex) {
+                    throw new IOException(String.format("%s:%d: %s", file, lineNumber, ex.getMessage()), ex);
+                }
+            }
+        }
+        return new CDRPMapping(builder);
+    }
+
+    private static Builder build(Map<ContentName, ContentName> rules) {
+        Builder builder = new Builder();
+        for (Map.Entry<ContentName, ContentName> rule : rules.entrySet()) {
+            builder.add(rule.getKey(), rule.getValue());
+        }
+        return builder;
+    }
+
+    /**
+     * Parse a name as ContentName.fromNative does. Names made of letters,
+     * digits and "-._" only (most of the CDs) are split directly, which is a
+     * lot faster for large files.
+     */
+    private static ContentName parseName(String name) throws MalformedContentNameStringException {
+        if (!name.startsWith("/")) {
+            return ContentName.fromNative(name);
+        }
+        ArrayList<byte[]> components = new ArrayList<>();
+        int start = 1;
+        for (int i = 1; i <= name.length(); i++) {
+            char c = i == name.length() ? '/' : name.charAt(i);
+            if (c == '/') {
+                if (i == start) {
+                    // empty component, leave it to ContentName
+                    return i == name.length() && i == 1 ? ContentName.ROOT : ContentName.fromNative(name);
+                }
+                components.add(name.substring(start, i).getBytes(StandardCharsets.US_ASCII));
+                start = i + 1;
+            } else if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '-' || c == '_' || c == '.')) {
+                return ContentName.fromNative(name);
+            }
+        }
+        return new ContentName(components.toArray(new byte[components.size()][]));
+    }
+
+    /**
+     * Get the RP of a CD.
+     *
+     * @param name the CD.
+     * @return the RP of the longest prefix of the CD in the mapping, or null.
+     */
+    public ContentName getValue(ContentName name) {
+        int node = ROOT;
+        int rp = _rp[ROOT];
+        for (int i = 0; i < name.count(); i++) {
+            node = findChild(node, name.component(i));
+            if (node == NO_NODE) {
+                break;
+            }
+            if (_rp[node] != NO_RP) {
+                rp = _rp[node];
+            }
+        }
+        return rp == NO_RP ? null : _rpNames[rp];
+    }
+
+    /**
+     * Get the number of prefixes in the mapping.
+     *
+     * @return the number of rules.
+     */
+    public int size() {
+        return _ruleCount;
+    }
+
+    /**
+     * Get the distinct RP names in the mapping.
+     *
+     * @return a copy of the RP names.
+     */
+    public ContentName[] rps() {
+        return _rpNames.clone();
+    }
+
+    private int findChild(int parent, byte[] component) {
+        int mask = _slots.length - 1;
+        int index = hash(parent, component) & mask;
+        while (true) {
+            int s = _slots[index];
+            if (s == 0) {
+                return NO_NODE;
+            }
+            if (_parent[s - 1] == parent && Arrays.equals(_component[s - 1], component)) {
+                return s - 1;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    private static int hash(int parent, byte[] component) {
+        // sibling components (e.g. team1, team2, ...) have close hash codes,
+        // spread them and the parents apart before probing
+        int h = parent * 0x9E3779B9 ^ Arrays.hashCode(component) * 0x85EBCA6B;
+        return h ^ (h >>> 16);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CDRPMapping: rules=%d, nodes=%d, RPs=%d", _ruleCount, _nodeCount, _rpNames.length);
+    }
+
+    /**
+     * Mutable trie used while compiling a mapping.
+     */
+    private static class Builder {
+
+        private int[] _parent = new int[16];
+        private byte[][] _component = new byte[16][];
+        private int[] _rp = new int[16];
+        private int[] _slots = new int[16];
+        private int _count = 1, _rules = 0;
+        private final ArrayList<ContentName> _rpNames = new ArrayList<>();
+        private final HashMap<ContentName, Integer> _rpIndices = new HashMap<>();
+
+        Builder() {
+            _parent[ROOT] = NO_NODE;
+            _rp[ROOT] = NO_RP;
+        }
+
+        void add(ContentName prefix, ContentName rpName) {
+            Integer rp = _rpIndices.get(rpName);
+            if (rp == null) {
+                rp = _rpNames.size();
+                _rpNames.add(rpName);
+                _rpIndices.put(rpName, rp);
+            }
+            int node = ROOT;
+            for (int i = 0; i < prefix.count(); i++) {
+                node = child(node, prefix.component(i));
+            }
+            if (_rp[node] == NO_RP) {
+                _rules++;
+            }
+            _rp[node] = rp;
+        }
+
+        private int child(int parent, byte[] component) {
+            int mask = _slots.length - 1;
+            int index = hash(parent, component) & mask;
+            for (int s = _slots[index]; s != 0; s = _slots[index]) {
+                if (_parent[s - 1] == parent && Arrays.equals(_component[s - 1], component)) {
+                    return s - 1;
+                }
+                index = (index + 1) & mask;
+            }
+            int node = _count++;
+            if (node == _parent.length) {
+                int capacity = _parent.length * 2;
+                _parent = Arrays.copyOf(_parent, capacity);
+                _component = Arrays.copyOf(_component, capacity);
+                _rp = Arrays.copyOf(_rp, capacity);
+            }
+            _parent[node] = parent;
+            _component[node] = component;
+            _rp[node] = NO_RP;
+            _slots[index] = node + 1;
+            // keep the child table at most half full
+            if (_count * 2 > _slots.length) {
+                rehash();
+            }
+            return node;
+        }
+
+        private void rehash() {
+            int[] slots = new int[_slots.length * 2];
+            int mask = slots.length - 1;
+            for (int s : _slots) {
+                if (s == 0) {
+                    continue;
+                }
+                int index = hash(_parent[s - 1], _component[s - 1]) & mask;
+                while (slots[index] != 0) {
+                    index = (index + 1) & mask;
+                }
+                slots[index] = s;
+            }
+            _slots = slots;
+        }
+    }
+}
\ No newline at end of file
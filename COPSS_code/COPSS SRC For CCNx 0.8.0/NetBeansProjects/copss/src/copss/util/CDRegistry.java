@@ -0,0 +1,241 @@
+package copss.util;
+
+import java.util.Arrays;
+import org.ccnx.ccn.protocol.ContentName;
+
+/**
+ * Registry of CDs. Each registered CD (and each of its prefixes) gets a
+ * stable int ID, kept until the CD is released as many times as it is
+ * registered.
+ *
+ * The CDs are stored as a trie in flat arrays: an ID only keeps its parent ID
+ * and its last component, so a prefix shared by many CDs (e.g. /sports) is
+ * stored once. Children are found through an open addressing table keyed by
+ * (parent ID, component). Released IDs are reused.
+ *
+ * @author Jiachen Chen
+ */
+public class CDRegistry {
+
+    /**
+     * ID of the root (/), always registered.
+     */
+    public static final int ROOT = 0;
+    /**
+     * Returned by lookup if a CD is not registered.
+     */
+    public static final int NO_ID = -1;
+    private static final int EMPTY = 0;
+    private static final int DELETED = -1;
+    /**
+     * Parent of each ID, NO_ID if the ID is free.
+     */
+    private int[] _parent = new int[16];
+    /**
+     * Last component of each ID.
+     */
+    private byte[][] _component = new byte[16][];
+    /**
+     * Number of registrations of each ID plus number of its children.
+     */
+    private int[] _refs = new int[16];
+    /**
+     * Number of IDs ever assigned.
+     */
+    private int _count = 1;
+    /**
+     * Released IDs, reused first.
+     */
+    private int[] _free = new int[16];
+    private int _freeCount = 0;
+    /**
+     * Child table: (ID + 1), EMPTY or DELETED.
+     */
+    private int[] _slots = new int[16];
+    private int _size = 0, _usedSlots = 0;
+
+    public CDRegistry() {
+        _parent[ROOT] = NO_ID;
+    }
+
+    /**
+     * Register a CD and all its prefixes.
+     *
+     * @param name the CD.
+     * @return the ID of the CD.
+     */
+    public synchronized int register(ContentName name) {
+        int id = ROOT;
+        for (int i = 0; i < name.count(); i++) {
+            byte[] component = name.component(i);
+            int child = findChild(id, component);
+            if (child == NO_ID) {
+                child = newChild(id, component);
+            }
+            id = child;
+        }
+        _refs[id]++;
+        return id;
+    }
+
+    /**
+     * Get the ID of a CD without registering it.
+     *
+     * @param name the CD.
+     * @return the ID, or NO_ID if the CD is not registered.
+     */
+    public synchronized int lookup(ContentName name) {
+        int id = ROOT;
+        for (int i = 0; i < name.count() && id != NO_ID; i++) {
+            id = findChild(id, name.component(i));
+        }
+        return id;
+    }
+
+    /**
+     * Release a registration of a CD. The ID (and the IDs of the prefixes
+     * nobody else uses) are freed after the last release.
+     *
+     * @param id the ID returned by register.
+     */
+    public synchronized void release(int id) {
+        if (id < 0 || id >= _count || (id != ROOT && _parent[id] == NO_ID) || _refs[id] <= 0) {
+            throw new IllegalArgumentException("ID not registered: " + id);
+        }
+        _refs[id]--;
+        while (id != ROOT && _refs[id] == 0) {
+            int parent = _parent[id];
+            removeSlot(id);
+            _parent[id] = NO_ID;
+            _component[id] = null;
+            if (_freeCount == _free.length) {
+                _free = Arrays.copyOf(_free, _free.length * 2);
+            }
+            _free[_freeCount++] = id;
+            _size--;
+            id = parent;
+            _refs[id]--;
+        }
+    }
+
+    /**
+     * Build the name of an ID.
+     *
+     * @param id the ID.
+     * @return the CD.
+     */
+    public synchronized ContentName name(int id) {
+        int depth = 0;
+        for (int i = id; i != ROOT; i = _parent[i]) {
+            depth++;
+        }
+        byte[][] components = new byte[depth][];
+        for (int i = id; i != ROOT; i = _parent[i]) {
+            components[--depth] = _component[i];
+        }
+        return new ContentName(components);
+    }
+
+    /**
+     * Get the number of registered CDs and prefixes, not including the root.
+     *
+     * @return the number of IDs in use.
+     */
+    public synchronized int size() {
+        return _size;
+    }
+
+    private int findChild(int parent, byte[] component) {
+        int mask = _slots.length - 1;
+        int index = hash(parent, component) & mask;
+        while (true) {
+            int s = _slots[index];
+            if (s == EMPTY) {
+                return NO_ID;
+            }
+            if (s != DELETED && _parent[s - 1] == parent && Arrays.equals(_component[s - 1], component)) {
+                return s - 1;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    private int newChild(int parent, byte[] component) {
+        int id;
+        if (_freeCount > 0) {
+            id = _free[--_freeCount];
+        } else {
+            id = _count++;
+            if (id == _parent.length) {
+                int capacity = _parent.length * 2;
+                _parent = Arrays.copyOf(_parent, capacity);
+                _component = Arrays.copyOf(_component, capacity);
+                _refs = Arrays.copyOf(_refs, capacity);
+            }
+        }
+        _parent[id] = parent;
+        _component[id] = component;
+        _refs[id] = 0;
+        _refs[parent]++;
+        if ((_usedSlots + 1) * 4 > _slots.length * 3) {
+            rehash();
+        }
+        int mask = _slots.length - 1;
+        int index = hash(parent, component) & mask;
+        while (_slots[index] != EMPTY && _slots[index] != DELETED) {
+            index = (index + 1) & mask;
+        }
+        if (_slots[index] == EMPTY) {
+            _usedSlots++;
+        }
+        _slots[index] = id + 1;
+        _size++;
+        return id;
+    }
+
+    private void removeSlot(int id) {
+        int mask = _slots.length - 1;
+        int index = hash(_parent[id], _component[id]) & mask;
+        while (_slots[index] != id + 1) {
+            index = (index + 1) & mask;
+        }
+        _slots[index] = DELETED;
+    }
+
+    /**
+     * Rebuild the child table without DELETED slots, doubled if it is more
+     * than half full.
+     */
+    private void rehash() {
+        int capacity = _slots.length;
+        if (_size * 2 >= capacity) {
+            capacity *= 2;
+        }
+        int[] slots = new int[capacity];
+        int mask = capacity - 1;
+        for (int s : _slots) {
+            if (s == EMPTY || s == DELETED) {
+                continue;
+            }
+            int index = hash(_parent[s - 1], _component[s - 1]) & mask;
+            while (slots[index] != EMPTY) {
+                index = (index + 1) & mask;
+            }
+            slots[index] = s;
+        }
+        _slots = slots;
+        _usedSlots = _size;
+    }
+
+    private static int hash(int parent, byte[] component) {
+        // sibling components (e.g. team1, team2, ...) have close hash codes,
+        // spread them and the parents apart before probing
+        int h = parent * 0x9E3779B9 ^ Arrays.hashCode(component) * 0x85EBCA6B;
+        return h ^ (h >>> 16);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("CDRegistry: size=%d, capacity=%d", _size, _parent.length);
+    }
+}
\ No newline at end of file
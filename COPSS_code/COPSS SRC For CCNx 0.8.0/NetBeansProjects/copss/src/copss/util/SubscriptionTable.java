@@ -0,0 +1,607 @@
+package copss.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import org.ccnx.ccn.impl.InterestTable.Entry;
+import org.ccnx.ccn.protocol.ContentName;
+import org.ccnx.ccn.protocol.Interest;
+
+/**
+ * Concurrent subscription table: a name trie mapping CDs (prefixes) to
+ * values.
+ *
+ * Lookups match the same way as an InterestTable filled with ContentNames: an
+ * entry matches a CD if its name is a prefix of the CD. Readers never lock;
+ * they walk an immutable snapshot of the trie. Writers build the next snapshot
+ * in a Batch, copying only the nodes on the modified paths, and publish it
+ * atomically on commit, so readers see either none or all of the changes of a
+ * batch. Batches are serialized.
+ *
+ * The trie does not keep the names of its entries. A node with entries holds
+ * the ID of its CD in a CDRegistry, so that the CDs are shared with the other
+ * tables of the registry. Names are built from the components on the path
+ * (or from the name looked up) only when entries are returned, never from
+ * the registry: the IDs released by a batch may be reused while readers still
+ * walk an older snapshot.
+ *
+ * @param <V> type of the values.
+ * @author Jiachen Chen
+ */
+public class SubscriptionTable<V> {
+
+    private static final Object[] NO_VALUES = new Object[0];
+    private static final Node[] NO_CHILDREN = new Node[0];
+    /**
+     * The current snapshot.
+     */
+    private volatile Node _root = new Node(null);
+    /**
+     * Serializes the batches.
+     */
+    private final ReentrantLock _writeLock = new ReentrantLock();
+    private final CDRegistry _registry;
+
+    /**
+     * Create a subscription table with its own CD registry.
+     */
+    public SubscriptionTable() {
+        this(new CDRegistry());
+    }
+
+    /**
+     * Create a subscription table registering its CDs in a (shared) registry.
+     *
+     * @param registry the CD registry.
+     */
+    public SubscriptionTable(CDRegistry registry) {
+        _registry = registry;
+    }
+
+    public CDRegistry registry() {
+        return _registry;
+    }
+
+    /**
+     * Start a batch of changes. Only one batch can be open at a time; the
+     * calling thread waits for the open one. The batch must be committed or
+     * aborted by the same thread.
+     *
+     * @return the new batch.
+     */
+    public Batch batch() {
+        _writeLock.lock();
+        return new Batch(_root);
+    }
+
+    /**
+     * Add a (name, value) entry in its own batch.
+     *
+     * @param name the name.
+     * @param value the value.
+     */
+    public void add(ContentName name, V value) {
+        Batch batch = batch();
+        batch.add(name, value);
+        batch.commit();
+    }
+
+    /**
+     * Remove a (name, value) entry in its own batch.
+     *
+     * @param name the name.
+     * @param value the value.
+     * @return the removed entry, or null if not found.
+     */
+    public Entry<V> remove(ContentName name, V value) {
+        Batch batch = batch();
+        Entry<V> ret = batch.remove(name, value);
+        batch.commit();
+        return ret;
+    }
+
+    /**
+     * Get all the entries whose names are prefixes of name, longest first.
+     *
+     * @param name the name to match.
+     * @return the matching entries.
+     */
+    public List<Entry<V>> getMatches(ContentName name) {
+        return getMatches(_root, name);
+    }
+
+    /**
+     * Get the values of all the entries whose names are prefixes of name,
+     * longest first.
+     *
+     * @param name the name to match.
+     * @return the matching values.
+     */
+    public List<V> getValues(ContentName name) {
+        return getValues(_root, name);
+    }
+
+    /**
+     * Get an entry with the longest name that is a prefix of name.
+     *
+     * @param name the name to match.
+     * @return the entry, or null if not found.
+     */
+    public Entry<V> getMatch(ContentName name) {
+        return getMatch(_root, name);
+    }
+
+    /**
+     * Get all the entries of the table.
+     *
+     * @return all the entries.
+     */
+    public List<Entry<V>> values() {
+        ArrayList<Entry<V>> ret = new ArrayList<>();
+        collect(_root, new ArrayList<byte[]>(), ret);
+        return ret;
+    }
+
+    /**
+     * Get the number of entries.
+     *
+     * @return the number of entries.
+     */
+    public int size() {
+        return count(_root);
+    }
+
+    /**
+     * Visit the values of all the entries whose names are prefixes of name,
+     * without allocating a result list.
+     *
+     * @param name the name to match.
+     * @param visitor the visitor.
+     */
+    public void visitValues(ContentName name, Visitor<? super V> visitor) {
+        visitValues(_root, name, visitor);
+    }
+
+    /**
+     * Get the current snapshot, so that several lookups see the same table.
+     *
+     * @return the current snapshot.
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(_root);
+    }
+
+    /**
+     * An immutable version of the table.
+     */
+    public class Snapshot {
+
+        private final Node _snapshot;
+
+        private Snapshot(Node root) {
+            _snapshot = root;
+        }
+
+        public List<Entry<V>> getMatches(ContentName name) {
+            return SubscriptionTable.this.getMatches(_snapshot, name);
+        }
+
+        public List<V> getValues(ContentName name) {
+            return SubscriptionTable.this.getValues(_snapshot, name);
+        }
+
+        public Entry<V> getMatch(ContentName name) {
+            return SubscriptionTable.this.getMatch(_snapshot, name);
+        }
+
+        public void visitValues(ContentName name, Visitor<? super V> visitor) {
+            SubscriptionTable.this.visitValues(_snapshot, name, visitor);
+        }
+    }
+
+    /**
+     * Receives the values matched by visitValues.
+     *
+     * @param <V> type of the values.
+     */
+    public interface Visitor<V> {
+
+        void visit(V value);
+    }
+
+    /**
+     * A set of changes published atomically. Reads of a batch see its own
+     * changes.
+     */
+    public class Batch {
+
+        private Node _draft;
+        private boolean _open = true;
+        /**
+         * Owner of the nodes created by this batch. Nodes keep it after
+         * commit, so it must not keep the batch (or its lists) alive.
+         */
+        private final Object _token = new Object();
+        /**
+         * CD IDs registered and released by this batch. Registrations are
+         * undone on abort, releases are done on commit.
+         */
+        private final ArrayList<Integer> _registered = new ArrayList<>(), _released = new ArrayList<>();
+
+        private Batch(Node root) {
+            _draft = root;
+        }
+
+        /**
+         * Add a (name, value) entry. Adding an existing entry again adds a
+         * duplicate, as in InterestTable.
+         *
+         * @param name the name.
+         * @param value the value.
+         */
+        public void add(ContentName name, V value) {
+            checkOpen();
+            _draft = mutable(_draft);
+            Node node = _draft;
+            for (int i = 0; i < name.count(); i++) {
+                byte[] component = name.component(i);
+                int index = find(node._children, component);
+                Node child;
+                if (index >= 0) {
+                    child = mutable(node._children[index]);
+                    node._children[index] = child;
+                } else {
+                    child = new Node(component);
+                    child._owner = _token;
+                    index = -index - 1;
+                    Node[] children = new Node[node._children.length + 1];
+                    System.arraycopy(node._children, 0, children, 0, index);
+                    System.arraycopy(node._children, index, children, index + 1, node._children.length - index);
+                    children[index] = child;
+                    node._children = children;
+                }
+                node = child;
+            }
+            if (node._id == CDRegistry.NO_ID) {
+                node._id = _registry.register(name);
+                _registered.add(node._id);
+            }
+            Object[] values = Arrays.copyOf(node._values, node._values.length + 1);
+            values[values.length - 1] = value;
+            node._values = values;
+        }
+
+        /**
+         * Remove a (name, value) entry, with all its duplicates as in
+         * InterestTable.
+         *
+         * @param name the name.
+         * @param value the value.
+         * @return the removed entry, or null if not found.
+         */
+        public Entry<V> remove(ContentName name, V value) {
+            checkOpen();
+            int count = name.count();
+            // look up first, so that nothing is copied if the entry does not exist.
+            Node node = _draft;
+            for (int i = 0; i < count && node != null; i++) {
+                int index = find(node._children, name.component(i));
+                node = index >= 0 ? node._children[index] : null;
+            }
+            if (node == null || indexOf(node._values, value) < 0) {
+                return null;
+            }
+
+            Node[] path = new Node[count + 1];
+            int[] indices = new int[count];
+            _draft = path[0] = mutable(_draft);
+            for (int i = 0; i < count; i++) {
+                Node parent = path[i];
+                indices[i] = find(parent._children, name.component(i));
+                parent._children[indices[i]] = path[i + 1] = mutable(parent._children[indices[i]]);
+            }
+            node = path[count];
+            Entry<V> ret = new TableEntry<>(name, value);
+            Object[] values = new Object[node._values.length];
+            int size = 0;
+            for (Object v : node._values) {
+                if (!equal(v, value)) {
+                    values[size++] = v;
+                }
+            }
+            node._values = size == 0 ? NO_VALUES : Arrays.copyOf(values, size);
+            if (size == 0) {
+                _released.add(node._id);
+                node._id = CDRegistry.NO_ID;
+            }
+
+            // prune empty nodes
+            for (int i = count; i > 0; i--) {
+                Node n = path[i];
+                if (n._values.length > 0 || n._children.length > 0) {
+                    break;
+                }
+                Node parent = path[i - 1];
+                Node[] children = parent._children.length == 1 ? NO_CHILDREN : new Node[parent._children.length - 1];
+                if (children.length > 0) {
+                    System.arraycopy(parent._children, 0, children, 0, indices[i - 1]);
+                    System.arraycopy(parent._children, indices[i - 1] + 1, children, indices[i - 1], children.length - indices[i - 1]);
+                }
+                parent._children = children;
+            }
+            return ret;
+        }
+
+        public List<Entry<V>> getMatches(ContentName name) {
+            return SubscriptionTable.this.getMatches(_draft, name);
+        }
+
+        public List<V> getValues(ContentName name) {
+            return SubscriptionTable.this.getValues(_draft, name);
+        }
+
+        public Entry<V> getMatch(ContentName name) {
+            return SubscriptionTable.this.getMatch(_draft, name);
+        }
+
+        public List<Entry<V>> values() {
+            ArrayList<Entry<V>> ret = new ArrayList<>();
+            collect(_draft, new ArrayList<byte[]>(), ret);
+            return ret;
+        }
+
+        /**
+         * Publish all the changes atomically and close the batch.
+         */
+        public void commit() {
+            checkOpen();
+            _open = false;
+            _root = _draft;
+            _draft = null;
+            for (int id : _released) {
+                _registry.release(id);
+            }
+            _registered.clear();
+            _released.clear();
+            _writeLock.unlock();
+        }
+
+        /**
+         * Discard all the changes and close the batch.
+         */
+        public void abort() {
+            if (_open) {
+                _open = false;
+                _draft = null;
+                for (int id : _registered) {
+                    _registry.release(id);
+                }
+                _registered.clear();
+                _released.clear();
+                _writeLock.unlock();
+            }
+        }
+
+        private void checkOpen() {
+            if (!_open) {
+                throw new IllegalStateException("Batch already closed!");
+            }
+        }
+
+        /**
+         * Get a node that can be changed by this batch: the node itself if it
+         * is created by this batch, otherwise a copy.
+         */
+        private Node mutable(Node node) {
+            if (node._owner == _token) {
+                return node;
+            }
+            Node copy = new Node(node._component);
+            copy._id = node._id;
+            copy._values = node._values;
+            copy._children = node._children.length == 0 ? NO_CHILDREN : node._children.clone();
+            copy._owner = _token;
+            return copy;
+        }
+    }
+
+    private List<Entry<V>> getMatches(Node root, ContentName name) {
+        ArrayList<Entry<V>> ret = new ArrayList<>();
+        Node node = root;
+        for (int i = 0; node != null; i++) {
+            if (node._values.length > 0) {
+                addEntries(node, prefix(name, i), ret);
+            }
+            node = i < name.count() ? child(node, name.component(i)) : null;
+        }
+        reverse(ret);
+        return ret;
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<V> getValues(Node root, ContentName name) {
+        ArrayList<V> ret = new ArrayList<>();
+        Node node = root;
+        for (int i = 0; node != null; i++) {
+            for (Object v : node._values) {
+                ret.add((V) v);
+            }
+            node = i < name.count() ? child(node, name.component(i)) : null;
+        }
+        reverse(ret);
+        return ret;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void visitValues(Node root, ContentName name, Visitor<? super V> visitor) {
+        Node node = root;
+        for (int i = 0; node != null; i++) {
+            for (Object v : node._values) {
+                visitor.visit((V) v);
+            }
+            node = i < name.count() ? child(node, name.component(i)) : null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Entry<V> getMatch(Node root, ContentName name) {
+        Node match = null;
+        int depth = 0;
+        Node node = root;
+        for (int i = 0; node != null; i++) {
+            if (node._values.length > 0) {
+                match = node;
+                depth = i;
+            }
+            node = i < name.count() ? child(node, name.component(i)) : null;
+        }
+        return match == null ? null : new TableEntry<>(prefix(name, depth), (V) match._values[0]);
+    }
+
+    /**
+     * Collect the entries under a node.
+     *
+     * @param node the node.
+     * @param path the components from the root to the node.
+     * @param ret the entries collected.
+     */
+    private void collect(Node node, ArrayList<byte[]> path, List<Entry<V>> ret) {
+        if (node._values.length > 0) {
+            addEntries(node, new ContentName(path.toArray(new byte[path.size()][])), ret);
+        }
+        for (Node child : node._children) {
+            path.add(child._component);
+            collect(child, path, ret);
+            path.remove(path.size() - 1);
+        }
+    }
+
+    private int count(Node node) {
+        int ret = node._values.length;
+        for (Node child : node._children) {
+            ret += count(child);
+        }
+        return ret;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void addEntries(Node node, ContentName name, List<Entry<V>> ret) {
+        for (Object v : node._values) {
+            ret.add(new TableEntry<>(name, (V) v));
+        }
+    }
+
+    private static ContentName prefix(ContentName name, int count) {
+        return count == name.count() ? name : name.cut(count);
+    }
+
+    private static <T> void reverse(ArrayList<T> list) {
+        for (int i = 0, j = list.size() - 1; i < j; i++, j--) {
+            list.set(i, list.set(j, list.get(i)));
+        }
+    }
+
+    private static Node child(Node node, byte[] component) {
+        int index = find(node._children, component);
+        return index >= 0 ? node._children[index] : null;
+    }
+
+    /**
+     * Binary search a child by component.
+     *
+     * @return the index of the child, or (-(insertion point) - 1) if not
+     * found.
+     */
+    private static int find(Node[] children, byte[] component) {
+        int low = 0, high = children.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int c = compare(children[mid]._component, component);
+            if (c < 0) {
+                low = mid + 1;
+            } else if (c > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private static int compare(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            int c = (a[i] & 0xff) - (b[i] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    private static int indexOf(Object[] values, Object value) {
+        for (int i = 0; i < values.length; i++) {
+            if (equal(values[i], value)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * A trie node. Nodes reachable from a published root are never changed.
+     */
+    private static final class Node {
+
+        private final byte[] _component;
+        /**
+         * The CD ID of the entries of this node, NO_ID if no entries.
+         */
+        private int _id = CDRegistry.NO_ID;
+        private Object[] _values = NO_VALUES;
+        /**
+         * Children, sorted by component.
+         */
+        private Node[] _children = NO_CHILDREN;
+        /**
+         * The token of the batch that created the node, and can change it in
+         * place.
+         */
+        private Object _owner;
+
+        private Node(byte[] component) {
+            _component = component;
+        }
+    }
+
+    private static final class TableEntry<V> implements Entry<V> {
+
+        private final ContentName _name;
+        private final V _value;
+
+        private TableEntry(ContentName name, V value) {
+            _name = name;
+            _value = value;
+        }
+
+        @Override
+        public ContentName name() {
+            return _name;
+        }
+
+        @Override
+        public Interest interest() {
+            return null;
+        }
+
+        @Override
+        public V value() {
+            return _value;
+        }
+    }
+}
\ No newline at end of file
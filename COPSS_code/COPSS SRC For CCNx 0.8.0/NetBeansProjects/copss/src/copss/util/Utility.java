@@ -45,4 +45,28 @@ public class Utility {
         }
         return ret;
     }
+
+    /**
+     * Split the content names according to a compiled CD to RP mapping.
+     * @param mapping CD to RP mapping.
+     * @param names the names to be split.
+     * @return dictionary of RPName:List<CD>.
+     */
+    public static HashMap<ContentName, LinkedList<ContentName>> splitContentNames(CDRPMapping mapping, Collection<ContentName> names) {
+        HashMap<ContentName, LinkedList<ContentName>> ret = new HashMap<>();
+
+        for (ContentName name : names) {
+            ContentName rp = mapping.getValue(name);
+            if (rp == null) {
+                System.out.printf("Cannot find RP for CD: %s%n", name);
+                continue;
+            }
+            LinkedList<ContentName> tmp = ret.get(rp);
+            if (tmp == null) {
+                ret.put(rp, tmp = new LinkedList<>());
+            }
+            tmp.add(name);
+        }
+        return ret;
+    }
 }
\ No newline at end of file
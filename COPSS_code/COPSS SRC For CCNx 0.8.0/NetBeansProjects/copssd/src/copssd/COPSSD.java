@@ -1,25 +1,52 @@
 package copssd;
 
+import common.AddressTable;
+import common.BufferPool;
+import common.ByteBufferInputStream;
+import common.EventLoop;
 import common.NetworkClient;
 import common.NetworkListener;
+import common.NetworkNode;
+import common.PooledBuffer;
+import common.SendStage;
 import copss.protocol.COPSSProtocolDTags;
+import copss.protocol.CompactFormat;
 import copss.protocol.Control;
 import copss.protocol.Control.ControlType;
-import copss.protocol.Multicast;
-import java.io.ByteArrayInputStream;
+import copss.protocol.MulticastBatchView;
+import copss.protocol.MulticastView;
+import copss.protocol.PacketClassifier;
+import copss.protocol.SplitPlan;
+import copss.protocol.SplitPlanCache;
+import copss.util.CDRPMapping;
+import copss.util.SubscriptionTable;
+import java.io.File;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import org.ccnx.ccn.CCNHandle;
 import org.ccnx.ccn.CCNInterestHandler;
 import org.ccnx.ccn.impl.CCNNetworkManager.NetworkProtocol;
-import org.ccnx.ccn.impl.InterestTable;
 import org.ccnx.ccn.impl.InterestTable.Entry;
 import org.ccnx.ccn.impl.encoding.CCNProtocolDTags;
+import org.ccnx.ccn.impl.encoding.GenericXMLEncodable;
 import org.ccnx.ccn.impl.encoding.XMLCodecFactory;
 import org.ccnx.ccn.impl.encoding.XMLDecoder;
 import org.ccnx.ccn.io.content.ContentEncodingException;
@@ -39,7 +66,40 @@ import org.ccnx.ccn.protocol.MalformedContentNameStringException;
  * NDN and creates a thread tunnel the packet from NDN to target node.
  *
  * If an RP is established in the COPSS router, a special module RP is created
- * and listens to the NDN FIB prefix.
+ * and listens to the NDN FIB prefix. Multicasts published by the end-hosts of
+ * the router to the RP are handed to it directly instead of through NDN (see
+ * setLocalRPShortCircuit).
+ *
+ * The router keeps a COPSS FIB of its own, filled by addFIB. Encapsulated
+ * COPSS packets (/RPName/multicast|batch|control/...) are sent to the next
+ * hop face found in it directly, and only go through NDN if no entry matches
+ * (see setNativeFIB). Other Interests are always handed to NDN.
+ *
+ * If the router is created with an EventLoop, the router and all its faces
+ * are served by the threads of the event loop instead of a thread each. The
+ * faces may also be served by an event loop of their own (see
+ * setFaceEventLoop), so that an idle face only costs its channel and a
+ * selection key instead of a thread, its stack and its receive buffer.
+ *
+ * The router may listen to its port with several sockets (SO_REUSEPORT),
+ * each with its own receive thread (or event loop registration) feeding
+ * handlePacket.
+ *
+ * With a BufferPool, the router and its faces receive into pooled buffers.
+ * Handlers read packets through read-only views, multicasts are forwarded to
+ * all the subscriber faces from the same buffer and the buffer is released
+ * after the last send.
+ *
+ * By default, packets are processed to completion on the receiving thread.
+ * After startPipeline, they are handed to worker threads sharded by incoming
+ * face instead, control packets ahead of data.
+ *
+ * By default, the thread forwarding a packet also sends it. With egress
+ * queues (see setEgressQueues), it only adds the packet to the bounded queue
+ * of each face, which is paced and drained by egress threads. After
+ * startSendStage, the packets to remote nodes are sent in batches by a sender
+ * thread per listening socket (see SendStage), instead of by the threads
+ * forwarding them all sharing a socket.
  *
  * @author Jiachen Chen
  */
@@ -51,24 +111,110 @@ public class COPSSD extends NetworkListener {
      */
     private int _ccnPort;
     /**
-     * CD to RP mapping table. It is instantiated as an Interest Table, so that
-     * RP will be calculated using the longest prefix match according to CD. If
-     * the CD to RP mapping table is prefix free, longest prefix match is equal
-     * to exact match.
+     * CD to RP mapping table. RP will be calculated using the longest prefix
+     * match according to CD. If the CD to RP mapping table is prefix free,
+     * longest prefix match is equal to exact match. The table is immutable and
+     * replaced as a whole on reload, together with the cache of the split
+     * plans made with it, so an encapsulation always uses one complete table.
+     */
+    private volatile SplitPlanCache _splitPlans;
+    /**
+     * Read locked while an ST change is applied and forwarded, write locked
+     * while the mapping is swapped, so no change is sent upstream with a
+     * mapping older than the one the ST is migrated to.
+     */
+    private final ReentrantReadWriteLock _mappingLock = new ReentrantReadWriteLock();
+    /**
+     * The file the CD to RP mapping is loaded from, null if hard-coded.
+     */
+    private File _cdRPMappingFile;
+    /**
+     * Thread reloading the mapping when its file changes, null if not
+     * watched.
+     */
+    private Thread _cdRPMappingWatcher;
+    /**
+     * Subscription table. It matches in the same way as an Interest Table,
+     * but lookups never lock and the changes of a Control packet are applied
+     * as one atomic batch. Values are face indices (see _faceTable).
      */
-    private InterestTable<ContentName> _cdRPMappingTable = new InterestTable<>();
+    private SubscriptionTable<Integer> _st = new SubscriptionTable<>();
     /**
-     * Subscription table, also instantiated as an Interest Table.
+     * Faces of the COPSS router by remote address. Looked up by the receive
+     * threads without locking or allocating.
      */
-    private InterestTable<OutLinkFace> _st = new InterestTable<>();
+    private final AddressTable<OutLinkFace> _faces = new AddressTable<>();
     /**
-     * Faces of the COPSS router.
+     * Faces by their dense index. Slots are written in place and the table is
+     * published again, so readers see the change; it is replaced when it
+     * grows.
      */
-    private HashMap<InetSocketAddress, OutLinkFace> _faces;
+    private volatile OutLinkFace[] _faceTable = new OutLinkFace[16];
+    /**
+     * Number of face indices ever assigned.
+     */
+    private int _faceIndexCount = 0;
+    /**
+     * Face indices released by removed faces, reused first.
+     */
+    private final ArrayDeque<Integer> _freeFaceIndices = new ArrayDeque<>();
+    /**
+     * Reusable sets de-duplicating the faces of a fan-out, one per thread.
+     */
+    private final ThreadLocal<FanOutSet> _fanOutSets = new ThreadLocal<FanOutSet>() {
+
+        @Override
+        protected FanOutSet initialValue() {
+            return new FanOutSet();
+        }
+    };
     /**
      * The RP modules existed on the router.
      */
     private LinkedList<RP> _rps = new LinkedList<>();
+    /**
+     * The names of the RP modules, replaced as a whole when an RP is added.
+     */
+    private volatile ContentName[] _rpNames = new ContentName[0];
+    /**
+     * If multicasts to the RP modules of this router skip NDN.
+     */
+    private volatile boolean _localRPShortCircuit = true;
+    /**
+     * Number of packets handed to the RP modules directly.
+     */
+    private final AtomicLong _localRPPackets = new AtomicLong();
+    /**
+     * COPSS FIB: next hop face indices by name prefix, the same entries as
+     * the FIB of NDN added by addFIB.
+     */
+    private final SubscriptionTable<Integer> _fib = new SubscriptionTable<>();
+    /**
+     * If encapsulated COPSS packets are forwarded with _fib instead of NDN.
+     */
+    private volatile boolean _nativeFIB = true;
+    /**
+     * Number of packets forwarded with _fib.
+     */
+    private final AtomicLong _nativeFIBPackets = new AtomicLong();
+    /**
+     * Threads draining the egress queues of the faces, null if packets are
+     * sent by the forwarding thread.
+     */
+    private ScheduledThreadPoolExecutor _egressExecutor;
+    private int _egressCapacity;
+    private long _egressRate, _egressBurst;
+    private DropPolicy _egressPolicy;
+    /**
+     * If the faces have egress queues, so the packets forwarded must not
+     * change after being handed to them.
+     */
+    private volatile boolean _egressQueues = false;
+    /**
+     * Priorities of the CDs (longest prefix match), used by the PRIORITY drop
+     * policy of the egress queues.
+     */
+    private final SubscriptionTable<Integer> _cdPriorities = new SubscriptionTable<>();
     /**
      * NDN handle.
      */
@@ -81,6 +227,44 @@ public class COPSSD extends NetworkListener {
      * Prefix registration manager from NDN.
      */
     private PrefixRegistrationManager _prefixRegManager;
+    /**
+     * The event loop serving the router and its faces, null if each of them
+     * runs its own thread.
+     */
+    private final EventLoop _loop;
+    /**
+     * The event loop serving the faces linked from now on, null if each of
+     * them runs its own thread.
+     */
+    private volatile EventLoop _faceLoop;
+    /**
+     * Worker threads processing the packets, null if packets are processed
+     * by the receiving thread.
+     */
+    private volatile PacketPipeline _pipeline;
+    /**
+     * Cache of the fan-out results of the ST, null if disabled.
+     */
+    private volatile FanOutCache _fanOutCache;
+    /**
+     * If packets sent to RPs are encapsulated as raw name components instead
+     * of base64 text. Both are understood on receiving.
+     */
+    private volatile boolean _binaryEncapsulation = false;
+    /**
+     * Coalescer of the ST changes sent upstream, null if each change is sent
+     * immediately.
+     */
+    private volatile STChangeCoalescer<OutLinkFace> _stChangeCoalescer;
+    /**
+     * Additional sockets listening to the COPSS port.
+     */
+    private final LinkedList<Ingress> _ingresses = new LinkedList<>();
+    /**
+     * Sender threads of the packets to remote nodes, null if packets are sent
+     * by the threads forwarding them.
+     */
+    private volatile SendStage _sendStage;
 
     /**
      * Create a COPSS router daemon.
@@ -93,25 +277,234 @@ public class COPSSD extends NetworkListener {
      */
     public COPSSD(int listenPort, int ccnPort) throws SocketException, MalformedContentNameStringException, CCNDaemonException {
         super(listenPort);
+        _loop = null;
+        _faceLoop = null;
         _ccnPort = ccnPort;
+        init();
+    }
 
+    /**
+     * Create a COPSS router daemon served by an event loop.
+     *
+     * @param listenPort the port COPSS router listens to.
+     * @param ccnPort the NDN port.
+     * @param loop the event loop serving the router and its faces.
+     * @throws IOException
+     * @throws MalformedContentNameStringException
+     * @throws CCNDaemonException
+     */
+    public COPSSD(int listenPort, int ccnPort, EventLoop loop) throws IOException, MalformedContentNameStringException, CCNDaemonException {
+        this(listenPort, ccnPort, loop, 1);
+    }
+
+    /**
+     * Create a COPSS router daemon listening with several sockets on the same
+     * port. If SO_REUSEPORT is not supported, only 1 socket is used.
+     *
+     * @param listenPort the port COPSS router listens to.
+     * @param ccnPort the NDN port.
+     * @param loop the event loop serving the router and its faces, or null to
+     * use a thread for each of them.
+     * @param socketCount number of sockets listening to listenPort.
+     * @throws IOException
+     * @throws MalformedContentNameStringException
+     * @throws CCNDaemonException
+     */
+    public COPSSD(int listenPort, int ccnPort, EventLoop loop, int socketCount) throws IOException, MalformedContentNameStringException, CCNDaemonException {
+        super(listenPort, loop, socketCount > 1 && isReusePortSupported());
+        _loop = loop;
+        _faceLoop = loop;
+        _ccnPort = ccnPort;
+        if (socketCount > 1) {
+            if (isReusePortSupported()) {
+                for (int i = 1; i < socketCount; i++) {
+                    _ingresses.add(new Ingress());
+                }
+            } else {
+                System.out.println("SO_REUSEPORT not supported, listen with 1 socket.");
+            }
+        }
+        init();
+    }
+
+    /**
+     * Get NDN objects and load CD to RP mapping.
+     */
+    private void init() throws MalformedContentNameStringException, CCNDaemonException {
         // get NDN objects.
         _handle = CCNHandle.getHandle();
         _faceManager = new FaceManager(_handle);
         _prefixRegManager = new PrefixRegistrationManager(_handle);
 
-        // instantiate data structure for faces.
-        _faces = new HashMap<>();
-
         loadCDRPMapping();
     }
 
+    /**
+     * Default mapping (every CD to /RP), until a mapping file is loaded.
+     */
     private void loadCDRPMapping() {
-        //TODO: replace hard-code with reading mapping form a file
-        _cdRPMappingTable.add(ContentName.ROOT, 
+        _splitPlans = new SplitPlanCache(new CDRPMapping(Collections.singletonMap(ContentName.ROOT,
                 new ContentName("RP")
 //                ContentName.fromNative(new String[]{"RP"})
-                );
+                )), 0);
+    }
+
+    /**
+     * Load the CD to RP mapping from a file (see CDRPMapping.load) and swap
+     * it in. On failure, the current mapping is kept. The subscriptions of
+     * the CDs whose RP changes are moved: removed at the old RP and added at
+     * the new one.
+     *
+     * @param file the mapping file.
+     * @return the new mapping.
+     * @throws IOException if the file cannot be read or is invalid, or the
+     * moved subscriptions cannot be sent.
+     */
+    public CDRPMapping loadCDRPMapping(File file) throws IOException {
+        long start = System.nanoTime();
+        CDRPMapping mapping = CDRPMapping.load(file);
+        int moved;
+        _mappingLock.writeLock().lock();
+        try {
+            synchronized (this) {
+                SplitPlanCache old = _splitPlans;
+                _splitPlans = new SplitPlanCache(mapping, old.capacity());
+                _cdRPMappingFile = file;
+                moved = moveSubscriptions(old, _splitPlans);
+            }
+        } finally {
+            _mappingLock.writeLock().unlock();
+        }
+        System.out.printf("CD-RP mapping loaded from %s: %d rules, %d RPs, %d CDs moved in %.1f ms.%n",
+                file, mapping.size(), mapping.rps().length, moved, (System.nanoTime() - start) / 1e6);
+        return mapping;
+    }
+
+    /**
+     * Move the subscriptions in the ST to the RPs of a new mapping: the CDs
+     * served by another RP are removed at the old RP and added at the new
+     * one. Called with the mapping write locked, so the ST does not change.
+     *
+     * @param oldPlans the split plans of the old mapping.
+     * @param newPlans the split plans of the new mapping.
+     * @return the number of CDs moved.
+     * @throws IOException if the changes cannot be sent.
+     */
+    private int moveSubscriptions(SplitPlanCache oldPlans, SplitPlanCache newPlans) throws IOException {
+        LinkedHashSet<ContentName> CDs = new LinkedHashSet<>();
+        for (Entry<Integer> entry : _st.values()) {
+            CDs.add(entry.name());
+        }
+        LinkedList<ContentName> moved = new LinkedList<>();
+        for (ContentName CD : CDs) {
+            if (!oldPlans.mapping().getValue(CD).equals(newPlans.mapping().getValue(CD))) {
+                moved.add(CD);
+            }
+        }
+        OutLinkFace face = null;
+        for (OutLinkFace f : _faces.values()) {
+            face = f;
+            break;
+        }
+        if (moved.isEmpty() || face == null) {
+            return 0;
+        }
+        STChangeCoalescer<OutLinkFace> coalescer = _stChangeCoalescer;
+        if (coalescer != null) {
+            coalescer.add(newPlans.get(moved), oldPlans.get(moved), face);
+            return moved.size();
+        }
+        Control control = new Control(ControlType.STChange, moved, moved, 0, 0);
+        for (Interest encap : control.encapsulate(newPlans.get(moved), oldPlans.get(moved), _binaryEncapsulation)) {
+            sendToRP(encap, face);
+        }
+        return moved.size();
+    }
+
+    /**
+     * Reload the CD to RP mapping from the file it was last loaded from.
+     *
+     * @return the new mapping.
+     * @throws IOException if the file cannot be read or is invalid.
+     */
+    public CDRPMapping reloadCDRPMapping() throws IOException {
+        File file;
+        synchronized (this) {
+            file = _cdRPMappingFile;
+        }
+        if (file == null) {
+            throw new IllegalStateException("CD-RP mapping not loaded from a file!");
+        }
+        return loadCDRPMapping(file);
+    }
+
+    /**
+     * Get the current CD to RP mapping.
+     *
+     * @return the mapping.
+     */
+    public CDRPMapping getCDRPMapping() {
+        return _splitPlans.mapping();
+    }
+
+    /**
+     * Reload the mapping when its file changes (modification time or size).
+     * A change is only loaded once the file stays the same for a whole
+     * interval, so that a file being written is not loaded half way. Replace
+     * the file with a rename to avoid that completely.
+     *
+     * @param interval the interval of checking the file (ms), 0 to stop
+     * watching.
+     */
+    public synchronized void watchCDRPMapping(final long interval) {
+        if (_cdRPMappingWatcher != null) {
+            _cdRPMappingWatcher.interrupt();
+            _cdRPMappingWatcher = null;
+        }
+        if (interval <= 0) {
+            return;
+        }
+        _cdRPMappingWatcher = new Thread("CDRPMappingWatcher") {
+
+            @Override
+            public void run() {
+                File loaded = null;
+                long loadedStamp = 0, pendingStamp = 0;
+                while (!isInterrupted()) {
+                    try {
+                        Thread.sleep(interval);
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    File file;
+                    synchronized (COPSSD.this) {
+                        file = _cdRPMappingFile;
+                    }
+                    if (file == null) {
+                        continue;
+                    }
+                    long stamp = file.lastModified() * 31 + file.length();
+                    if (file != loaded) {
+                        // loaded by someone else, start watching from here
+                        loaded = file;
+                        loadedStamp = pendingStamp = stamp;
+                        continue;
+                    }
+                    if (stamp == loadedStamp || stamp != pendingStamp) {
+                        pendingStamp = stamp;
+                        continue;
+                    }
+                    try {
+                        loadCDRPMapping(file);
+                    } catch (IOException ex) {
+                        System.out.printf("Cannot reload CD-RP mapping, keep the current one: %s%n", ex.getMessage());
+                    }
+                    loadedStamp = stamp;
+                }
+            }
+        };
+        _cdRPMappingWatcher.setDaemon(true);
+        _cdRPMappingWatcher.start();
     }
 
     /**
@@ -124,42 +517,540 @@ public class COPSSD extends NetworkListener {
      * @throws IOException
      * @throws CCNDaemonException
      */
-    public int link(InetSocketAddress address, boolean isRouter) throws UnknownHostException, IOException, CCNDaemonException {
-        if (_faces.containsKey(address)) {
+    public synchronized int link(InetSocketAddress address, boolean isRouter) throws UnknownHostException, IOException, CCNDaemonException {
+        if (_faces.get(address) != null) {
             return -1;
         }
         OutLinkFace face = new OutLinkFace(address, isRouter);
-        new Thread(face).start();
+        face.setBufferPool(_bufferPool);
+        face._egress = newEgressQueue(face);
+        face._index = addFaceIndex(face);
+        try {
+            face.start();
+        } catch (Exception ex) {
+            clearFaceIndex(face);
+            releaseFaceIndex(face);
+            throw new IOException("Cannot start face " + address, ex);
+        }
 
-        _faces.put(address, face);
+        _faces.putIfAbsent(address, face);
         return face._faceID;
     }
 
     /**
-     * Add an FIB entry in NDN.
+     * Unlink a node: remove its subscriptions (and forward the
+     * unsubscriptions upstream), then close its face.
+     *
+     * Packets from the node that are still being processed are ignored once
+     * the face is removed from the face table, so that its index is never
+     * subscribed again before it is reused.
+     *
+     * @param address target address.
+     * @return false if the face does not exist.
+     * @throws IOException
+     */
+    public synchronized boolean unlink(InetSocketAddress address) throws IOException {
+        OutLinkFace face = _faces.remove(address);
+        if (face == null) {
+            return false;
+        }
+        clearFaceIndex(face);
+        LinkedList<ContentName> resultRemoves = new LinkedList<>(),
+                changed = new LinkedList<>();
+        SubscriptionTable<Integer>.Batch batch = _st.batch();
+        try {
+            LinkedList<ContentName> CDs = new LinkedList<>();
+            for (Entry<Integer> entry : batch.values()) {
+                if (entry.value() == face._index) {
+                    CDs.add(entry.name());
+                }
+            }
+            removeSubscriptions(batch, CDs, face, resultRemoves, changed);
+            batch.commit();
+        } finally {
+            batch.abort();
+        }
+        FanOutCache cache = _fanOutCache;
+        if (cache != null) {
+            cache.invalidate(changed);
+        }
+        SubscriptionTable<Integer>.Batch fib = _fib.batch();
+        try {
+            for (Entry<Integer> entry : fib.values()) {
+                if (entry.value() == face._index) {
+                    fib.remove(entry.name(), entry.value());
+                }
+            }
+            fib.commit();
+        } finally {
+            fib.abort();
+        }
+        try {
+            forwardSTChange(new LinkedList<ContentName>(), resultRemoves, face);
+        } finally {
+            try {
+                face.close();
+            } catch (Exception ex) {
+                throw new IOException("Cannot close face " + address, ex);
+            } finally {
+                releaseFaceIndex(face);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Assign a dense index to a face.
+     *
+     * @param face the face.
+     * @return the index.
+     */
+    private synchronized int addFaceIndex(OutLinkFace face) {
+        Integer free = _freeFaceIndices.poll();
+        int index = free != null ? free : _faceIndexCount++;
+        OutLinkFace[] table = _faceTable;
+        if (index >= table.length) {
+            table = Arrays.copyOf(table, Math.max(table.length * 2, index + 1));
+        }
+        // the slot is not in the ST yet, readers may see it empty until the
+        // table is published again.
+        table[index] = face;
+        _faceTable = table;
+        return index;
+    }
+
+    /**
+     * Remove a face from the face table. Its index is not reused until
+     * releaseFaceIndex.
+     *
+     * @param face the face.
+     */
+    private synchronized void clearFaceIndex(OutLinkFace face) {
+        OutLinkFace[] table = _faceTable;
+        table[face._index] = null;
+        _faceTable = table;
+    }
+
+    /**
+     * Release the index of a face, so that it can be reused. The face should
+     * not be in the face table or the ST any more.
+     *
+     * @param face the face.
+     */
+    private synchronized void releaseFaceIndex(OutLinkFace face) {
+        _freeFaceIndices.add(face._index);
+    }
+
+    /**
+     * Get a face by its index.
+     *
+     * @param index the index.
+     * @return the face, or null if no face has the index.
+     */
+    OutLinkFace face(int index) {
+        OutLinkFace[] table = _faceTable;
+        return index < table.length ? table[index] : null;
+    }
+
+    /**
+     * Add an FIB entry in NDN and in the COPSS FIB.
+     *
+     * @param prefix the prefix of the FIB entry.
+     * @param outgoingAddress outgoing address of the FIB entry.
+     * @return true if add succeed, false if the face does not exist.
+     * @throws CCNDaemonException
+     */
+    public boolean addFIB(ContentName prefix, InetSocketAddress outgoingAddress) throws CCNDaemonException {
+        OutLinkFace f = _faces.get(outgoingAddress);
+        if (f == null) {
+            return false;
+        }
+        f.addCCNFIB(prefix);
+        SubscriptionTable<Integer>.Batch batch = _fib.batch();
+        try {
+            for (Entry<Integer> entry : batch.getMatches(prefix)) {
+                if (entry.name().equals(prefix) && entry.value() == f._index) {
+                    return true;
+                }
+            }
+            batch.add(prefix, f._index);
+            batch.commit();
+        } finally {
+            batch.abort();
+        }
+        return true;
+    }
+
+    /**
+     * Receive packets of the router and its faces into buffers of the pool.
+     * Should be called before the router starts.
+     *
+     * @param pool the buffer pool.
+     */
+    public synchronized void setBufferPool(BufferPool pool) {
+        super.setBufferPool(pool);
+        for (Ingress ingress : _ingresses) {
+            ingress.setBufferPool(pool);
+        }
+        for (OutLinkFace f : _faces.values()) {
+            f.setBufferPool(pool);
+        }
+    }
+
+    /**
+     * Serve the faces linked from now on with an event loop, which may be
+     * shared with other routers and need not be the one of the router. The
+     * faces already linked keep their threads. A buffer pool of direct
+     * buffers needs an event loop.
+     *
+     * @param loop the event loop, or null to run a thread for each face.
+     */
+    public void setFaceEventLoop(EventLoop loop) {
+        _faceLoop = loop;
+    }
+
+    /**
+     * Cache the faces a multicast is sent to, per CD or per CD set.
+     *
+     * @param capacity the maximum number of cached results, 0 to disable the
+     * cache.
+     * @param cacheSets if the results of whole CD sets are cached, or only
+     * the ones of single CDs.
+     */
+    public void setFanOutCache(int capacity, boolean cacheSets) {
+        _fanOutCache = capacity > 0 ? new FanOutCache(capacity, cacheSets) : null;
+    }
+
+    /**
+     * Cache the split plans of up to capacity CD sets (see SplitPlanCache).
+     *
+     * @param capacity the maximum number of cached plans, 0 to disable.
+     */
+    public synchronized void setSplitPlanCache(int capacity) {
+        _splitPlans = new SplitPlanCache(_splitPlans.mapping(), capacity);
+    }
+
+    /**
+     * Coalesce the ST changes sent to each RP for a window (see
+     * STChangeCoalescer). The pending changes of the previous coalescer are
+     * sent.
+     *
+     * @param window the time (ms) the changes are kept, 0 to send each change
+     * immediately.
+     * @param limit the number of pending CDs of an RP that triggers sending
+     * before the window expires.
+     */
+    public synchronized void setSTChangeCoalescing(long window, int limit) {
+        STChangeCoalescer<OutLinkFace> old = _stChangeCoalescer;
+        _stChangeCoalescer = window > 0 ? new STChangeCoalescer<OutLinkFace>(window, limit) {
+
+            @Override
+            protected void send(ContentName controlPrefix, Control control, OutLinkFace face) {
+                sendSTChange(controlPrefix, control, face);
+            }
+        } : null;
+        if (old != null) {
+            old.close();
+        }
+    }
+
+    /**
+     * Encapsulate the packets sent to RPs as raw name components (binary) or
+     * as base64 text (understood by old routers).
+     *
+     * @param binary if binary encapsulation is used.
+     */
+    public void setBinaryEncapsulation(boolean binary) {
+        _binaryEncapsulation = binary;
+    }
+
+    /**
+     * Send the packets to each face through a bounded queue (see
+     * EgressQueue), drained by egress threads and paced by a token bucket,
+     * so a slow face never blocks forwarding. Applies to all the faces, the
+     * packets queued in the old queues are dropped.
+     *
+     * @param capacity the number of packets a queue holds, 0 to send the
+     * packets from the forwarding thread.
+     * @param rate the pacing rate of each face (bytes/s), 0 for no pacing.
+     * @param burst the size of the token bucket of each face (bytes).
+     * @param policy what to drop when a queue is full.
+     * @param threads number of egress threads.
+     */
+    public synchronized void setEgressQueues(int capacity, long rate, long burst, DropPolicy policy, int threads) {
+        ScheduledThreadPoolExecutor old = _egressExecutor;
+        _egressExecutor = null;
+        if (capacity > 0) {
+            _egressExecutor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+
+                private int _count = 0;
+
+                @Override
+                public synchronized Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "COPSSD-Egress-" + _count++);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        _egressCapacity = capacity;
+        _egressRate = rate;
+        _egressBurst = burst;
+        _egressPolicy = policy;
+        _egressQueues = capacity > 0;
+        for (OutLinkFace f : _faces.values()) {
+            EgressQueue queue = f._egress;
+            f._egress = newEgressQueue(f);
+            if (queue != null) {
+                queue.close();
+            }
+        }
+        if (old != null) {
+            old.shutdown();
+        }
+    }
+
+    /**
+     * Create the egress queue of a face with the current settings.
+     *
+     * @param face the face.
+     * @return the queue, or null if egress queues are disabled.
+     */
+    private synchronized EgressQueue newEgressQueue(final OutLinkFace face) {
+        if (_egressExecutor == null) {
+            return null;
+        }
+        return new EgressQueue(_egressCapacity, _egressRate, _egressBurst, _egressPolicy, _egressExecutor) {
+
+            @Override
+            protected void send(ByteBuffer packet) throws IOException {
+                COPSSD.this.send(face._remoteAddress, packet);
+            }
+        };
+    }
+
+    /**
+     * Set the priority of the multicasts to a CD and the CDs under it, used
+     * by the PRIORITY drop policy of the egress queues. The default is 0.
+     *
+     * @param prefix the CD.
+     * @param priority the priority, higher is dropped later.
+     */
+    public void setCDPriority(ContentName prefix, int priority) {
+        SubscriptionTable<Integer>.Batch batch = _cdPriorities.batch();
+        try {
+            for (Entry<Integer> entry : batch.getMatches(prefix)) {
+                if (entry.name().equals(prefix)) {
+                    batch.remove(entry.name(), entry.value());
+                }
+            }
+            batch.add(prefix, priority);
+            batch.commit();
+        } finally {
+            batch.abort();
+        }
+    }
+
+    /**
+     * Get the priority of a multicast: the highest priority of its CDs.
+     *
+     * @param CDs the CDs of the multicast.
+     * @return the priority.
+     */
+    private int priority(List<ContentName> CDs) {
+        if (!_egressQueues || _cdPriorities.size() == 0) {
+            return 0;
+        }
+        int priority = Integer.MIN_VALUE;
+        for (ContentName CD : CDs) {
+            Entry<Integer> entry = _cdPriorities.getMatch(CD);
+            priority = Math.max(priority, entry == null ? 0 : entry.value());
+        }
+        return priority;
+    }
+
+    /**
+     * Copy a packet that will be queued, unless egress queues are disabled.
+     * The packet may be in a buffer that is reused after processing.
+     *
+     * @param packet the packet, from position to limit (not changed).
+     * @return the copy, or packet.
+     */
+    private ByteBuffer stable(ByteBuffer packet) {
+        if (!_egressQueues) {
+            return packet;
+        }
+        byte[] copy = new byte[packet.remaining()];
+        packet.duplicate().get(copy);
+        return ByteBuffer.wrap(copy);
+    }
+
+    /**
+     * Start listening, with all the sockets.
+     */
+    @Override
+    public synchronized void start() throws Exception {
+        super.start();
+        for (Ingress ingress : _ingresses) {
+            ingress.start();
+        }
+    }
+
+    /**
+     * Process packets with worker threads instead of the receiving thread.
+     * Packets from the same face are always processed by the same worker.
+     * Control packets are served first, at most 8 in a row while data is
+     * waiting.
+     *
+     * @param workerCount number of worker threads.
+     * @param queueCapacity capacity of each queue of each worker.
+     */
+    public void startPipeline(int workerCount, int queueCapacity) {
+        startPipeline(workerCount, queueCapacity, 8);
+    }
+
+    /**
+     * Process packets with worker threads instead of the receiving thread.
+     * Each worker has a control lane (Controls and encapsulated Controls),
+     * always served first, and a data lane (see PacketPipeline).
+     *
+     * @param workerCount number of worker threads.
+     * @param queueCapacity capacity of each queue of each worker.
+     * @param controlWeight the maximum number of control packets served in a
+     * row while data is waiting.
+     */
+    public synchronized void startPipeline(int workerCount, int queueCapacity, int controlWeight) {
+        if (_pipeline != null) {
+            throw new IllegalStateException("Pipeline already started!");
+        }
+        _pipeline = new PacketPipeline(this, workerCount, queueCapacity, controlWeight);
+    }
+
+    /**
+     * Send the packets to remote nodes with a sender thread for each socket
+     * listening to the COPSS port (see SendStage), so the forwarding threads
+     * never contend on a socket. Needs a router created with an event loop or
+     * several sockets, whose sockets are channels.
+     *
+     * @param queueCapacity capacity of the queue of each sender.
+     * @param maxBatch the maximum number of packets a sender takes from its
+     * queue in one drain.
+     */
+    public synchronized void startSendStage(int queueCapacity, int maxBatch) {
+        if (_sendStage != null) {
+            throw new IllegalStateException("Send stage already started!");
+        }
+        if (_channel == null) {
+            throw new IllegalStateException("Send stage needs a router listening with channels!");
+        }
+        DatagramChannel[] channels = new DatagramChannel[_ingresses.size() + 1];
+        channels[0] = _channel;
+        int i = 1;
+        for (Ingress ingress : _ingresses) {
+            channels[i++] = ingress.channel();
+        }
+        _sendStage = new SendStage(channels, queueCapacity, maxBatch);
+    }
+
+    /**
+     * Send a packet to a remote node, through the send stage if it is
+     * started.
+     *
+     * @param target the target address.
+     * @param buf the content of the packet.
+     * @throws IOException send failure.
+     */
+    @Override
+    protected void send(InetSocketAddress target, byte[] buf) throws IOException {
+        SendStage stage = _sendStage;
+        if (stage != null) {
+            stage.send(buf, target);
+            return;
+        }
+        super.send(target, buf);
+    }
+
+    /**
+     * Send the remaining bytes of a buffer to a remote node, through the
+     * send stage if it is started.
+     *
+     * @param target the target address.
+     * @param buf the content of the packet.
+     * @throws IOException send failure.
+     */
+    @Override
+    protected void send(InetSocketAddress target, ByteBuffer buf) throws IOException {
+        send(target, buf, null);
+    }
+
+    /**
+     * Send the remaining bytes of a buffer to a remote node, through the
+     * send stage if it is started. The send stage keeps a reference to the
+     * pooled buffer instead of copying the bytes.
+     *
+     * @param target the target address.
+     * @param buf the content of the packet.
+     * @param owner the pooled buffer holding the packet, or null.
+     * @throws IOException send failure.
+     */
+    private void send(InetSocketAddress target, ByteBuffer buf, PooledBuffer owner) throws IOException {
+        SendStage stage = _sendStage;
+        if (stage != null) {
+            stage.send(buf, owner, target);
+            return;
+        }
+        super.send(target, buf);
+    }
+
+    /**
+     * Create a new RP module using rpName.
+     *
+     * @param rpName the name of the new RP module.
+     * @throws IOException
+     */
+    public synchronized void setRP(ContentName rpName) throws IOException {
+        _rps.add(new RP(rpName));
+        ContentName[] names = Arrays.copyOf(_rpNames, _rpNames.length + 1);
+        names[names.length - 1] = rpName;
+        _rpNames = names;
+    }
+
+    /**
+     * Hand the multicasts published by end-hosts to the RP modules of this
+     * router directly (default), or encapsulate them to NDN like the ones to
+     * other RPs, which hands them back to the RP modules.
+     *
+     * @param shortCircuit if the RP modules are reached without NDN.
+     */
+    public void setLocalRPShortCircuit(boolean shortCircuit) {
+        _localRPShortCircuit = shortCircuit;
+    }
+
+    /**
+     * Forward the encapsulated COPSS packets with the COPSS FIB (default), or
+     * hand them all to NDN, which forwards them with its FIB through the
+     * faces.
      *
-     * @param prefix the prefix of the FIB entry.
-     * @param outgoingAddress outgoing address of the FIB entry.
-     * @return true if add succeed, false if the face does not exist.
-     * @throws CCNDaemonException
+     * @param nativeFIB if the COPSS FIB is used.
      */
-    public boolean addFIB(ContentName prefix, InetSocketAddress outgoingAddress) throws CCNDaemonException {
-        OutLinkFace f = _faces.get(outgoingAddress);
-        if (f == null) {
-            return false;
-        }
-        f.addCCNFIB(prefix);
-        return true;
+    public void setNativeFIB(boolean nativeFIB) {
+        _nativeFIB = nativeFIB;
     }
 
     /**
-     * Create a new RP module using rpName.
+     * Check if an RP is served by an RP module of this router, i.e. the
+     * Interests to it would be handed back to this router by NDN.
      *
-     * @param rpName the name of the new RP module.
-     * @throws IOException
+     * @param rp the name of the RP.
+     * @return if an RP module of this router has a prefix of the name.
      */
-    public void setRP(ContentName rpName) throws IOException {
-        _rps.add(new RP(rpName));
+    private boolean isLocalRP(ContentName rp) {
+        for (ContentName name : _rpNames) {
+            if (name.isPrefixOf(rp)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     @Override
@@ -170,13 +1061,44 @@ public class COPSSD extends NetworkListener {
         builder.append(_ccnPort);
         builder.append(", running=");
         builder.append(_running);
+        builder.append(", sockets=");
+        builder.append(_ingresses.size() + 1);
         builder.append(", RPS=");
         builder.append(_rps);
-        for (Entry<OutLinkFace> e : _st.values()) {
+        builder.append(", local RP packets=");
+        builder.append(_localRPPackets.get());
+        builder.append(", FIB entries=");
+        builder.append(_fib.size());
+        builder.append(", FIB packets=");
+        builder.append(_nativeFIBPackets.get());
+        builder.append("\n\t");
+        builder.append(_splitPlans);
+        if (_pipeline != null) {
+            builder.append("\n\t");
+            builder.append(_pipeline);
+        }
+        if (_sendStage != null) {
+            builder.append("\n\t");
+            builder.append(_sendStage);
+        }
+        if (_bufferPool != null) {
+            builder.append("\n\t");
+            builder.append(_bufferPool);
+        }
+        if (_fanOutCache != null) {
+            builder.append("\n\t");
+            builder.append(_fanOutCache);
+        }
+        if (_stChangeCoalescer != null) {
+            builder.append("\n\t");
+            builder.append(_stChangeCoalescer);
+        }
+        for (Entry<Integer> e : _st.values()) {
+            OutLinkFace f = face(e.value());
             builder.append("\n\t\t");
             builder.append(e.name());
             builder.append("->");
-            builder.append(e.value()._remoteAddress);
+            builder.append(f == null ? null : f._remoteAddress);
         }
         builder.append("\n");
         for (OutLinkFace f : _faces.values()) {
@@ -192,6 +1114,18 @@ public class COPSSD extends NetworkListener {
     @Override
     public void stop() {
         super.stop();
+        for (Ingress ingress : _ingresses) {
+            ingress.stop();
+        }
+        if (_pipeline != null) {
+            _pipeline.stop();
+        }
+        watchCDRPMapping(0);
+        setSTChangeCoalescing(0, 0);
+        setEgressQueues(0, 0, 0, DropPolicy.TAIL_DROP, 0);
+        if (_sendStage != null) {
+            _sendStage.close();
+        }
         for (OutLinkFace f : _faces.values()) {
             f.stop();
         }
@@ -209,48 +1143,120 @@ public class COPSSD extends NetworkListener {
      * "handleControlPacket" Process Interest if it is an encapsulated Control
      * packet (need to find a better solution). Otherwise, send to NDN.
      *
+     * If the pipeline is started, the processing is done by a worker.
+     *
      * @param packet the incoming packet.
      */
     @Override
     protected void handlePacket(DatagramPacket packet) {
-        InetSocketAddress remoteAddress = new InetSocketAddress(packet.getAddress(), packet.getPort());
-//        System.out.printf("Packet from: %s%n", remoteAddress);
-        OutLinkFace f = _faces.get(remoteAddress);
+        OutLinkFace f = _faces.get(packet.getAddress(), packet.getPort());
         //discard packets from unknown source
         if (f == null) {
 //            for (OutLinkFace fx : _faces.values()) {
 //                System.out.println(fx._remoteAddress);
 //            }
-            System.out.printf("Cannot find face %s.%n", remoteAddress);
+            System.out.printf("Cannot find face %s.%n", packet.getSocketAddress());
             return;
         }
         byte[] content = new byte[packet.getLength()];
         System.arraycopy(packet.getData(), 0, content, 0, content.length);
-        try (ByteArrayInputStream bais = new ByteArrayInputStream(content)) {
-            XMLDecoder decoder = XMLCodecFactory.getDecoder();
-            decoder.beginDecoding(bais);
-            int type = decoder.peekStartElementAsLong().intValue();
-            switch (type) {
+        dispatch(f, ByteBuffer.wrap(content), null);
+    }
+
+    /**
+     * Handles packets received into pooled buffers, in the same way as
+     * handlePacket but without copying the packet.
+     *
+     * @param buffer the buffer holding the packet.
+     * @param from the remote address.
+     */
+    @Override
+    protected void handleBuffer(PooledBuffer buffer, InetSocketAddress from) {
+        OutLinkFace f = _faces.get(from);
+        if (f == null) {
+            System.out.printf("Cannot find face %s.%n", from);
+            buffer.release();
+            return;
+        }
+        dispatch(f, buffer.view(), buffer);
+    }
+
+    /**
+     * Process the packet on this thread, or hand it to a worker.
+     *
+     * @param f the incoming face.
+     * @param content the packet.
+     * @param owner the pooled buffer holding the packet (released after
+     * processing), or null.
+     */
+    private void dispatch(OutLinkFace f, ByteBuffer content, PooledBuffer owner) {
+        PacketPipeline pipeline = _pipeline;
+        if (pipeline != null) {
+            pipeline.dispatch(f, content, owner);
+        } else {
+            processPacket(f, content, owner);
+        }
+    }
+
+    /**
+     * Classifies and processes a packet from a known face.
+     *
+     * The packet is classified from its ccnb headers. Multicasts are read
+     * through a MulticastView (CDs only), batches through a
+     * MulticastBatchView, Interests are only decoded if their name is
+     * /RP/control/..., and all the other NDN packets are written to NDN as
+     * they are. COPSS packets may also be in the compact format (see
+     * CompactFormat), the face is then marked as understanding it.
+     *
+     * @param f the incoming face.
+     * @param content the packet, from position to limit.
+     * @param owner the pooled buffer holding the packet (released after
+     * processing), or null.
+     */
+    void processPacket(OutLinkFace f, ByteBuffer content, PooledBuffer owner) {
+        try {
+            boolean compact = CompactFormat.isCompact(content);
+            switch (PacketClassifier.type(content)) {
                 case COPSSProtocolDTags.Multicast: {
-                    Multicast multicast = new Multicast();
-                    multicast.decode(decoder);
-                    handleMulticastPacket(multicast, f, content);
+                    if (compact) {
+                        f._compact = true;
+                    }
+                    handleMulticastPacket(new MulticastView(content), f, content, owner);
+                    break;
+                }
+                case COPSSProtocolDTags.MulticastBatch: {
+                    if (compact) {
+                        f._compact = true;
+                    }
+                    handleMulticastBatch(new MulticastBatchView(content), f);
                     break;
                 }
                 case COPSSProtocolDTags.Control: {
+                    if (compact) {
+                        f._compact = true;
+                    }
                     Control control = new Control();
-                    control.decode(decoder);
+                    if (compact) {
+                        control.decodeFrom(content.duplicate());
+                    } else {
+                        decode(control, content);
+                    }
                     handleControlPacket(control, f);
                     break;
                 }
                 case CCNProtocolDTags.Interest: {
                     // Check if it is an encapsulated Control
-                    // Bad implementation!
-                    Interest interest = new Interest();
-                    interest.decode(decoder);
-                    Control c = new Control();
-                    if (c.decapsulate(interest)) {
-                        handleControlPacket(c, f);
+                    if (PacketClassifier.isEncapsulatedControl(content)) {
+                        Control c = new Control();
+                        if (c.decapsulate(decode(new Interest(), content))) {
+                            handleControlPacket(c, f);
+                            break;
+                        }
+                    }
+                    // an encapsulated multicast goes on toward its RP
+                    ContentName prefix = PacketClassifier.encapsulationPrefix(content);
+                    if (prefix != null) {
+                        sendToRP(prefix, content, false, f);
                         break;
                     }
                     // If not, write to CCN
@@ -263,7 +1269,28 @@ public class COPSSD extends NetworkListener {
             }
         } catch (Exception ex) {
             ex.printStackTrace();
+        } finally {
+            if (owner != null) {
+                owner.release();
+            }
+        }
+    }
+
+    /**
+     * Decode a packet without changing the position of its buffer.
+     *
+     * @param packet the object to decode into.
+     * @param content the packet, from position to limit.
+     * @return packet.
+     * @throws IOException
+     */
+    private static <T extends GenericXMLEncodable> T decode(T packet, ByteBuffer content) throws IOException {
+        try (ByteBufferInputStream bais = new ByteBufferInputStream(content)) {
+            XMLDecoder decoder = XMLCodecFactory.getDecoder();
+            decoder.beginDecoding(bais);
+            packet.decode(decoder);
         }
+        return packet;
     }
 
     /**
@@ -274,12 +1301,8 @@ public class COPSSD extends NetworkListener {
      * Encapsulate the delta into multiple Interest packets and sends them to
      * the NDN.
      *
-     * Actually, the 2nd stage should be implemented as split delta according to
-     * CD2RP mapping, and forward the changes to the target faces according to
-     * FIB. However, NDN doesn't allow us to look up FIB, so we have to
-     * encapsulate them into Interest packets and ask NDN to forward the packet.
-     *
-     * Need a better solution for this.
+     * The Interest packets are forwarded with the COPSS FIB if it has an entry
+     * for them (see sendToRP), otherwise NDN forwards them.
      *
      * @param control the incoming control packet.
      * @param face the incoming face.
@@ -289,50 +1312,177 @@ public class COPSSD extends NetworkListener {
     private void handleControlPacket(Control control, OutLinkFace face) throws ContentEncodingException, IOException {
 //        System.out.printf("Receive control [%s]: %s%n", face, control);
         if (control.type() == ControlType.STChange) {
-            LinkedList<ContentName> resultAdds = new LinkedList<>(),
-                    resultRemoves = new LinkedList<>();
-
-            // modify ST
-            for (ContentName CD : control.contentNameAdd()) {
-                boolean hasSameCD = false, alreadySubscribed = false;
-                for (Entry<OutLinkFace> entry : _st.getMatches(CD)) {
-                    if (entry.name().equals(CD)) {
-                        hasSameCD = true;
-                        if (entry.value().equals(face)) {
-                            alreadySubscribed = true;
+            // a mapping swap waits for the change to be forwarded, see
+            // loadCDRPMapping
+            _mappingLock.readLock().lock();
+            try {
+                LinkedList<ContentName> resultAdds = new LinkedList<>(),
+                        resultRemoves = new LinkedList<>(),
+                        changed = new LinkedList<>();
+
+                // modify ST, readers see all the changes or none of them
+                SubscriptionTable<Integer>.Batch batch = _st.batch();
+                try {
+                    // the face is being unlinked, its index must not be subscribed
+                    if (face(face._index) != face) {
+                        return;
+                    }
+                    for (ContentName CD : control.contentNameAdd()) {
+                        boolean hasSameCD = false, alreadySubscribed = false;
+                        for (Entry<Integer> entry : batch.getMatches(CD)) {
+                            if (entry.name().equals(CD)) {
+                                hasSameCD = true;
+                                if (entry.value() == face._index) {
+                                    alreadySubscribed = true;
+                                }
+                            }
+                        }
+                        if (!alreadySubscribed) {
+                            batch.add(CD, face._index);
+                            changed.add(CD);
+                            if (!hasSameCD) {
+                                resultAdds.add(CD);
+                            }
                         }
                     }
+
+                    removeSubscriptions(batch, control.contentNameRemove(), face, resultRemoves, changed);
+                    batch.commit();
+                } finally {
+                    batch.abort();
                 }
-                if (!alreadySubscribed) {
-                    _st.add(CD, face);
-                    if (!hasSameCD) {
-                        resultAdds.add(CD);
-                    }
+                FanOutCache cache = _fanOutCache;
+                if (cache != null) {
+                    cache.invalidate(changed);
                 }
+//                System.out.printf("ResultAdds:%s%nResultRemoves%s%n", resultAdds, resultRemoves);
+                forwardSTChange(resultAdds, resultRemoves, face);
+            } finally {
+                _mappingLock.readLock().unlock();
             }
+        } else {
+            System.out.printf("Invalid Control Type: %s%n", control.type());
+        }
+    }
 
-            for (ContentName CD : control.contentNameRemove()) {
-                Entry<OutLinkFace> entry = _st.remove(CD, face);
-                // if the subscriber really subscribed to the CD
-                if (entry != null) {
-                    entry = _st.getMatch(CD);
-                    // if nobody subscribed to the same CD, continue unsubscription
-                    if (entry == null || !entry.name().equals(CD)) {
-                        resultRemoves.add(CD);
-                    }
+    /**
+     * Remove the subscriptions of a face in a batch.
+     *
+     * @param batch the ST batch.
+     * @param CDs the CDs to unsubscribe.
+     * @param face the face.
+     * @param resultRemoves collects the CDs nobody subscribes to any more.
+     * @param changed collects the CDs removed from the ST.
+     */
+    private void removeSubscriptions(SubscriptionTable<Integer>.Batch batch, List<ContentName> CDs, OutLinkFace face,
+            List<ContentName> resultRemoves, List<ContentName> changed) {
+        for (ContentName CD : CDs) {
+            Entry<Integer> entry = batch.remove(CD, face._index);
+            // if the subscriber really subscribed to the CD
+            if (entry != null) {
+                changed.add(CD);
+                entry = batch.getMatch(CD);
+                // if nobody subscribed to the same CD, continue unsubscription
+                if (entry == null || !entry.name().equals(CD)) {
+                    resultRemoves.add(CD);
                 }
             }
-//            System.out.printf("ResultAdds:%s%nResultRemoves%s%n", resultAdds, resultRemoves);
-            control = new Control(ControlType.STChange, resultAdds, resultRemoves, 0, 0);
-//            System.out.println(control);
-            // Split, encapsulate and forward
-            for (Interest encap : control.encapsulate(_cdRPMappingTable)) {
-                face.writeToCCN(encap.encode());
+        }
+    }
+
+    /**
+     * Split, encapsulate and forward an ST change upstream through NDN.
+     *
+     * @param adds the CDs newly subscribed.
+     * @param removes the CDs nobody subscribes to any more.
+     * @param face the face writing to NDN.
+     * @throws ContentEncodingException
+     * @throws IOException
+     */
+    private void forwardSTChange(LinkedList<ContentName> adds, LinkedList<ContentName> removes, OutLinkFace face) throws ContentEncodingException, IOException {
+        SplitPlanCache plans = _splitPlans;
+        STChangeCoalescer<OutLinkFace> coalescer = _stChangeCoalescer;
+        if (coalescer != null) {
+            coalescer.add(plans.get(adds), plans.get(removes), face);
+            return;
+        }
+        Control control = new Control(ControlType.STChange, adds, removes, 0, 0);
+//        System.out.println(control);
+        for (Interest encap : control.encapsulate(plans.get(adds), plans.get(removes), _binaryEncapsulation)) {
+            sendToRP(encap, face);
+        }
+    }
+
+    /**
+     * Send a coalesced ST change to an RP. If the face of the change has been
+     * unlinked, any other face is used, as they all write to the same NDN.
+     *
+     * @param controlPrefix /RPName/control.
+     * @param control the ST change.
+     * @param face the face of the latest change.
+     */
+    private void sendSTChange(ContentName controlPrefix, Control control, OutLinkFace face) {
+        if (_faces.get(face._remoteAddress) != face) {
+            face = null;
+            for (OutLinkFace f : _faces.values()) {
+                face = f;
+                break;
+            }
+            if (face == null) {
+                return;
             }
+        }
+        try {
+            sendToRP(control.encapsulate(controlPrefix, _binaryEncapsulation), face);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
 
-        } else {
-            System.out.printf("Invalid Control Type: %s%n", control.type());
+    /**
+     * Send an encapsulated COPSS packet toward its RP.
+     *
+     * @param encap the encapsulated packet.
+     * @param face the incoming face of the packet.
+     * @throws IOException
+     */
+    private void sendToRP(Interest encap, OutLinkFace face) throws IOException {
+        ContentName name = encap.name();
+        sendToRP(name.cut(name.count() - 1), ByteBuffer.wrap(encap.encode()), true, face);
+    }
+
+    /**
+     * Send an encapsulated COPSS packet toward its RP: to the RP module if it
+     * is on this router, to the next hop face in the COPSS FIB, otherwise (or
+     * if the next hop is the incoming face) to NDN.
+     *
+     * @param prefix the name of the packet without the packet, see
+     * PacketClassifier.encapsulationPrefix.
+     * @param packet the encoded Interest, from position to limit (not
+     * changed).
+     * @param shared if the packet never changes, so it is queued without
+     * copying.
+     * @param face the incoming face of the packet, writing to NDN.
+     * @throws IOException
+     */
+    private void sendToRP(ContentName prefix, ByteBuffer packet, boolean shared, OutLinkFace face) throws IOException {
+        if (_nativeFIB) {
+            if (_localRPShortCircuit && isLocalRP(prefix.cut(prefix.count() - 1))) {
+                // what NDN does: hand it to the RP module, which ignores controls
+                _localRPPackets.incrementAndGet();
+                handleRPInterest(decode(new Interest(), packet));
+                return;
+            }
+            Entry<Integer> entry = _fib.getMatch(prefix);
+            OutLinkFace next = entry != null ? face(entry.value()) : null;
+            if (next != null && next != face) {
+                _nativeFIBPackets.incrementAndGet();
+                boolean control = prefix.stringComponent(prefix.count() - 1).equals(Control.CONTROL_ENCAPSULATE_NAME);
+                next.writeToRemote(packet.duplicate(), control ? EgressQueue.CONTROL_PRIORITY : 0, shared);
+                return;
+            }
         }
+        face.writeToCCN(packet.duplicate());
     }
 
     /**
@@ -340,34 +1490,272 @@ public class COPSSD extends NetworkListener {
      *
      * If it comes from an end host (I'm the 1st hop router): encapsulate the
      * multicast into (multiple) Interest(s). write to NDN else (I'm the
-     * internal router) forward using ST.
+     * internal router) forward using ST. The parts to an RP of this router
+     * are forwarded using ST directly, as the RP would on receiving them.
      *
      * @param multicast the incoming multicast packet.
      * @param face the incoming face.
-     * @param originalContent the original byte array of the packet. If it is
-     * forward using ST, the we can send the original content out directly.
+     * @param originalContent the original packet. If it is forward using ST,
+     * the we can send the original content out directly, to every face from
+     * the same buffer.
+     * @param owner the pooled buffer holding the original packet, or null.
      * @throws ContentEncodingException
      * @throws IOException
      */
-    private void handleMulticastPacket(Multicast multicast, OutLinkFace face, byte[] originalContent) throws ContentEncodingException, IOException {
-        // If from a router or from RP, do multicast
-        if (face == null || face._isRouter) {
-            LinkedList<OutLinkFace> faces = new LinkedList<>();
-            for (ContentName CD : multicast.contentNames()) {
-                for (OutLinkFace f : _st.getValues(CD)) {
-                    if (f != face && !faces.contains(f)) {
-                        faces.add(f);
+    private void handleMulticastPacket(MulticastView multicast, OutLinkFace face, ByteBuffer originalContent, PooledBuffer owner) throws ContentEncodingException, IOException {
+        // If from a router, do multicast
+        if (face._isRouter) {
+            forwardMulticast(multicast.contentNames(), face, originalContent, owner);
+        } else {
+            SplitPlan plan = _splitPlans.get(multicast.contentNames());
+            ByteBuffer content = multicast.content(), trailer = multicast.trailer();
+            for (int i = 0; i < plan.size(); i++) {
+                if (!_localRPShortCircuit || !isLocalRP(plan.rp(i))) {
+                    sendToRP(plan.encapsulateMulticast(i, content, trailer, _binaryEncapsulation), face);
+                    continue;
+                }
+                // do what the RP module does on the decapsulated Interest
+                _localRPPackets.incrementAndGet();
+                if (plan.size() == 1) {
+                    forwardMulticast(plan.group(i), null, originalContent, owner);
+                } else {
+                    forwardMulticast(plan.group(i), null, ByteBuffer.wrap(plan.multicast(i, content, trailer)), null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Handles a batch of multicasts.
+     *
+     * If it comes from an end host, each message is split among RPs and the
+     * parts to the same RP are encapsulated together (see
+     * MulticastBatchView.split). The parts to an RP of this router are
+     * forwarded using ST directly. Otherwise it is forwarded using ST.
+     *
+     * @param batch the incoming batch.
+     * @param face the incoming face.
+     * @throws IOException
+     */
+    private void handleMulticastBatch(MulticastBatchView batch, OutLinkFace face) throws IOException {
+        if (face._isRouter) {
+            forwardMulticastBatch(batch, face);
+        } else {
+            for (Map.Entry<ContentName, byte[]> part : batch.split(_splitPlans).entrySet()) {
+                if (!_localRPShortCircuit || !isLocalRP(part.getKey())) {
+                    sendToRP(MulticastBatchView.encapsulate(part.getKey(), part.getValue(), _binaryEncapsulation), face);
+                    continue;
+                }
+                _localRPPackets.incrementAndGet();
+                ByteBuffer packet = ByteBuffer.wrap(part.getValue());
+                if (PacketClassifier.type(packet) == COPSSProtocolDTags.MulticastBatch) {
+                    forwardMulticastBatch(new MulticastBatchView(packet), null);
+                } else {
+                    forwardMulticast(new MulticastView(packet).contentNames(), null, packet, null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Handles an Interest to an RP module of this router: forward the
+     * decapsulated multicast (or batch) using ST.
+     *
+     * @param interest the Interest.
+     * @return false if the Interest is not an encapsulated multicast.
+     * @throws IOException
+     */
+    private boolean handleRPInterest(Interest interest) throws IOException {
+        MulticastBatchView batch = MulticastBatchView.decapsulate(interest);
+        if (batch != null) {
+            forwardMulticastBatch(batch, null);
+            return true;
+        }
+        MulticastView multicast = MulticastView.decapsulate(interest);
+        if (multicast != null) {
+            forwardMulticast(multicast.contentNames(), null, multicast.packet(), null);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Forwards a batch of multicasts using ST. Each face gets the messages
+     * subscribed by it: the batch as it is if it gets all of them, otherwise
+     * a Multicast or a smaller batch, built once for all the faces getting the
+     * same messages.
+     *
+     * @param batch the batch.
+     * @param face the incoming face, or null if from RP.
+     * @throws IOException
+     */
+    private void forwardMulticastBatch(MulticastBatchView batch, OutLinkFace face) throws IOException {
+        HashMap<Integer, BitSet> selections = new HashMap<>();
+        FanOutSet faces = _fanOutSets.get();
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                collectFanOut(batch.message(i).contentNames(), faces);
+                for (int j = 0; j < faces.size(); j++) {
+                    BitSet selection = selections.get(faces.get(j));
+                    if (selection == null) {
+                        selections.put(faces.get(j), selection = new BitSet());
                     }
+                    selection.set(i);
                 }
+                faces.clear();
             }
-            for (OutLinkFace f : faces) {
-                f.writeToRemote(originalContent);
+        } finally {
+            faces.clear();
+        }
+        if (selections.isEmpty()) {
+            return;
+        }
+        int[] priorities = null;
+        if (_egressQueues) {
+            // the selected packets are queued, keep them out of reused buffers
+            batch = new MulticastBatchView(stable(batch.packet()));
+            priorities = new int[batch.size()];
+            for (int i = 0; i < priorities.length; i++) {
+                priorities[i] = priority(batch.message(i).contentNames());
             }
-        } else {
-            LinkedList<Interest> encaps = multicast.encapsulate(_cdRPMappingTable);
-            for (Interest encap : encaps) {
-                face.writeToCCN(encap.encode());
+        }
+        // packets by selection, in the format of the batch and in ccnb
+        HashMap<BitSet, ByteBuffer> packets = new HashMap<>(), ccnbPackets = new HashMap<>();
+        for (Map.Entry<Integer, BitSet> selection : selections.entrySet()) {
+            OutLinkFace f = face(selection.getKey());
+            if (f == null || f == face) {
+                continue;
+            }
+            boolean ccnb = batch.isCompact() && !f._compact;
+            HashMap<BitSet, ByteBuffer> cache = ccnb ? ccnbPackets : packets;
+            ByteBuffer packet = cache.get(selection.getValue());
+            if (packet == null) {
+                cache.put(selection.getValue(), packet = batch.select(selection.getValue(), ccnb));
+            }
+            int priority = Integer.MIN_VALUE;
+            BitSet selected = selection.getValue();
+            for (int i = selected.nextSetBit(0); priorities != null && i >= 0; i = selected.nextSetBit(i + 1)) {
+                priority = Math.max(priority, priorities[i]);
+            }
+            f.writeToRemote(packet.duplicate(), priorities == null ? 0 : priority, true);
+        }
+    }
+
+    /**
+     * Forwards a multicast to the faces subscribed to any of its CDs using
+     * ST.
+     *
+     * @param CDs the CDs of the multicast.
+     * @param face the incoming face, or null if from RP.
+     * @param originalContent the original packet, sent to every face from the
+     * same buffer. A compact packet is converted to ccnb (once) for the faces
+     * that never sent a compact packet.
+     * @param owner the pooled buffer holding the original packet, or null.
+     * @throws IOException
+     */
+    private void forwardMulticast(List<ContentName> CDs, OutLinkFace face, ByteBuffer originalContent, PooledBuffer owner) throws IOException {
+        FanOutSet faces = _fanOutSets.get();
+        try {
+            collectFanOut(CDs, faces);
+            if (faces.size() == 0) {
+                return;
+            }
+            // queued packets must not be in reused buffers
+            ByteBuffer packet = stable(originalContent);
+            if (packet != originalContent) {
+                owner = null;
+                originalContent = packet;
+            }
+            int priority = priority(CDs);
+            int start = originalContent.position();
+            boolean compact = CompactFormat.isCompact(originalContent);
+            ByteBuffer ccnb = null;
+            for (int i = 0; i < faces.size(); i++) {
+                OutLinkFace f = face(faces.get(i));
+                if (f == null || f == face) {
+                    continue;
+                }
+                if (compact && !f._compact) {
+                    if (ccnb == null) {
+                        originalContent.position(start);
+                        ccnb = ByteBuffer.wrap(new MulticastView(originalContent).toMulticast().encode());
+                    }
+                    ccnb.rewind();
+                    f.writeToRemote(ccnb, priority, true);
+                    continue;
+                }
+                originalContent.position(start);
+                f.writeToRemote(originalContent, priority, true, owner);
+            }
+        } finally {
+            faces.clear();
+        }
+    }
+
+    /**
+     * Collect the indices of the faces subscribed to any of the CDs, using the
+     * fan-out cache if it is enabled.
+     *
+     * @param CDs the CDs of a multicast.
+     * @param faces the set collecting the face indices.
+     */
+    private void collectFanOut(List<ContentName> CDs, FanOutSet faces) {
+        FanOutCache cache = _fanOutCache;
+        if (cache == null) {
+            SubscriptionTable<Integer>.Snapshot st = _st.snapshot();
+            for (ContentName CD : CDs) {
+                st.visitValues(CD, faces);
+            }
+            return;
+        }
+        Object key = cache.keyOf(CDs);
+        if (key != null) {
+            faces.addAll(getFanOut(cache, key, CDs));
+            return;
+        }
+        // the CD set is not cached as a whole, merge the results of its CDs
+        for (ContentName CD : CDs) {
+            faces.addAll(getFanOut(cache, CD, Collections.singletonList(CD)));
+        }
+    }
+
+    private int[] getFanOut(FanOutCache cache, Object key, List<ContentName> CDs) {
+        int[] faces = cache.get(key);
+        if (faces == null) {
+            long version = cache.version();
+            SubscriptionTable<Integer>.Snapshot st = _st.snapshot();
+            FanOutSet set = new FanOutSet();
+            for (ContentName CD : CDs) {
+                st.visitValues(CD, set);
             }
+            faces = set.toArray();
+            cache.put(key, faces, version);
+        }
+        return faces;
+    }
+
+    /**
+     * An additional socket listening to the COPSS port. Packets received are
+     * handled in the same way as the ones received by the main socket.
+     */
+    class Ingress extends NetworkNode {
+
+        public Ingress() throws IOException {
+            super(openDatagramChannel(_listenPort, true), _loop);
+        }
+
+        DatagramChannel channel() {
+            return _channel;
+        }
+
+        @Override
+        protected void handlePacket(DatagramPacket packet) {
+            COPSSD.this.handlePacket(packet);
+        }
+
+        @Override
+        protected void handleBuffer(PooledBuffer buffer, InetSocketAddress from) {
+            COPSSD.this.handleBuffer(buffer, from);
         }
     }
 
@@ -389,13 +1777,8 @@ public class COPSSD extends NetworkListener {
 
             @Override
             public boolean handleInterest(Interest interest) {
-                Multicast multicast = new Multicast();
                 try {
-                    if (multicast.decapsulate(interest)) {
-//                            System.out.println(multicast);
-                        handleMulticastPacket(multicast, null, multicast.encode());
-                        return true;
-                    }
+                    return handleRPInterest(interest);
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
@@ -410,7 +1793,7 @@ public class COPSSD extends NetworkListener {
 //                try {
 //                    if (multicast.decapsulate(interest)) {
 ////                            System.out.println(multicast);
-//                        handleMulticastPacket(multicast, null, multicast.encode());
+//                        handleMulticastPacket(multicast, null, ByteBuffer.wrap(multicast.encode()));
 //                        return true;
 //                    }
 //                } catch (Exception e) {
@@ -456,10 +1839,24 @@ public class COPSSD extends NetworkListener {
          * If remote is a router.
          */
         public boolean _isRouter;
+        /**
+         * Dense index of the face in the router, used in the ST.
+         */
+        public int _index;
+        /**
+         * If remote has sent packets in the compact format, so multicasts can
+         * be forwarded to it without converting them to ccnb.
+         */
+        public volatile boolean _compact;
+        /**
+         * The queue of the packets to remote, null if they are sent by the
+         * forwarding thread.
+         */
+        volatile EgressQueue _egress;
 
-        public OutLinkFace(InetSocketAddress remoteAddress, boolean isRouter) throws SocketException, UnknownHostException, CCNDaemonException {
+        public OutLinkFace(InetSocketAddress remoteAddress, boolean isRouter) throws IOException, CCNDaemonException {
 
-            super(new InetSocketAddress(GetLocalhostAddress(), _ccnPort));
+            super(new InetSocketAddress(GetLocalhostAddress(), _ccnPort), _faceLoop);
 
             _remoteAddress = remoteAddress;
             _isRouter = isRouter;
@@ -498,20 +1895,88 @@ public class COPSSD extends NetworkListener {
             send(buf);
         }
 
+        /**
+         * Write a packet to NDN using local listen port.
+         *
+         * @param buf the packet content, from position to limit.
+         * @throws IOException
+         */
+        public void writeToCCN(ByteBuffer buf) throws IOException {
+            send(buf);
+        }
+
         /**
          * Write a packet to remote address using COPSS listen port.
          *
-         * @param buf the packet content.
+         * @param buf the packet content, not changed after the call.
          * @throws IOException
          */
         public void writeToRemote(byte[] buf) throws IOException {
 //            System.out.println(_remoteAddress);
+            if (_egress != null) {
+                writeToRemote(ByteBuffer.wrap(buf), 0, true);
+                return;
+            }
             COPSSD.this.send(_remoteAddress, buf);
         }
 
+        /**
+         * Write a packet to remote address using COPSS listen port.
+         *
+         * @param buf the packet content, from position to limit.
+         * @throws IOException
+         */
+        public void writeToRemote(ByteBuffer buf) throws IOException {
+            writeToRemote(buf, 0, false);
+        }
+
+        /**
+         * Write a packet to remote address, through the egress queue if the
+         * face has one. A full queue drops a packet according to its policy.
+         *
+         * @param buf the packet content, from position to limit.
+         * @param priority the priority of the packet (see DropPolicy).
+         * @param shared if the packet never changes, so the queue keeps it
+         * without copying. Otherwise it may be in a buffer that is reused.
+         * @throws IOException
+         */
+        void writeToRemote(ByteBuffer buf, int priority, boolean shared) throws IOException {
+            writeToRemote(buf, priority, shared, null);
+        }
+
+        /**
+         * Write a packet to remote address, see writeToRemote(ByteBuffer,
+         * int, boolean). Without an egress queue, the send stage keeps a
+         * reference to the pooled buffer instead of copying the packet.
+         *
+         * @param buf the packet content, from position to limit.
+         * @param priority the priority of the packet (see DropPolicy).
+         * @param shared if the packet never changes.
+         * @param owner the pooled buffer holding the packet, or null.
+         * @throws IOException
+         */
+        void writeToRemote(ByteBuffer buf, int priority, boolean shared, PooledBuffer owner) throws IOException {
+            EgressQueue egress = _egress;
+            if (egress == null) {
+                COPSSD.this.send(_remoteAddress, buf, owner);
+                return;
+            }
+            if (shared) {
+                egress.offer(buf.duplicate(), priority);
+                return;
+            }
+            byte[] copy = new byte[buf.remaining()];
+            buf.get(copy);
+            egress.offer(ByteBuffer.wrap(copy), priority);
+        }
+
         @Override
         public void stop() {
             super.stop();
+            EgressQueue egress = _egress;
+            if (egress != null) {
+                egress.close();
+            }
             try {
                 _faceManager.deleteFace(_faceID);
             } catch (CCNDaemonException ex) {
@@ -531,15 +1996,46 @@ public class COPSSD extends NetworkListener {
 //            System.out.printf("WriteToRemote: %s%n", _remoteAddress);
             System.arraycopy(packet.getData(), 0, buf, 0, buf.length);
             try {
-                writeToRemote(buf);
+                ByteBuffer content = ByteBuffer.wrap(buf);
+                writeToRemote(content, tunnelPriority(content), true);
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+
+        /**
+         * Forward a packet received into a pooled buffer to the remote
+         * address without copying it.
+         *
+         * @param buffer the buffer holding the packet.
+         * @param from the address of NDN.
+         */
+        @Override
+        protected void handleBuffer(PooledBuffer buffer, InetSocketAddress from) {
+            try {
+                writeToRemote(buffer.view(), tunnelPriority(buffer.view()), false, buffer);
             } catch (IOException ex) {
                 ex.printStackTrace();
+            } finally {
+                buffer.release();
             }
         }
 
+        /**
+         * Get the priority of a packet from NDN in the egress queue:
+         * encapsulated Controls are control packets.
+         *
+         * @param packet the packet, from position to limit (not changed).
+         * @return the priority.
+         */
+        private int tunnelPriority(ByteBuffer packet) {
+            return _egress != null && PacketClassifier.isEncapsulatedControl(packet) ? EgressQueue.CONTROL_PRIORITY : 0;
+        }
+
         @Override
         public String toString() {
-            return String.format("Face %d, %s, %b", _faceID, _remoteAddress, _isRouter);
+            EgressQueue egress = _egress;
+            return String.format("Face %d, %s, %b%s", _faceID, _remoteAddress, _isRouter, egress == null ? "" : ", " + egress);
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,26 @@
+package copssd;
+
+/**
+ * What an egress queue (see EgressQueue) drops when a packet arrives and the
+ * queue is full.
+ *
+ * @author Jiachen Chen
+ */
+public enum DropPolicy {
+
+    /**
+     * Drop the new packet.
+     */
+    TAIL_DROP,
+    /**
+     * Drop the oldest queued packet.
+     */
+    DROP_OLDEST,
+    /**
+     * Drop the oldest packet of the lowest priority, or the new packet if no
+     * queued packet has a lower priority than it. The priority of a multicast
+     * is the highest priority of its CDs (see COPSSD.setCDPriority), control
+     * packets have the highest priority.
+     */
+    PRIORITY
+}
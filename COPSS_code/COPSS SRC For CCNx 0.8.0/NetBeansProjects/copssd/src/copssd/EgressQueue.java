@@ -0,0 +1,259 @@
+package copssd;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded queue of the packets sent to the remote of a face.
+ *
+ * The thread forwarding a packet only adds it to the queue. The queue is
+ * drained by a task on a shared executor, one task per queue at a time, so
+ * the packets of a face are sent in order and a slow face only delays
+ * itself. A task sends at most QUANTUM packets before giving the thread to
+ * the other queues.
+ *
+ * Sending is paced by a token bucket of rate bytes per second holding up to
+ * burst bytes. A packet is sent while the bucket is not empty and may take it
+ * below zero, the task then waits until it refills.
+ *
+ * When the queue is full, the packet dropped depends on the DropPolicy.
+ *
+ * @author Jiachen Chen
+ */
+@SuppressWarnings("CallToThreadDumpStack")
+abstract class EgressQueue implements Runnable {
+
+    /**
+     * Priority of control packets, never dropped in favor of data by the
+     * PRIORITY policy.
+     */
+    static final int CONTROL_PRIORITY = Integer.MAX_VALUE;
+    /**
+     * Maximum number of packets sent by a task before it yields.
+     */
+    private static final int QUANTUM = 64;
+    private final int _capacity;
+    private final long _rate;
+    private final long _burst;
+    private final DropPolicy _policy;
+    private final ScheduledExecutorService _executor;
+    private final ArrayDeque<Packet> _queue = new ArrayDeque<>();
+    /**
+     * Bytes in the bucket, may be negative after a large packet.
+     */
+    private double _tokens;
+    private long _refilled = System.nanoTime();
+    /**
+     * If a drain task is submitted or running.
+     */
+    private boolean _scheduled = false;
+    private boolean _closed = false;
+    private long _sent = 0, _dropped = 0, _errors = 0, _latency = 0, _maxLatency = 0;
+
+    /**
+     * Create a queue.
+     *
+     * @param capacity the maximum number of queued packets.
+     * @param rate the pacing rate (bytes/s), 0 for no pacing.
+     * @param burst the size of the token bucket (bytes).
+     * @param policy the drop policy.
+     * @param executor the executor running the drain tasks.
+     */
+    EgressQueue(int capacity, long rate, long burst, DropPolicy policy, ScheduledExecutorService executor) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        _capacity = capacity;
+        _rate = rate;
+        _burst = Math.max(1, burst);
+        _policy = policy;
+        _executor = executor;
+        _tokens = _burst;
+    }
+
+    /**
+     * Send a packet to the remote.
+     *
+     * @param packet the packet, from position to limit.
+     * @throws IOException
+     */
+    protected abstract void send(ByteBuffer packet) throws IOException;
+
+    /**
+     * Add a packet to the queue.
+     *
+     * @param packet the packet, from position to limit. It is kept until sent
+     * and must not change.
+     * @param priority the priority of the packet, used by the PRIORITY policy.
+     * @return false if the packet is dropped.
+     */
+    boolean offer(ByteBuffer packet, int priority) {
+        boolean submit;
+        synchronized (this) {
+            if (_closed) {
+                _dropped++;
+                return false;
+            }
+            if (_queue.size() >= _capacity && !makeRoom(priority)) {
+                _dropped++;
+                return false;
+            }
+            _queue.add(new Packet(packet, priority, System.nanoTime()));
+            submit = !_scheduled;
+            _scheduled = true;
+        }
+        if (submit) {
+            schedule(0);
+        }
+        return true;
+    }
+
+    /**
+     * Drop a queued packet according to the policy.
+     *
+     * @param priority the priority of the new packet.
+     * @return false if the new packet should be dropped instead.
+     */
+    private boolean makeRoom(int priority) {
+        switch (_policy) {
+            case DROP_OLDEST: {
+                _queue.poll();
+                _dropped++;
+                return true;
+            }
+            case PRIORITY: {
+                Iterator<Packet> it = _queue.iterator();
+                Packet lowest = null;
+                while (it.hasNext()) {
+                    Packet p = it.next();
+                    if (p._priority < priority && (lowest == null || p._priority < lowest._priority)) {
+                        lowest = p;
+                    }
+                }
+                if (lowest == null) {
+                    return false;
+                }
+                _queue.removeFirstOccurrence(lowest);
+                _dropped++;
+                return true;
+            }
+            default:
+                return false;
+        }
+    }
+
+    private void schedule(long delay) {
+        try {
+            if (delay > 0) {
+                _executor.schedule(this, delay, TimeUnit.NANOSECONDS);
+            } else {
+                _executor.execute(this);
+            }
+        } catch (RejectedExecutionException ex) {
+            // executor shut down, the packets are discarded
+            close();
+        }
+    }
+
+    /**
+     * Drain task: send the queued packets as the bucket allows.
+     */
+    @Override
+    public void run() {
+        for (int i = 0; i < QUANTUM; i++) {
+            Packet p;
+            long wait;
+            synchronized (this) {
+                if (_closed || _queue.isEmpty()) {
+                    _scheduled = false;
+                    return;
+                }
+                wait = refill();
+                if (wait > 0) {
+                    break;
+                }
+                p = _queue.poll();
+                _tokens -= p._packet.remaining();
+            }
+            try {
+                send(p._packet);
+                long latency = System.nanoTime() - p._enqueued;
+                synchronized (this) {
+                    _sent++;
+                    _latency += latency;
+                    _maxLatency = Math.max(_maxLatency, latency);
+                }
+            } catch (Exception ex) {
+                synchronized (this) {
+                    _errors++;
+                }
+                ex.printStackTrace();
+            }
+        }
+        long wait;
+        synchronized (this) {
+            wait = refill();
+        }
+        schedule(wait);
+    }
+
+    /**
+     * Refill the bucket.
+     *
+     * @return the time (ns) until the bucket is not empty, 0 if it is not.
+     */
+    private long refill() {
+        if (_rate <= 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        _tokens = Math.min(_burst, _tokens + (now - _refilled) * 1e-9 * _rate);
+        _refilled = now;
+        return _tokens > 0 ? 0 : (long) ((1 - _tokens) * 1e9 / _rate) + 1;
+    }
+
+    /**
+     * Stop accepting packets and discard the queued ones.
+     */
+    synchronized void close() {
+        _closed = true;
+        _dropped += _queue.size();
+        _queue.clear();
+    }
+
+    synchronized int depth() {
+        return _queue.size();
+    }
+
+    synchronized long dropped() {
+        return _dropped;
+    }
+
+    synchronized long sent() {
+        return _sent;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("EgressQueue: depth=%d/%d, sent=%d, dropped=%d, errors=%d, latency avg=%.1f us max=%.1f us, rate=%d B/s, %s",
+                _queue.size(), _capacity, _sent, _dropped, _errors, _sent == 0 ? 0 : _latency / 1e3 / _sent, _maxLatency / 1e3, _rate, _policy);
+    }
+
+    private static class Packet {
+
+        private final ByteBuffer _packet;
+        private final int _priority;
+        private final long _enqueued;
+
+        Packet(ByteBuffer packet, int priority, long enqueued) {
+            _packet = packet;
+            _priority = priority;
+            _enqueued = enqueued;
+        }
+    }
+}
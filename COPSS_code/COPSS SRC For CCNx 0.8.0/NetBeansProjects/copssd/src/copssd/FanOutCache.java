@@ -0,0 +1,236 @@
+package copssd;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.ccnx.ccn.protocol.ContentName;
+
+/**
+ * Caches the fan-out result of multicasts: the indices of the faces
+ * subscribed to a CD (or to any CD of a CD set), as an immutable array.
+ *
+ * Lookups only read a concurrent map. The cache is bounded and evicts an
+ * entry not used recently (CLOCK: an entry used since the last pass of the
+ * eviction gets a second chance). When the ST changes under a prefix, only
+ * the entries with a CD under that prefix are invalidated, found through an
+ * index of the keys by every prefix of their CDs. A result computed from an
+ * ST snapshot taken before an invalidation is not cached (see version()).
+ *
+ * @author Jiachen Chen
+ */
+class FanOutCache {
+
+    private final int _capacity;
+    private final boolean _cacheSets;
+    /**
+     * Keys are ContentNames (single CD) or Lists of ContentNames (CD sets).
+     * Changed only with _index locked.
+     */
+    private final ConcurrentHashMap<Object, Entry> _entries = new ConcurrentHashMap<>();
+    /**
+     * Prefix -> keys with a CD under it (the CD itself included).
+     */
+    private final HashMap<ContentName, HashSet<Object>> _index = new HashMap<>();
+    /**
+     * Entries in the order they are cached, scanned by the eviction. May hold
+     * entries already invalidated.
+     */
+    private final ArrayDeque<Entry> _clock = new ArrayDeque<>();
+    /**
+     * Increased on each invalidation.
+     */
+    private volatile long _version = 0;
+    private final AtomicLong _hits = new AtomicLong(), _misses = new AtomicLong(), _invalidations = new AtomicLong();
+
+    /**
+     * Create a fan-out cache.
+     *
+     * @param capacity the maximum number of entries.
+     * @param cacheSets if whole CD sets are cached, or only single CDs.
+     */
+    FanOutCache(int capacity, boolean cacheSets) {
+        _capacity = capacity;
+        _cacheSets = cacheSets;
+    }
+
+    /**
+     * Get the key of a CD set: the CD itself if there is only 1 CD, the set if
+     * sets are cached, otherwise null (not cacheable as a whole).
+     *
+     * @param CDs the CDs of a multicast.
+     * @return the key, or null.
+     */
+    Object keyOf(List<ContentName> CDs) {
+        if (CDs.size() == 1) {
+            return CDs.get(0);
+        }
+        return _cacheSets ? CDs : null;
+    }
+
+    /**
+     * Get the version, to be read before taking the ST snapshot a result is
+     * computed from.
+     *
+     * @return the version.
+     */
+    long version() {
+        return _version;
+    }
+
+    /**
+     * Get a cached result.
+     *
+     * @param key the key, see keyOf.
+     * @return the face indices, or null if not cached.
+     */
+    int[] get(Object key) {
+        Entry entry = _entries.get(key);
+        if (entry == null) {
+            _misses.incrementAndGet();
+            return null;
+        }
+        // only written when it changes, a hot entry is not written on each hit
+        if (!entry._used) {
+            entry._used = true;
+        }
+        _hits.incrementAndGet();
+        return entry._faces;
+    }
+
+    /**
+     * Cache a result, unless the cache is invalidated after version is read.
+     *
+     * @param key the key, see keyOf.
+     * @param faces the face indices, must not be changed afterwards.
+     * @param version the version read before the ST snapshot was taken.
+     */
+    void put(Object key, int[] faces, long version) {
+        synchronized (_index) {
+            if (_version != version) {
+                return;
+            }
+            Entry entry = new Entry(key, faces);
+            if (_entries.put(key, entry) == null) {
+                for (ContentName CD : CDs(key)) {
+                    for (int i = 0; i <= CD.count(); i++) {
+                        ContentName prefix = i == CD.count() ? CD : CD.cut(i);
+                        HashSet<Object> keys = _index.get(prefix);
+                        if (keys == null) {
+                            keys = new HashSet<>();
+                            _index.put(prefix, keys);
+                        }
+                        keys.add(key);
+                    }
+                }
+            }
+            _clock.add(entry);
+            evict();
+        }
+    }
+
+    /**
+     * Evict entries until the clock is within the capacity.
+     */
+    private void evict() {
+        while (_clock.size() > _capacity) {
+            Entry entry = _clock.poll();
+            if (_entries.get(entry._key) != entry) {
+                // invalidated or replaced
+                continue;
+            }
+            if (entry._used) {
+                entry._used = false;
+                _clock.add(entry);
+                continue;
+            }
+            remove(entry._key);
+        }
+    }
+
+    /**
+     * Invalidate the entries having a CD under any of the prefixes.
+     *
+     * @param prefixes the names changed in the ST.
+     */
+    void invalidate(Collection<ContentName> prefixes) {
+        if (prefixes.isEmpty()) {
+            return;
+        }
+        synchronized (_index) {
+            _version++;
+            for (ContentName prefix : prefixes) {
+                HashSet<Object> keys = _index.get(prefix);
+                if (keys == null) {
+                    continue;
+                }
+                for (Object key : new ArrayList<>(keys)) {
+                    remove(key);
+                    _invalidations.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove an entry and its index, _index must be locked.
+     */
+    private void remove(Object key) {
+        _entries.remove(key);
+        for (ContentName CD : CDs(key)) {
+            for (int i = 0; i <= CD.count(); i++) {
+                ContentName prefix = i == CD.count() ? CD : CD.cut(i);
+                HashSet<Object> keys = _index.get(prefix);
+                if (keys != null && keys.remove(key) && keys.isEmpty()) {
+                    _index.remove(prefix);
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove all the entries.
+     */
+    void clear() {
+        synchronized (_index) {
+            _version++;
+            _entries.clear();
+            _index.clear();
+            _clock.clear();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<ContentName> CDs(Object key) {
+        if (key instanceof ContentName) {
+            return Collections.singletonList((ContentName) key);
+        }
+        return (List<ContentName>) key;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FanOutCache: size=%d/%d, sets=%b, hits=%d, misses=%d, invalidations=%d",
+                _entries.size(), _capacity, _cacheSets, _hits.get(), _misses.get(), _invalidations.get());
+    }
+
+    private static class Entry {
+
+        private final Object _key;
+        private final int[] _faces;
+        /**
+         * Set by a hit, cleared by the eviction.
+         */
+        private volatile boolean _used = false;
+
+        Entry(Object key, int[] faces) {
+            _key = key;
+            _faces = faces;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package copssd;
+
+import copss.util.SubscriptionTable;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A reusable set of face indices used to de-duplicate the faces of a
+ * fan-out.
+ *
+ * Membership is kept in a bit set and the members in an array, so adding and
+ * clearing cost linear time in the number of members and nothing is allocated
+ * once the set has grown to the number of faces.
+ *
+ * @author Jiachen Chen
+ */
+class FanOutSet implements SubscriptionTable.Visitor<Integer> {
+
+    private final BitSet _bits = new BitSet();
+    private int[] _indices = new int[16];
+    private int _size = 0;
+
+    /**
+     * Add a face index if it is not in the set.
+     *
+     * @param index the face index.
+     */
+    void add(int index) {
+        if (_bits.get(index)) {
+            return;
+        }
+        _bits.set(index);
+        if (_size == _indices.length) {
+            _indices = Arrays.copyOf(_indices, _size * 2);
+        }
+        _indices[_size++] = index;
+    }
+
+    void addAll(int[] indices) {
+        for (int index : indices) {
+            add(index);
+        }
+    }
+
+    @Override
+    public void visit(Integer index) {
+        add(index);
+    }
+
+    int size() {
+        return _size;
+    }
+
+    /**
+     * Get a member, in the order of adding.
+     *
+     * @param i the position.
+     * @return the face index.
+     */
+    int get(int i) {
+        return _indices[i];
+    }
+
+    int[] toArray() {
+        return Arrays.copyOf(_indices, _size);
+    }
+
+    /**
+     * Remove all the members.
+     */
+    void clear() {
+        for (int i = 0; i < _size; i++) {
+            _bits.clear(_indices[i]);
+        }
+        _size = 0;
+    }
+}
@@ -1,14 +1,40 @@
 package copssd;
 
+import common.BufferPool;
+import common.EventLoop;
+import common.NetworkClient;
+import common.NetworkListener;
+import common.SendStage;
 import copss.protocol.Control;
+import copss.protocol.FragmentReassembler;
 import copss.protocol.Multicast;
+import copss.protocol.MulticastBatch;
+import copss.protocol.MulticastBatchView;
+import copss.protocol.MulticastView;
+import copss.protocol.PacketClassifier;
+import copss.protocol.SplitPlan;
+import copss.protocol.SplitPlanCache;
+import copss.util.CDRPMapping;
+import copss.util.SubscriptionTable;
 import copss.util.Utility;
 import java.io.*;
+import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.ccnx.ccn.impl.InterestTable;
@@ -26,7 +52,145 @@ import org.ccnx.ccn.protocol.MalformedContentNameStringException;
 @SuppressWarnings("CallToThreadDumpStack")
 public class Main {
 
+    /**
+     * System property: number of event loop threads serving the router and
+     * its faces. 0 (default) means a thread per node.
+     */
+    public static final String PROP_EVENT_LOOP_THREADS = "copssd.eventLoopThreads";
+    /**
+     * System property: number of empty polls before an event loop thread
+     * parks. 0 (default) means park immediately.
+     */
+    public static final String PROP_EVENT_LOOP_SPIN = "copssd.eventLoopSpin";
+    /**
+     * System property: number of sockets listening to the COPSS port
+     * (SO_REUSEPORT), default 1.
+     */
+    public static final String PROP_SOCKETS = "copssd.sockets";
+    /**
+     * System property: number of receive buffers kept in the buffer pool. 0
+     * (default) means no pool is used.
+     */
+    public static final String PROP_BUFFER_POOL = "copssd.bufferPool";
+    /**
+     * System property: if the pooled buffers are direct buffers (event loop
+     * mode only), default false.
+     */
+    public static final String PROP_DIRECT_BUFFERS = "copssd.directBuffers";
+    /**
+     * System property: maximum number of cached fan-out results. 0 (default)
+     * disables the cache.
+     */
+    public static final String PROP_FAN_OUT_CACHE = "copssd.fanOutCache";
+    /**
+     * System property: if the fan-out results of whole CD sets are cached,
+     * default false.
+     */
+    public static final String PROP_FAN_OUT_CACHE_SETS = "copssd.fanOutCacheSets";
+    /**
+     * System property: number of worker threads processing the packets. 0
+     * (default) means packets are processed to completion by the receiving
+     * thread.
+     */
+    public static final String PROP_WORKERS = "copssd.workers";
+    /**
+     * System property: capacity of each queue (control and data) of each
+     * worker, default 4096.
+     */
+    public static final String PROP_WORKER_QUEUE = "copssd.workerQueue";
+    /**
+     * System property: the maximum number of control packets a worker serves
+     * in a row while data is waiting, default 8.
+     */
+    public static final String PROP_CONTROL_WEIGHT = "copssd.controlWeight";
+
+    /**
+     * System property: if packets sent to RPs are encapsulated as raw name
+     * components instead of base64 text, default false (understood by old
+     * routers).
+     */
+    public static final String PROP_BINARY_ENCAPSULATION = "copssd.binaryEncapsulation";
+    /**
+     * System property: file of the CD to RP mapping (see CDRPMapping.load).
+     * Not set (default) means every CD is mapped to /RP.
+     */
+    public static final String PROP_CD_RP_MAPPING = "copssd.cdRPMapping";
+    /**
+     * System property: interval (ms) of checking the mapping file for
+     * changes, default 1000. 0 means the mapping is only reloaded by command.
+     */
+    public static final String PROP_CD_RP_MAPPING_WATCH = "copssd.cdRPMappingWatch";
+    /**
+     * System property: maximum number of cached split plans (CD set to RPs
+     * and encapsulation prefixes). 0 (default) disables the cache.
+     */
+    public static final String PROP_SPLIT_PLAN_CACHE = "copssd.splitPlanCache";
+    /**
+     * System property: window (ms) the ST changes sent to an RP are
+     * coalesced. 0 (default) sends each change immediately.
+     */
+    public static final String PROP_ST_CHANGE_WINDOW = "copssd.stChangeWindow";
+    /**
+     * System property: number of pending CDs of an RP that sends the
+     * coalesced change before the window expires, default 1000.
+     */
+    public static final String PROP_ST_CHANGE_LIMIT = "copssd.stChangeLimit";
+    /**
+     * System property: number of threads of an event loop serving the faces
+     * only. 0 (default) means the faces are served like the router: by its
+     * event loop, or by a thread each.
+     */
+    public static final String PROP_FACE_LOOP_THREADS = "copssd.faceLoopThreads";
+    /**
+     * System property: if multicasts to the RPs of this router skip NDN,
+     * default true.
+     */
+    public static final String PROP_LOCAL_RP_SHORT_CIRCUIT = "copssd.localRPShortCircuit";
+    /**
+     * System property: if encapsulated COPSS packets are forwarded with the
+     * FIB of the router instead of NDN, default true.
+     */
+    public static final String PROP_NATIVE_FIB = "copssd.nativeFIB";
+    /**
+     * System property: capacity (packets) of the egress queue of each face. 0
+     * (default) means packets are sent by the forwarding thread.
+     */
+    public static final String PROP_EGRESS_QUEUE = "copssd.egressQueue";
+    /**
+     * System property: pacing rate of each face (bytes/s), 0 (default) means
+     * no pacing.
+     */
+    public static final String PROP_EGRESS_RATE = "copssd.egressRate";
+    /**
+     * System property: size of the token bucket of each face (bytes), default
+     * 65536.
+     */
+    public static final String PROP_EGRESS_BURST = "copssd.egressBurst";
+    /**
+     * System property: drop policy of the egress queues, TAIL_DROP (default),
+     * DROP_OLDEST or PRIORITY.
+     */
+    public static final String PROP_EGRESS_DROP_POLICY = "copssd.egressDropPolicy";
+    /**
+     * System property: number of threads draining the egress queues, default
+     * 1.
+     */
+    public static final String PROP_EGRESS_THREADS = "copssd.egressThreads";
+    /**
+     * System property: capacity of the queue of each sender thread (one per
+     * socket). 0 (default) means packets are sent by the threads forwarding
+     * them.
+     */
+    public static final String PROP_SENDER_QUEUE = "copssd.senderQueue";
+    /**
+     * System property: the maximum number of packets a sender thread takes
+     * from its queue in one drain, default 64. Each is still sent with a
+     * send call of its own.
+     */
+    public static final String PROP_SENDER_BATCH = "copssd.senderBatch";
+
     private static COPSSD copssd;
+    private static EventLoop loop, faceLoop;
 
     /**
      * @param args the command line arguments
@@ -42,7 +206,47 @@ public class Main {
 //        }
 //        String listenAddress = args[0];
 //        int listenPort = Integer.parseInt(args[1]);
-        copssd = new COPSSD(Utility.DEFAULT_COPSS_PORT, Utility.DEFAULT_CCN_PORT);
+        int loopThreads = Integer.getInteger(PROP_EVENT_LOOP_THREADS, 0);
+        int sockets = Integer.getInteger(PROP_SOCKETS, 1);
+        int senderQueue = Integer.getInteger(PROP_SENDER_QUEUE, 0);
+        if (loopThreads > 0) {
+            loop = new EventLoop(loopThreads, Integer.getInteger(PROP_EVENT_LOOP_SPIN, 0));
+        }
+        if (loop != null || sockets > 1 || senderQueue > 0) {
+            copssd = new COPSSD(Utility.DEFAULT_COPSS_PORT, Utility.DEFAULT_CCN_PORT, loop, sockets);
+        } else {
+            copssd = new COPSSD(Utility.DEFAULT_COPSS_PORT, Utility.DEFAULT_CCN_PORT);
+        }
+        int poolSize = Integer.getInteger(PROP_BUFFER_POOL, 0);
+        if (poolSize > 0) {
+            copssd.setBufferPool(new BufferPool(EventLoop.RECEIVE_BUFFER_SIZE, poolSize, Boolean.getBoolean(PROP_DIRECT_BUFFERS)));
+        }
+        int faceLoopThreads = Integer.getInteger(PROP_FACE_LOOP_THREADS, 0);
+        if (faceLoopThreads > 0) {
+            faceLoop = new EventLoop(faceLoopThreads, Integer.getInteger(PROP_EVENT_LOOP_SPIN, 0));
+            copssd.setFaceEventLoop(faceLoop);
+        }
+        copssd.setFanOutCache(Integer.getInteger(PROP_FAN_OUT_CACHE, 0), Boolean.getBoolean(PROP_FAN_OUT_CACHE_SETS));
+        copssd.setBinaryEncapsulation(Boolean.getBoolean(PROP_BINARY_ENCAPSULATION));
+        copssd.setLocalRPShortCircuit(Boolean.parseBoolean(System.getProperty(PROP_LOCAL_RP_SHORT_CIRCUIT, "true")));
+        copssd.setNativeFIB(Boolean.parseBoolean(System.getProperty(PROP_NATIVE_FIB, "true")));
+        copssd.setEgressQueues(Integer.getInteger(PROP_EGRESS_QUEUE, 0), Long.getLong(PROP_EGRESS_RATE, 0),
+                Long.getLong(PROP_EGRESS_BURST, 65536), DropPolicy.valueOf(System.getProperty(PROP_EGRESS_DROP_POLICY, "TAIL_DROP")),
+                Integer.getInteger(PROP_EGRESS_THREADS, 1));
+        copssd.setSplitPlanCache(Integer.getInteger(PROP_SPLIT_PLAN_CACHE, 0));
+        copssd.setSTChangeCoalescing(Long.getLong(PROP_ST_CHANGE_WINDOW, 0), Integer.getInteger(PROP_ST_CHANGE_LIMIT, 1000));
+        String mappingFile = System.getProperty(PROP_CD_RP_MAPPING);
+        if (mappingFile != null) {
+            copssd.loadCDRPMapping(new File(mappingFile));
+            copssd.watchCDRPMapping(Long.getLong(PROP_CD_RP_MAPPING_WATCH, 1000));
+        }
+        int workers = Integer.getInteger(PROP_WORKERS, 0);
+        if (workers > 0) {
+            copssd.startPipeline(workers, Integer.getInteger(PROP_WORKER_QUEUE, 4096), Integer.getInteger(PROP_CONTROL_WEIGHT, 8));
+        }
+        if (senderQueue > 0) {
+            copssd.startSendStage(senderQueue, Integer.getInteger(PROP_SENDER_BATCH, 64));
+        }
 
         copssd.start();
 
@@ -74,6 +278,12 @@ public class Main {
         if (parts[0].equals("s") || parts[0].equals("stop")) {
             try {
                 copssd.close();
+                if (loop != null) {
+                    loop.close();
+                }
+                if (faceLoop != null) {
+                    faceLoop.close();
+                }
             } catch (Exception ex) {
                 Logger.getLogger(Main.class.getName()).log(Level.SEVERE, "Cannot stop COPSSD?", ex);
             }
@@ -104,6 +314,23 @@ public class Main {
             }
             return false;
         }
+        if (parts[0].equals("unlink")) {
+            if (parts.length != 3) {
+                System.out.println("Usage: unlink %address% %port%");
+                return false;
+            }
+            try {
+                InetSocketAddress destination = new InetSocketAddress(InetAddress.getByName(parts[1]), Integer.parseInt(parts[2]));
+                if (copssd.unlink(destination)) {
+                    System.out.printf("Unlinked: %s%n", destination);
+                } else {
+                    System.out.printf("Not linked to %s%n", destination);
+                }
+            } catch (NumberFormatException | IOException e) {
+                e.printStackTrace();
+            }
+            return false;
+        }
         if (parts[0].equals("status")) {
             System.out.println(copssd);
             return false;
@@ -142,6 +369,38 @@ public class Main {
             }
             return false;
         }
+        if (parts[0].equals("mapping")) {
+            if (parts.length > 2) {
+                System.out.println("Usage: mapping [reload|%file%]");
+                return false;
+            }
+            try {
+                if (parts.length == 1) {
+                    System.out.println(copssd.getCDRPMapping());
+                } else if (parts[1].equals("reload")) {
+                    copssd.reloadCDRPMapping();
+                } else {
+                    copssd.loadCDRPMapping(new File(parts[1]));
+                }
+            } catch (IOException | IllegalStateException e) {
+                System.out.printf("Mapping not changed: %s%n", e.getMessage());
+            }
+            return false;
+        }
+        if (parts[0].equals("priority")) {
+            if (parts.length != 3) {
+                System.out.println("Usage: priority %CD% %priority%");
+                return false;
+            }
+            try {
+                ContentName name = ContentName.fromNative(parts[1]);
+                copssd.setCDPriority(name, Integer.parseInt(parts[2]));
+                System.out.printf("Priority of %s: %s%n", name, parts[2]);
+            } catch (MalformedContentNameStringException | NumberFormatException e) {
+                e.printStackTrace();
+            }
+            return false;
+        }
         System.out.println("Invalid Command!");
         return false;
     }
@@ -149,8 +408,11 @@ public class Main {
     public static void help() {
         System.out.println("Commands available:");
         System.out.println("link %address% %port% %isRouter%: link to a node on address:port and tells if the node is a router.");
+        System.out.println("unlink %address% %port%: unlink the node on address:port and remove its subscriptions.");
         System.out.println("FIB %name% %address% %port%: add an FIB entry name->address:port");
         System.out.println("RP %RPName%: starts an RP module using RPName");
+        System.out.println("mapping [reload|%file%]: show, reload or load the CD to RP mapping, moving the subscriptions of the CDs whose RP changes");
+        System.out.println("priority %CD% %priority%: set the priority of a CD when egress queues drop by PRIORITY");
         System.out.println("status: show the status of the COPSSD");
         System.out.println("help: show this message.");
         System.out.println("stop: stop COPSSD.");
@@ -220,4 +482,620 @@ public class Main {
         }
 
     }
-}
\ No newline at end of file
+    /**
+     * Measure the heap used per subscription for a synthetic load of args[0]
+     * (default 10,000,000) subscriptions: 4 faces per CD, CDs sharing the
+     * prefixes /sports/league{n}/team{n}. The ST is compared with an
+     * InterestTable (the original ST). args[1] selects InterestTable or
+     * SubscriptionTable only, to measure each in a JVM of its own. Needs a
+     * large heap (-Xmx).
+     */
+    public static void SubscriptionMemoryTest(String[] args) throws InterruptedException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+        String table = args.length > 1 ? args[1] : "all";
+        long before, after;
+
+        if (table.equals("all") || table.equals("InterestTable")) {
+            before = usedMemory();
+            InterestTable<Integer> it = new InterestTable<>();
+            for (int i = 0; i < count; i++) {
+                it.add(syntheticCD(i / 4), i % 256);
+            }
+            after = usedMemory();
+            System.out.printf("InterestTable: %d subscriptions, %.1f bytes/subscription%n",
+                    it.size(), (double) (after - before) / count);
+        }
+        if (!table.equals("all") && !table.equals("SubscriptionTable")) {
+            return;
+        }
+
+        before = usedMemory();
+        SubscriptionTable<Integer> st = new SubscriptionTable<>();
+        SubscriptionTable<Integer>.Batch batch = st.batch();
+        for (int i = 0; i < count; i++) {
+            // one batch per (large) control packet
+            if (i % 1000 == 999) {
+                batch.commit();
+                batch = st.batch();
+            }
+            batch.add(syntheticCD(i / 4), i % 256);
+        }
+        batch.commit();
+        after = usedMemory();
+        System.out.printf("SubscriptionTable: %d subscriptions, %.1f bytes/subscription, %s%n",
+                st.size(), (double) (after - before) / count, st.registry());
+    }
+
+    /**
+     * Compare the base64 and the binary encapsulation: bytes on the wire and
+     * ns per packet (encapsulate, encode, decode, decapsulate) for a
+     * multicast with args[0]
+     * (default 4) CDs and args[1] (default 1000) bytes of content.
+     */
+    public static void EncapsulationTest(String[] args) throws MalformedContentNameStringException, IOException {
+        int cdCount = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int contentSize = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int rounds = 100000;
+        InterestTable<ContentName> CD2RPMapping = getCD2RPMappingTable();
+
+        LinkedList<ContentName> CDs = new LinkedList<>();
+        for (int i = 0; i < cdCount; i++) {
+            CDs.add(ContentName.fromNative("/sports/football/team" + i));
+        }
+        byte[] content = new byte[contentSize];
+        new Random().nextBytes(content);
+        Multicast multicast = new Multicast(CDs, content);
+
+        for (boolean binary : new boolean[]{false, true}) {
+            int bytes = 0;
+            for (Interest encap : multicast.encapsulate(CD2RPMapping, binary)) {
+                bytes += encap.encode().length;
+            }
+            long start = 0;
+            // first half warms up
+            for (int i = -rounds; i < rounds; i++) {
+                if (i == 0) {
+                    start = System.nanoTime();
+                }
+                for (Interest encap : multicast.encapsulate(CD2RPMapping, binary)) {
+                    Interest received = new Interest();
+                    received.decode(encap.encode());
+                    Multicast m = new Multicast();
+                    m.decapsulate(received);
+                }
+            }
+            System.out.printf("%s: %d bytes on the wire, %.0f ns/packet%n",
+                    binary ? "binary" : "base64", bytes, (double) (System.nanoTime() - start) / rounds);
+        }
+    }
+
+    /**
+     * Compare the encapsulation of a first hop publish (args[0], default 4,
+     * CDs and args[1], default 100, bytes of content) through
+     * Utility.splitContentNames and through a cached split plan, in ns per
+     * publish.
+     */
+    public static void SplitPlanTest(String[] args) throws MalformedContentNameStringException, IOException {
+        int cdCount = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int contentSize = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int rounds = 200000;
+        HashMap<ContentName, ContentName> rules = new HashMap<>();
+        rules.put(ContentName.fromNative("/sports"), ContentName.fromNative("/RP1"));
+        rules.put(ContentName.fromNative("/sports/football"), ContentName.fromNative("/RP2"));
+        CDRPMapping mapping = new CDRPMapping(rules);
+        SplitPlanCache plans = new SplitPlanCache(mapping, 1024);
+
+        LinkedList<ContentName> CDs = new LinkedList<>();
+        for (int i = 0; i < cdCount; i++) {
+            CDs.add(ContentName.fromNative((i % 2 == 0 ? "/sports/football/team" : "/sports/tennis/player") + i));
+        }
+        byte[] content = new byte[contentSize];
+        new Random().nextBytes(content);
+        Multicast multicast = new Multicast(CDs, content);
+
+        for (boolean binary : new boolean[]{false, true}) {
+            for (int cached = 0; cached < 2; cached++) {
+                int packets = 0;
+                long start = 0;
+                // first half warms up
+                for (int i = -rounds; i < rounds; i++) {
+                    if (i == 0) {
+                        start = System.nanoTime();
+                    }
+                    LinkedList<Interest> encaps = cached == 0
+                            ? multicast.encapsulate(mapping, binary)
+                            : multicast.encapsulate(plans.get(CDs), binary);
+                    packets += encaps.size();
+                }
+                System.out.printf("%s, %s: %.0f ns/publish (%d Interests)%n", binary ? "binary" : "base64",
+                        cached == 0 ? "split" : "plan", (double) (System.nanoTime() - start) / rounds, packets / rounds / 2);
+            }
+        }
+        System.out.println(plans);
+    }
+
+    /**
+     * Compare the first hop processing of args[0] (default 20) messages of
+     * args[1] (default 40) bytes published one by one and in a
+     * MulticastBatch: decoding the packets and encapsulating them to RPs, in
+     * ns per message.
+     */
+    public static void MulticastBatchTest(String[] args) throws MalformedContentNameStringException, IOException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int contentSize = args.length > 1 ? Integer.parseInt(args[1]) : 40;
+        int rounds = 100000;
+        HashMap<ContentName, ContentName> rules = new HashMap<>();
+        rules.put(ContentName.fromNative("/sports"), ContentName.fromNative("/RP1"));
+        rules.put(ContentName.fromNative("/sports/football"), ContentName.fromNative("/RP2"));
+        SplitPlanCache plans = new SplitPlanCache(new CDRPMapping(rules), 1024);
+
+        Random random = new Random();
+        ArrayList<ByteBuffer> packets = new ArrayList<>();
+        int bytes = 0;
+        for (int i = 0; i < count; i++) {
+            LinkedList<ContentName> CDs = new LinkedList<>();
+            CDs.add(ContentName.fromNative((i % 2 == 0 ? "/sports/football/team" : "/sports/tennis/player") + i % 4));
+            byte[] content = new byte[contentSize];
+            random.nextBytes(content);
+            byte[] packet = new Multicast(CDs, content).encode();
+            packets.add(ByteBuffer.wrap(packet));
+            bytes += packet.length;
+        }
+        ByteBuffer batch = ByteBuffer.wrap(MulticastBatch.pack(packets, false));
+
+        for (int batched = 0; batched < 2; batched++) {
+            int interests = 0;
+            long start = 0;
+            // first half warms up
+            for (int i = -rounds; i < rounds; i++) {
+                if (i == 0) {
+                    start = System.nanoTime();
+                    interests = 0;
+                }
+                if (batched == 0) {
+                    for (ByteBuffer packet : packets) {
+                        MulticastView multicast = new MulticastView(packet);
+                        interests += plans.get(multicast.contentNames()).encapsulateMulticast(multicast.content(), true).size();
+                    }
+                } else {
+                    interests += new MulticastBatchView(batch).encapsulate(plans, true).size();
+                }
+            }
+            System.out.printf("%s: %d datagrams of %d bytes, %.0f ns/message, %d Interests%n",
+                    batched == 0 ? "single" : "batch", batched == 0 ? count : 1, batched == 0 ? bytes / count : batch.remaining(),
+                    (double) (System.nanoTime() - start) / rounds / count, interests / rounds);
+        }
+    }
+
+    /**
+     * Compare the throughput (encoding at the publisher, decoding at the
+     * subscriber) of a payload of args[0] (default 256) KB sent as fragments
+     * of args[1] (default 4096) bytes and reassembled, and of the same data
+     * sent as many publishes of the same size.
+     */
+    public static void FragmentationTest(String[] args) throws MalformedContentNameStringException, IOException {
+        int payloadSize = (args.length > 0 ? Integer.parseInt(args[0]) : 256) * 1024;
+        int fragmentSize = args.length > 1 ? Integer.parseInt(args[1]) : 4096;
+        int rounds = Math.max(10, (64 << 20) / payloadSize);
+        LinkedList<ContentName> CDs = new LinkedList<>();
+        CDs.add(ContentName.fromNative("/sports/football/snapshot"));
+        byte[] payload = new byte[payloadSize];
+        new Random().nextBytes(payload);
+        FragmentReassembler reassembler = new FragmentReassembler(payloadSize * 2, 5000);
+
+        for (int fragmented = 0; fragmented < 2; fragmented++) {
+            int datagrams = 0, bytes = 0;
+            long start = 0;
+            // first half warms up
+            for (int i = -rounds; i < rounds; i++) {
+                if (i == 0) {
+                    start = System.nanoTime();
+                    datagrams = bytes = 0;
+                }
+                if (fragmented == 1) {
+                    for (Multicast fragment : new Multicast(CDs, payload).fragment(fragmentSize, i)) {
+                        byte[] packet = fragment.encode();
+                        datagrams++;
+                        bytes += packet.length;
+                        Multicast received = new Multicast();
+                        received.decode(packet);
+                        received = reassembler.add(received);
+                        if (received != null && received.content().length != payloadSize) {
+                            throw new IllegalStateException("Reassembled " + received.content().length + " bytes");
+                        }
+                    }
+                } else {
+                    for (int offset = 0; offset < payloadSize; offset += fragmentSize) {
+                        byte[] packet = new Multicast(CDs, Arrays.copyOfRange(payload, offset, Math.min(offset + fragmentSize, payloadSize))).encode();
+                        datagrams++;
+                        bytes += packet.length;
+                        new Multicast().decode(packet);
+                    }
+                }
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%s: %d datagrams/payload, %.1f%% overhead, %.1f MB/s%n", fragmented == 1 ? "fragmented" : "small publishes",
+                    datagrams / rounds, 100.0 * (bytes - (long) payloadSize * rounds) / ((long) payloadSize * rounds),
+                    (double) payloadSize * rounds / seconds / (1 << 20));
+        }
+        System.out.println(reassembler);
+    }
+
+    /**
+     * Measure the CD to RP mapping with args[0] (default 500,000) rules of a
+     * synthetic load (/sports/league{n}/team{n}): the time to load and compile the mapping file, and ns
+     * per RP lookup compared with an InterestTable.
+     */
+    public static void CDRPMappingTest(String[] args) throws IOException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        File file = File.createTempFile("cdrp", ".txt");
+        file.deleteOnExit();
+        try (PrintWriter writer = new PrintWriter(file, "UTF-8")) {
+            writer.println("# synthetic CD to RP mapping");
+            for (int i = 0; i < count; i++) {
+                writer.printf("%s /RP%d%n", mappingPrefix(i), i % 16);
+            }
+        }
+        long start = System.nanoTime();
+        CDRPMapping mapping = CDRPMapping.load(file);
+        System.out.printf("Load: %s in %.1f ms%n", mapping, (System.nanoTime() - start) / 1e6);
+
+        InterestTable<ContentName> it = new InterestTable<>();
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            it.add(mappingPrefix(i), new ContentName("RP" + i % 16));
+        }
+        System.out.printf("InterestTable: %d entries in %.1f ms%n", it.size(), (System.nanoTime() - start) / 1e6);
+
+        ContentName[] CDs = new ContentName[4096];
+        Random rand = new Random(0);
+        for (int i = 0; i < CDs.length; i++) {
+            // half of the CDs have a prefix in the mapping
+            CDs[i] = new ContentName(mappingPrefix(rand.nextInt(count * 2)), "game" + i);
+        }
+        for (int table = 0; table < 2; table++) {
+            // InterestTable lookups take a lot longer
+            int rounds = table == 0 ? 1000000 : 2000;
+            int found = 0;
+            start = 0;
+            // first half warms up
+            for (int i = -rounds; i < rounds; i++) {
+                if (i == 0) {
+                    start = System.nanoTime();
+                }
+                ContentName CD = CDs[i & (CDs.length - 1)];
+                if ((table == 0 ? mapping.getValue(CD) : it.getValue(CD)) != null) {
+                    found++;
+                }
+            }
+            System.out.printf("%s: %.0f ns/lookup (%d found)%n", table == 0 ? "CDRPMapping" : "InterestTable",
+                    (double) (System.nanoTime() - start) / rounds, found);
+        }
+    }
+
+    private static ContentName mappingPrefix(int i) {
+        return new ContentName("sports", "league" + i % 50, "team" + i / 50);
+    }
+
+    private static ContentName syntheticCD(int i) {
+        return new ContentName("sports", "league" + i % 50, "team" + i / 50 % 400, "game" + i / 20000);
+    }
+
+    private static long usedMemory() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Compare the cost of args[0] (default 10000) idle faces served by a
+     * thread each and by an event loop: the time to start each 1000th of
+     * them, and the threads and heap they use. The faces are NetworkClients
+     * connected to a local port, as an OutLinkFace is to ccnd.
+     */
+    public static void FaceLoopTest(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        InetSocketAddress ccnd = new InetSocketAddress(InetAddress.getLoopbackAddress(), Utility.DEFAULT_CCN_PORT);
+        for (int mode = 0; mode < 2; mode++) {
+            EventLoop faces = mode == 0 ? null : new EventLoop(1, 0);
+            ArrayList<NetworkClient> clients = new ArrayList<>(count);
+            System.gc();
+            Runtime runtime = Runtime.getRuntime();
+            long heap = runtime.totalMemory() - runtime.freeMemory();
+            int threads = Thread.activeCount();
+            long start = System.nanoTime(), batchStart = start;
+            for (int i = 1; i <= count; i++) {
+                NetworkClient client = new NetworkClient(ccnd, faces) {
+
+                    @Override
+                    protected void handlePacket(DatagramPacket packet) {
+                    }
+                };
+                client.start();
+                clients.add(client);
+                if (i % 1000 == 0) {
+                    long now = System.nanoTime();
+                    System.out.printf("%s: faces %d-%d started in %.1f ms%n", mode == 0 ? "threads" : "event loop", i - 999, i, (now - batchStart) / 1e6);
+                    batchStart = now;
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            System.gc();
+            System.out.printf("%s: %d faces, %.1f us/link, %d threads, %d heap bytes/face%n", mode == 0 ? "threads" : "event loop", count,
+                    elapsed / 1e3 / count, Thread.activeCount() - threads, (runtime.totalMemory() - runtime.freeMemory() - heap) / count);
+            // stop all first, so that the threads finish together
+            for (NetworkClient client : clients) {
+                client.stop();
+            }
+            for (NetworkClient client : clients) {
+                client.close();
+            }
+            if (faces != null) {
+                faces.close();
+            }
+        }
+    }
+
+    /**
+     * Compare the processing of a multicast of args[0] (default 1000) bytes
+     * published to an RP on the same router: encapsulated, encoded, decoded
+     * and decapsulated as through NDN, and handed to the RP directly. Prints
+     * the p50 and p99 in ns per multicast, without the two UDP hops to NDN
+     * that the direct path also skips.
+     */
+    public static void LocalRPTest(String[] args) throws MalformedContentNameStringException, IOException {
+        int contentSize = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int rounds = 100000;
+        SplitPlanCache plans = new SplitPlanCache(new CDRPMapping(Collections.singletonMap(ContentName.ROOT,
+                ContentName.fromNative("/RP"))), 1024);
+        LinkedList<ContentName> CDs = new LinkedList<>();
+        CDs.add(ContentName.fromNative("/sports/football/team1"));
+        byte[] content = new byte[contentSize];
+        new Random().nextBytes(content);
+        ByteBuffer packet = ByteBuffer.wrap(new Multicast(CDs, content).encode());
+
+        int found = 0;
+        for (int direct = 0; direct < 2; direct++) {
+            long[] times = new long[rounds];
+            // first half warms up
+            for (int i = -rounds; i < rounds; i++) {
+                long start = System.nanoTime();
+                MulticastView multicast = new MulticastView(packet);
+                SplitPlan plan = plans.get(multicast.contentNames());
+                List<ContentName> forwarded;
+                if (direct == 1) {
+                    forwarded = plan.group(0);
+                } else {
+                    Interest encap = plan.encapsulateMulticast(0, multicast.content(), multicast.trailer(), true);
+                    Interest received = new Interest();
+                    received.decode(encap.encode());
+                    forwarded = MulticastView.decapsulate(received).contentNames();
+                }
+                found += forwarded.size();
+                if (i >= 0) {
+                    times[i] = System.nanoTime() - start;
+                }
+            }
+            Arrays.sort(times);
+            System.out.printf("%s: p50=%d ns, p99=%d ns%n", direct == 1 ? "direct" : "through NDN",
+                    times[rounds / 2], times[rounds * 99 / 100]);
+        }
+        System.out.printf("(%d CDs forwarded)%n", found);
+    }
+
+    public static void NativeFIBTest(String[] args) throws MalformedContentNameStringException, IOException {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int rounds = 100000;
+        SubscriptionTable<Integer> fib = new SubscriptionTable<>();
+        for (int i = 0; i < entries; i++) {
+            fib.add(ContentName.fromNative("/RP" + i), i);
+        }
+        LinkedList<ContentName> CDs = new LinkedList<>();
+        CDs.add(ContentName.fromNative("/sports/football/team1"));
+        byte[] content = new byte[1000];
+        new Random().nextBytes(content);
+        byte[] multicast = new Multicast(CDs, content).encode();
+        ByteBuffer[] packets = new ByteBuffer[16];
+        for (int i = 0; i < packets.length; i++) {
+            packets[i] = ByteBuffer.wrap(MulticastBatchView.encapsulate(ContentName.fromNative("/RP" + (i * 7919 % entries)), multicast, true).encode());
+        }
+
+        int found = 0;
+        long[] times = new long[rounds];
+        // first half warms up
+        for (int i = -rounds; i < rounds; i++) {
+            ByteBuffer packet = packets[(i + rounds) % packets.length];
+            long start = System.nanoTime();
+            ContentName prefix = PacketClassifier.encapsulationPrefix(packet);
+            if (prefix != null && fib.getMatch(prefix) != null) {
+                found++;
+            }
+            if (i >= 0) {
+                times[i] = System.nanoTime() - start;
+            }
+        }
+        Arrays.sort(times);
+        System.out.printf("%d FIB entries: p50=%d ns, p99=%d ns (%d of %d found)%n",
+                entries, times[rounds / 2], times[rounds * 99 / 100], found, rounds * 2);
+    }
+
+    public static void EgressQueueTest(String[] args) throws Exception {
+        int faces = 64, rounds = 20000;
+        final long slowDelay = 1000000;
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(4);
+        final AtomicLong sent = new AtomicLong();
+        byte[] packet = new byte[1000];
+        for (int queued = 0; queued < 2; queued++) {
+            EgressQueue[] queues = new EgressQueue[faces];
+            for (int f = 0; f < faces; f++) {
+                // face 0 is congested: each send blocks for 1 ms
+                final boolean slow = f == 0;
+                queues[f] = new EgressQueue(1024, 0, 65536, DropPolicy.TAIL_DROP, executor) {
+
+                    @Override
+                    protected void send(ByteBuffer packet) throws IOException {
+                        if (slow) {
+                            LockSupport.parkNanos(slowDelay);
+                        }
+                        sent.incrementAndGet();
+                    }
+                };
+            }
+            sent.set(0);
+            // synchronous sends stall on the slow face, a few rounds show it
+            int n = queued == 1 ? rounds : 100;
+            long start = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                for (EgressQueue q : queues) {
+                    if (queued == 1) {
+                        q.offer(ByteBuffer.wrap(packet), 0);
+                    } else {
+                        q.send(ByteBuffer.wrap(packet));
+                    }
+                }
+            }
+            long time = System.nanoTime() - start;
+            System.out.printf("%s: %.2f us per fan-out to %d faces (%d packets sent so far)%n",
+                    queued == 1 ? "queued" : "synchronous", time / 1e3 / n, faces, sent.get());
+            Thread.sleep(200);
+            if (queued == 1) {
+                System.out.println("slow face: " + queues[0]);
+                System.out.println("fast face: " + queues[1]);
+            }
+        }
+
+        // pacing and priority drops on one face
+        final LinkedList<Integer> received = new LinkedList<>();
+        EgressQueue paced = new EgressQueue(100, 1000000, 10000, DropPolicy.PRIORITY, executor) {
+
+            @Override
+            protected void send(ByteBuffer packet) throws IOException {
+                synchronized (received) {
+                    received.add((int) packet.get(0));
+                }
+            }
+        };
+        long start = System.nanoTime();
+        for (int i = 0; i < 1000; i++) {
+            byte[] p = new byte[1000];
+            p[0] = (byte) (i % 4);
+            paced.offer(ByteBuffer.wrap(p), i % 4);
+        }
+        while (paced.depth() > 0) {
+            Thread.sleep(1);
+        }
+        int[] counts = new int[4];
+        synchronized (received) {
+            for (int p : received) {
+                counts[p]++;
+            }
+        }
+        System.out.printf("paced at 1 MB/s: %d KB in %.1f ms, received by priority %s%n%s%n",
+                received.size(), (System.nanoTime() - start) / 1e6, Arrays.toString(counts), paced);
+        executor.shutdown();
+    }
+
+    public static void SendStageTest(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        final int count = 200000;
+        // sinks (faces) draining the datagrams so the socket buffers do not
+        // overflow
+        final DatagramChannel[] sinks = new DatagramChannel[8];
+        final InetSocketAddress[] targets = new InetSocketAddress[sinks.length];
+        final AtomicLong received = new AtomicLong();
+        for (int i = 0; i < sinks.length; i++) {
+            final DatagramChannel sink = DatagramChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+            sink.setOption(StandardSocketOptions.SO_RCVBUF, 4 << 20);
+            sinks[i] = sink;
+            targets[i] = (InetSocketAddress) sink.getLocalAddress();
+            Thread drain = new Thread() {
+
+                @Override
+                public void run() {
+                    ByteBuffer buf = ByteBuffer.allocateDirect(EventLoop.RECEIVE_BUFFER_SIZE);
+                    try {
+                        while (true) {
+                            buf.clear();
+                            sink.receive(buf);
+                            received.incrementAndGet();
+                        }
+                    } catch (IOException ex) {
+                        // closed
+                    }
+                }
+            };
+            drain.setDaemon(true);
+            drain.start();
+        }
+        final byte[] packet = new byte[200];
+        boolean reusePort = NetworkListener.isReusePortSupported();
+        int port = 0;
+        for (int mode = 0; mode < 3; mode++) {
+            if (mode == 2 && !reusePort) {
+                break;
+            }
+            int channelCount = mode == 2 ? threads : 1;
+            DatagramChannel[] channels = new DatagramChannel[channelCount];
+            for (int i = 0; i < channelCount; i++) {
+                channels[i] = NetworkListener.openDatagramChannel(port, reusePort);
+                port = ((InetSocketAddress) channels[i].getLocalAddress()).getPort();
+            }
+            final DatagramChannel shared = channels[0];
+            final SendStage stage = mode == 0 ? null : new SendStage(channels, 4096, 64);
+            Thread[] producers = new Thread[threads];
+            final long[] spent = new long[threads];
+            received.set(0);
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                final int index = t;
+                producers[t] = new Thread() {
+
+                    @Override
+                    public void run() {
+                        long begin = System.nanoTime();
+                        for (int i = 0; i < count; i++) {
+                            InetSocketAddress target = targets[i % targets.length];
+                            try {
+                                if (stage == null) {
+                                    shared.send(ByteBuffer.wrap(packet), target);
+                                } else {
+                                    while (!stage.send(packet, target)) {
+                                        Thread.yield();
+                                    }
+                                }
+                            } catch (IOException ex) {
+                                ex.printStackTrace();
+                            }
+                        }
+                        spent[index] = System.nanoTime() - begin;
+                    }
+                };
+                producers[t].start();
+            }
+            long producerTime = 0;
+            for (int t = 0; t < threads; t++) {
+                producers[t].join();
+                producerTime += spent[t];
+            }
+            Thread.sleep(500);
+            double total = (System.nanoTime() - start - 500000000L) / 1e6;
+            System.out.printf("%s: %d threads, %.0f ns per send on the forwarding thread, %.1f ms, %d of %d received%n",
+                    mode == 0 ? "shared socket" : mode == 1 ? "send stage, 1 socket" : "send stage, socket per sender",
+                    threads, (double) producerTime / threads / count, total, received.get(), threads * count);
+            if (stage != null) {
+                System.out.println(stage);
+                stage.close();
+            }
+            for (DatagramChannel channel : channels) {
+                channel.close();
+            }
+            port = 0;
+        }
+        for (DatagramChannel sink : sinks) {
+            sink.close();
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package copssd;
+
+import common.PooledBuffer;
+import common.RingQueue;
+import copss.protocol.COPSSProtocolDTags;
+import copss.protocol.PacketClassifier;
+import copssd.COPSSD.OutLinkFace;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.ccnx.ccn.impl.encoding.CCNProtocolDTags;
+
+/**
+ * Hands packets from the receive thread(s) of COPSSD to worker threads.
+ *
+ * Each worker has two bounded lock-free queues (lanes): control packets
+ * (Controls and encapsulated /RP/control Interests) and data (everything
+ * else). Packets are sharded by incoming face, so packets of a lane from one
+ * face are processed in order by the same worker. When a queue is full, the
+ * packet is dropped.
+ *
+ * A worker always serves the control lane first, so subscription changes do
+ * not wait behind a flood of multicasts. To keep a control flood from
+ * starving data, at most controlWeight control packets are served in a row
+ * while data is waiting.
+ *
+ * @author Jiachen Chen
+ */
+@SuppressWarnings("CallToThreadDumpStack")
+class PacketPipeline {
+
+    /**
+     * Number of empty polls before a worker parks.
+     */
+    private static final int SPIN_ITERATIONS = 100;
+    private static final int CONTROL = 0, DATA = 1;
+    private static final String[] LANE_NAMES = {"control", "data"};
+    private final COPSSD _copssd;
+    private final Worker[] _workers;
+    private final int _controlWeight;
+    private final AtomicLong[] _dropped = {new AtomicLong(), new AtomicLong()};
+    private volatile boolean _running = true;
+
+    /**
+     * Create and start the workers.
+     *
+     * @param copssd the router that processes the packets.
+     * @param workerCount number of worker threads.
+     * @param queueCapacity capacity of each queue of each worker.
+     * @param controlWeight the maximum number of control packets served in a
+     * row while data is waiting.
+     */
+    PacketPipeline(COPSSD copssd, int workerCount, int queueCapacity, int controlWeight) {
+        _copssd = copssd;
+        _controlWeight = Math.max(1, controlWeight);
+        _workers = new Worker[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            _workers[i] = new Worker(i, queueCapacity);
+        }
+        for (Worker w : _workers) {
+            w.start();
+        }
+    }
+
+    /**
+     * Queue a packet to the worker of the face.
+     *
+     * @param face the incoming face.
+     * @param content the packet, owned by the pipeline from now on.
+     * @param owner the pooled buffer holding the packet, released after
+     * processing or dropping, or null.
+     * @return false if the packet is dropped.
+     */
+    boolean dispatch(OutLinkFace face, ByteBuffer content, PooledBuffer owner) {
+        Worker w = _workers[face._index % _workers.length];
+        int lane = isControl(content) ? CONTROL : DATA;
+        if (!_running || !w._queues[lane].offer(new Task(face, content, owner, System.nanoTime()))) {
+            _dropped[lane].incrementAndGet();
+            if (owner != null) {
+                owner.release();
+            }
+            return false;
+        }
+        if (w._parked) {
+            LockSupport.unpark(w);
+        }
+        return true;
+    }
+
+    /**
+     * Process a packet on a worker.
+     *
+     * @param face the incoming face.
+     * @param content the packet.
+     * @param owner the pooled buffer holding the packet, or null.
+     */
+    void process(OutLinkFace face, ByteBuffer content, PooledBuffer owner) {
+        _copssd.processPacket(face, content, owner);
+    }
+
+    /**
+     * Check if a packet goes to the control lane.
+     *
+     * @param content the packet, from position to limit (not changed).
+     * @return if it is a Control or an encapsulated Control Interest.
+     */
+    private static boolean isControl(ByteBuffer content) {
+        switch (PacketClassifier.type(content)) {
+            case COPSSProtocolDTags.Control:
+                return true;
+            case CCNProtocolDTags.Interest:
+                return PacketClassifier.isEncapsulatedControl(content);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Stop the workers. Packets still queued are discarded (counted as
+     * dropped) and their buffers released.
+     */
+    void stop() {
+        _running = false;
+        for (Worker w : _workers) {
+            LockSupport.unpark(w);
+        }
+    }
+
+    int workerCount() {
+        return _workers.length;
+    }
+
+    long dropped() {
+        return _dropped[CONTROL].get() + _dropped[DATA].get();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("Pipeline: workers=");
+        builder.append(_workers.length);
+        builder.append(", control weight=");
+        builder.append(_controlWeight);
+        for (int lane = CONTROL; lane <= DATA; lane++) {
+            long served = 0, delay = 0, maxDelay = 0;
+            builder.append(String.format("%n\t\t%s: dropped=%d, queued=[", LANE_NAMES[lane], _dropped[lane].get()));
+            for (int i = 0; i < _workers.length; i++) {
+                Worker w = _workers[i];
+                if (i > 0) {
+                    builder.append(", ");
+                }
+                builder.append(w._queues[lane].size());
+                served += w._served[lane];
+                delay += w._delay[lane];
+                maxDelay = Math.max(maxDelay, w._maxDelay[lane]);
+            }
+            builder.append(String.format("], served=%d, queueing delay avg=%.1f us max=%.1f us",
+                    served, served == 0 ? 0 : delay / 1e3 / served, maxDelay / 1e3));
+        }
+        return builder.toString();
+    }
+
+    private static class Task {
+
+        private final OutLinkFace _face;
+        private final ByteBuffer _content;
+        private final PooledBuffer _owner;
+        private final long _queued;
+
+        Task(OutLinkFace face, ByteBuffer content, PooledBuffer owner, long queued) {
+            _face = face;
+            _content = content;
+            _owner = owner;
+            _queued = queued;
+        }
+    }
+
+    private class Worker extends Thread {
+
+        /**
+         * Queues by lane.
+         */
+        private final RingQueue<Task>[] _queues;
+        private volatile boolean _parked = false;
+        /**
+         * Control packets served in a row.
+         */
+        private int _controlRun = 0;
+        /**
+         * Statistics by lane, only written by the worker (read approximately
+         * by toString).
+         */
+        private final long[] _served = new long[2], _delay = new long[2], _maxDelay = new long[2];
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Worker(int index, int queueCapacity) {
+            super("COPSSD-Worker-" + index);
+            setDaemon(true);
+            _queues = new RingQueue[]{new RingQueue<Task>(queueCapacity), new RingQueue<Task>(queueCapacity)};
+        }
+
+        /**
+         * Take the next packet: control first, unless controlWeight control
+         * packets were served in a row and data is waiting.
+         *
+         * @return the packet, or null if both queues are empty.
+         */
+        private Task next() {
+            Task t = null;
+            if (_controlRun < _controlWeight || _queues[DATA].isEmpty()) {
+                t = _queues[CONTROL].poll();
+            }
+            if (t != null) {
+                _controlRun++;
+                record(CONTROL, t);
+                return t;
+            }
+            _controlRun = 0;
+            t = _queues[DATA].poll();
+            if (t == null) {
+                t = _queues[CONTROL].poll();
+                if (t != null) {
+                    record(CONTROL, t);
+                }
+                return t;
+            }
+            record(DATA, t);
+            return t;
+        }
+
+        private void record(int lane, Task t) {
+            long delay = System.nanoTime() - t._queued;
+            _served[lane]++;
+            _delay[lane] += delay;
+            if (delay > _maxDelay[lane]) {
+                _maxDelay[lane] = delay;
+            }
+        }
+
+        @Override
+        public void run() {
+            int idle = 0;
+            while (_running) {
+                Task t = next();
+                if (t == null) {
+                    if (idle++ < SPIN_ITERATIONS) {
+                        Thread.yield();
+                        continue;
+                    }
+                    _parked = true;
+                    if (_queues[CONTROL].isEmpty() && _queues[DATA].isEmpty() && _running) {
+                        LockSupport.park(this);
+                    }
+                    _parked = false;
+                    idle = 0;
+                    continue;
+                }
+                idle = 0;
+                try {
+                    process(t._face, t._content, t._owner);
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                }
+            }
+            for (int lane = CONTROL; lane <= DATA; lane++) {
+                for (Task t = _queues[lane].poll(); t != null; t = _queues[lane].poll()) {
+                    _dropped[lane].incrementAndGet();
+                    if (t._owner != null) {
+                        t._owner.release();
+                    }
+                }
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,248 @@
+package copssd;
+
+import copss.protocol.Control;
+import copss.protocol.Control.ControlType;
+import copss.protocol.SplitPlan;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.ccnx.ccn.protocol.ContentName;
+
+/**
+ * Coalesces the ST changes sent upstream to each RP.
+ *
+ * The net change of each RP is kept for a window: adding a CD that is
+ * pending removal (or the other way round) cancels both. The router only
+ * sends an add when the first face subscribes to a CD and a remove when the
+ * last one leaves, so the changes of a CD always alternate and cancelling
+ * them does not change the state upstream. One Control is sent per RP when
+ * its window expires or when it has limit pending CDs.
+ *
+ * All the Controls are sent by the timer thread, so the Controls to an RP
+ * leave in the order of their changes even when a window and a limit expire
+ * at the same time.
+ *
+ * @param <F> the face a Control is sent through.
+ * @author Jiachen Chen
+ */
+@SuppressWarnings("CallToThreadDumpStack")
+abstract class STChangeCoalescer<F> {
+
+    private final long _window;
+    private final int _limit;
+    /**
+     * Pending changes by RP.
+     */
+    private final HashMap<ContentName, Pending> _pending = new HashMap<>();
+    private final ScheduledThreadPoolExecutor _timer;
+    /**
+     * Set by close(), later changes are sent without coalescing.
+     */
+    private boolean _closed = false;
+    /**
+     * Controls that would be sent without coalescing, Controls sent, CDs
+     * cancelled.
+     */
+    private final AtomicLong _incoming = new AtomicLong(), _sent = new AtomicLong(), _cancelled = new AtomicLong();
+
+    /**
+     * Create a coalescer.
+     *
+     * @param window the time (ms) changes to an RP are kept before sent.
+     * @param limit the number of pending CDs of an RP that triggers sending
+     * before the window expires.
+     */
+    STChangeCoalescer(long window, int limit) {
+        _window = window;
+        _limit = limit;
+        _timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "STChangeCoalescer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Send a Control to an RP.
+     *
+     * @param controlPrefix /RPName/control.
+     * @param control the coalesced ST change.
+     * @param face the face of the latest change to the RP.
+     */
+    protected abstract void send(ContentName controlPrefix, Control control, F face);
+
+    /**
+     * Add an ST change.
+     *
+     * @param adds the plan of the CDs newly subscribed.
+     * @param removes the plan of the CDs nobody subscribes to any more.
+     * @param face the incoming face of the change.
+     */
+    void add(SplitPlan adds, SplitPlan removes, F face) {
+        ArrayList<Pending> direct = new ArrayList<>();
+        synchronized (_pending) {
+            HashMap<ContentName, Pending> touched = new HashMap<>();
+            for (int i = 0; i < adds.size(); i++) {
+                Pending p = pending(adds.rp(i), adds.controlPrefix(i), face, touched);
+                for (ContentName CD : adds.group(i)) {
+                    p.change(CD, true);
+                }
+            }
+            for (int i = 0; i < removes.size(); i++) {
+                Pending p = pending(removes.rp(i), removes.controlPrefix(i), face, touched);
+                for (ContentName CD : removes.group(i)) {
+                    p.change(CD, false);
+                }
+            }
+            _incoming.addAndGet(touched.size());
+            for (final Pending p : touched.values()) {
+                if (_closed) {
+                    direct.add(p);
+                } else if (p._changes.size() >= _limit) {
+                    // queued behind the Controls taken before, ahead of the
+                    // window of the next changes
+                    _pending.remove(p._rp);
+                    _timer.execute(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            p.send();
+                        }
+                    });
+                }
+            }
+        }
+        for (Pending p : direct) {
+            p.send();
+        }
+    }
+
+    private Pending pending(ContentName rp, ContentName controlPrefix, F face, HashMap<ContentName, Pending> touched) {
+        Pending p = _closed ? touched.get(rp) : _pending.get(rp);
+        if (p == null) {
+            p = new Pending(rp, controlPrefix);
+            if (!_closed) {
+                _pending.put(rp, p);
+                _timer.schedule(p, _window, TimeUnit.MILLISECONDS);
+            }
+        }
+        p._face = face;
+        touched.put(rp, p);
+        return p;
+    }
+
+    /**
+     * Send all the pending changes, after the Controls already queued, and
+     * stop the timer.
+     */
+    void close() {
+        final ArrayList<Pending> all;
+        synchronized (_pending) {
+            _closed = true;
+            all = new ArrayList<>(_pending.values());
+            _pending.clear();
+        }
+        Future<?> done = _timer.submit(new Runnable() {
+
+            @Override
+            public void run() {
+                for (Pending p : all) {
+                    p.send();
+                }
+            }
+        });
+        try {
+            done.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            ex.printStackTrace();
+        }
+        _timer.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        int size;
+        synchronized (_pending) {
+            size = _pending.size();
+        }
+        long incoming = _incoming.get(), sent = _sent.get();
+        return String.format("STChangeCoalescer: window=%dms, limit=%d, pending RPs=%d, incoming=%d, sent=%d, saved=%d, cancelled CDs=%d",
+                _window, _limit, size, incoming, sent, incoming - sent, _cancelled.get());
+    }
+
+    /**
+     * The net changes to an RP in a window.
+     */
+    private class Pending implements Runnable {
+
+        private final ContentName _rp, _controlPrefix;
+        /**
+         * CD -> true (add) or false (remove), in the order of changes.
+         */
+        private final LinkedHashMap<ContentName, Boolean> _changes = new LinkedHashMap<>();
+        private F _face;
+
+        Pending(ContentName rp, ContentName controlPrefix) {
+            _rp = rp;
+            _controlPrefix = controlPrefix;
+        }
+
+        void change(ContentName CD, boolean add) {
+            Boolean pending = _changes.get(CD);
+            if (pending != null && pending != add) {
+                _changes.remove(CD);
+                _cancelled.addAndGet(2);
+            } else {
+                _changes.put(CD, add);
+            }
+        }
+
+        /**
+         * The window expires.
+         */
+        @Override
+        public void run() {
+            synchronized (_pending) {
+                // already sent because of the limit
+                if (_pending.get(_rp) != this) {
+                    return;
+                }
+                _pending.remove(_rp);
+            }
+            send();
+        }
+
+        /**
+         * Send the changes, must be removed from _pending first.
+         */
+        void send() {
+            if (_changes.isEmpty()) {
+                return;
+            }
+            LinkedList<ContentName> adds = new LinkedList<>(), removes = new LinkedList<>();
+            for (Map.Entry<ContentName, Boolean> change : _changes.entrySet()) {
+                (change.getValue() ? adds : removes).add(change.getKey());
+            }
+            _sent.incrementAndGet();
+            try {
+                STChangeCoalescer.this.send(_controlPrefix, new Control(ControlType.STChange, adds, removes, 0, 0), _face);
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,642 @@
+package simplecopssclient;
+
+import common.EventLoop;
+import common.NetworkListener;
+import copss.protocol.COPSSProtocolDTags;
+import copss.protocol.Control;
+import copss.protocol.FragmentReassembler;
+import copss.protocol.Multicast;
+import copss.protocol.MulticastBatchView;
+import copss.protocol.MulticastView;
+import copss.protocol.PacketClassifier;
+import copss.util.SubscriptionTable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.ccnx.ccn.impl.InterestTable.Entry;
+import org.ccnx.ccn.io.content.ContentDecodingException;
+import org.ccnx.ccn.protocol.ContentName;
+
+/**
+ * An embeddable, non-blocking COPSS client.
+ *
+ * Publishing returns a Future, the packets are encoded and sent in order by a
+ * sender thread. Each subscription to a CD is a Flow.Publisher of the
+ * Multicasts whose CDs it is a prefix of. The receive thread only decodes the
+ * packets and queues the messages to the matching subscribers; the
+ * subscribers are called on a small dispatch executor, as they request
+ * messages. A subscriber that does not keep up loses the messages that
+ * overflow its queue, like a slow receiver of the datagrams would.
+ *
+ * One client is meant to serve all the components of a process (see
+ * acquire), so that they share one socket and one subscription at the
+ * router: the first subscription to a CD subscribes to it at the router, and
+ * the last one cancelled unsubscribes from it. Messages are dispatched to
+ * the subscriptions through a prefix trie (SubscriptionTable), and all the
+ * subscribers of a message receive the same Multicast, decoded once. Its
+ * content must not be changed.
+ *
+ * @author Jiachen Chen
+ */
+public class AsyncCOPSSClient extends NetworkListener {
+
+    /**
+     * Default number of messages queued for a subscriber.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 1024;
+    /**
+     * Default number of dispatch threads of a shared client.
+     */
+    public static final int DEFAULT_DISPATCH_THREADS = 2;
+    /**
+     * Shared clients by router, see acquire().
+     */
+    private static final HashMap<InetSocketAddress, AsyncCOPSSClient> SHARED = new HashMap<>();
+    private final InetSocketAddress _router;
+    private final ExecutorService _sender, _dispatcher;
+    private volatile boolean _compactFormat;
+    private volatile int _fragmentSize = 0;
+    private final Random _random = new Random();
+    private volatile FragmentReassembler _reassembler = new FragmentReassembler(16 << 20, 5000);
+    private boolean _closed = false;
+    /**
+     * Number of acquire() not released, guarded by SHARED.
+     */
+    private int _users = 0;
+    /**
+     * Subscriptions by CD.
+     */
+    private final SubscriptionTable<CDSubscription> _subscriptions = new SubscriptionTable<>();
+    /**
+     * Number of subscriptions of each CD subscribed at the router.
+     */
+    private final HashMap<ContentName, Integer> _subscribedCDs = new HashMap<>();
+    private final AtomicLong _published = new AtomicLong(), _received = new AtomicLong(),
+            _delivered = new AtomicLong(), _dropped = new AtomicLong(), _unmatched = new AtomicLong();
+
+    /**
+     * Create a client with a receive thread of its own.
+     *
+     * @param listenPort the port to listen to.
+     * @param router the address of the COPSS router.
+     * @param dispatchThreads the number of threads calling the subscribers.
+     * @throws SocketException cannot bind the port.
+     */
+    public AsyncCOPSSClient(int listenPort, InetSocketAddress router, int dispatchThreads) throws SocketException {
+        super(listenPort);
+        _router = router;
+        _sender = Executors.newSingleThreadExecutor(daemonThreads("AsyncCOPSSClient send"));
+        _dispatcher = Executors.newFixedThreadPool(dispatchThreads, daemonThreads("AsyncCOPSSClient dispatch"));
+    }
+
+    /**
+     * Create a client served by an event loop.
+     *
+     * @param listenPort the port to listen to.
+     * @param router the address of the COPSS router.
+     * @param dispatchThreads the number of threads calling the subscribers.
+     * @param eventLoop the event loop receiving the packets.
+     * @throws IOException cannot bind the port.
+     */
+    public AsyncCOPSSClient(int listenPort, InetSocketAddress router, int dispatchThreads, EventLoop eventLoop) throws IOException {
+        super(listenPort, eventLoop);
+        _router = router;
+        _sender = Executors.newSingleThreadExecutor(daemonThreads("AsyncCOPSSClient send"));
+        _dispatcher = Executors.newFixedThreadPool(dispatchThreads, daemonThreads("AsyncCOPSSClient dispatch"));
+    }
+
+    /**
+     * Get the client of the process connected to a router, creating and
+     * starting it on a free port if it does not exist. Each call must be
+     * paired with a release().
+     *
+     * @param router the address of the COPSS router.
+     * @return the shared client.
+     * @throws Exception cannot create or start the client.
+     */
+    public static AsyncCOPSSClient acquire(InetSocketAddress router) throws Exception {
+        synchronized (SHARED) {
+            AsyncCOPSSClient client = SHARED.get(router);
+            if (client == null) {
+                client = new AsyncCOPSSClient(0, router, DEFAULT_DISPATCH_THREADS);
+                client.start();
+                SHARED.put(router, client);
+            }
+            client._users++;
+            return client;
+        }
+    }
+
+    /**
+     * Release a client got from acquire(). The client is stopped when its
+     * last user releases it. The subscriptions of the user should be
+     * cancelled first.
+     */
+    public void release() {
+        synchronized (SHARED) {
+            if (SHARED.get(_router) != this || --_users > 0) {
+                return;
+            }
+            SHARED.remove(_router);
+        }
+        stop();
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Send packets in the compact format or in ccnb (default). Only use the
+     * compact format if the COPSS router understands it.
+     *
+     * @param compactFormat if packets are sent in the compact format.
+     */
+    public void setCompactFormat(boolean compactFormat) {
+        _compactFormat = compactFormat;
+    }
+
+    /**
+     * Publish payloads larger than fragmentSize as fragments (see
+     * Multicast.fragment), reassembled by the subscribers.
+     *
+     * @param fragmentSize the maximum content size of a packet, 0 (default)
+     * for no fragmentation.
+     */
+    public void setFragmentation(int fragmentSize) {
+        _fragmentSize = fragmentSize;
+    }
+
+    /**
+     * Bound the memory and time used to reassemble the fragmented payloads
+     * received. The fragments kept so far are dropped.
+     *
+     * @param maxBytes the maximum size of the fragments kept.
+     * @param timeout the time (ms) a payload may take to arrive.
+     */
+    public void setReassembly(int maxBytes, long timeout) {
+        _reassembler = new FragmentReassembler(maxBytes, timeout);
+    }
+
+    /**
+     * Publish a message. The content is not copied and must not be changed
+     * until the Future is done.
+     *
+     * @param content the content.
+     * @param CDs the CDs of the message.
+     * @return done when the message is sent, or failed with the IOException
+     * of the send, or with a RejectedExecutionException if the client is
+     * stopped.
+     */
+    public Future<Void> publish(final byte[] content, ContentName... CDs) {
+        final LinkedList<ContentName> cds = new LinkedList<>(Arrays.asList(CDs));
+        Callable<Void> task = new Callable<Void>() {
+
+            @Override
+            public Void call() throws Exception {
+                Multicast multicast = new Multicast(cds, content);
+                for (Multicast fragment : multicast.fragment(_fragmentSize, _random.nextLong())) {
+                    if (_compactFormat) {
+                        ByteBuffer buf = ByteBuffer.allocate(fragment.encodedSize());
+                        fragment.encodeTo(buf);
+                        send(_router, buf.array());
+                    } else {
+                        send(_router, fragment.encode());
+                    }
+                }
+                _published.incrementAndGet();
+                return null;
+            }
+        };
+        try {
+            return _sender.submit(task);
+        } catch (final RejectedExecutionException ex) {
+            FutureTask<Void> failed = new FutureTask<>(new Callable<Void>() {
+
+                @Override
+                public Void call() throws Exception {
+                    throw ex;
+                }
+            });
+            failed.run();
+            return failed;
+        }
+    }
+
+    /**
+     * Get the stream of the messages published to CD (or to the CDs under
+     * it). Each subscriber of the stream is a subscription of its own, with a
+     * queue of bufferSize messages.
+     *
+     * @param CD the CD.
+     * @param bufferSize the maximum number of messages queued for a
+     * subscriber that has not requested them.
+     * @return the stream.
+     */
+    public Flow.Publisher<Multicast> stream(final ContentName CD, final int bufferSize) {
+        return new Flow.Publisher<Multicast>() {
+
+            @Override
+            public void subscribe(Flow.Subscriber<? super Multicast> subscriber) {
+                CDSubscription subscription = new CDSubscription(CD, subscriber, bufferSize);
+                subscriber.onSubscribe(subscription);
+                add(subscription);
+            }
+        };
+    }
+
+    /**
+     * Subscribe to CD, with a handler called for every message, without
+     * limiting demand.
+     *
+     * @param CD the CD.
+     * @param handler the handler, called on the dispatch executor, one
+     * message at a time.
+     * @return the subscription, cancel it to unsubscribe.
+     */
+    public Flow.Subscription subscribe(ContentName CD, final Handler handler) {
+        final Flow.Subscription[] ret = new Flow.Subscription[1];
+        stream(CD, DEFAULT_BUFFER_SIZE).subscribe(new Flow.Subscriber<Multicast>() {
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                ret[0] = subscription;
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(Multicast item) {
+                handler.handle(item);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                Logger.getLogger(AsyncCOPSSClient.class.getName()).log(Level.SEVERE, "Error in handler", throwable);
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+        return ret[0];
+    }
+
+    /**
+     * Register a subscription after its onSubscribe. A subscription cancelled
+     * (or completed by request(n &lt;= 0)) in onSubscribe is not registered,
+     * since its remove has already been called.
+     */
+    private void add(CDSubscription subscription) {
+        synchronized (_subscribedCDs) {
+            if (subscription.isDone()) {
+                return;
+            }
+            if (_closed) {
+                subscription.complete();
+                return;
+            }
+            _subscriptions.add(subscription._CD, subscription);
+            Integer count = _subscribedCDs.get(subscription._CD);
+            _subscribedCDs.put(subscription._CD, count == null ? 1 : count + 1);
+            if (count == null) {
+                sendSTChange(subscription._CD, true);
+            }
+        }
+    }
+
+    private void remove(CDSubscription subscription) {
+        synchronized (_subscribedCDs) {
+            if (_subscriptions.remove(subscription._CD, subscription) == null) {
+                return;
+            }
+            int count = _subscribedCDs.get(subscription._CD);
+            if (count > 1) {
+                _subscribedCDs.put(subscription._CD, count - 1);
+            } else {
+                _subscribedCDs.remove(subscription._CD);
+                sendSTChange(subscription._CD, false);
+            }
+        }
+    }
+
+    /**
+     * Queue an ST change to the router, in the order of the calls. Dropped if
+     * the client is stopped (e.g. a subscription cancelled while stopping).
+     */
+    private void sendSTChange(ContentName CD, boolean add) {
+        LinkedList<ContentName> adds = new LinkedList<>(), removes = new LinkedList<>();
+        (add ? adds : removes).add(CD);
+        final Control ctrl = new Control(Control.ControlType.STChange, adds, removes, 0, -1);
+        Runnable task = new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    if (_compactFormat) {
+                        ByteBuffer buf = ByteBuffer.allocate(ctrl.encodedSize());
+                        ctrl.encodeTo(buf);
+                        send(_router, buf.array());
+                    } else {
+                        send(_router, ctrl.encode());
+                    }
+                } catch (IOException ex) {
+                    Logger.getLogger(AsyncCOPSSClient.class.getName()).log(Level.SEVERE, "Error in sending ST change", ex);
+                }
+            }
+        };
+        try {
+            _sender.execute(task);
+        } catch (RejectedExecutionException ex) {
+            Logger.getLogger(AsyncCOPSSClient.class.getName()).log(Level.FINE, "Client stopped, ST change of {0} dropped", CD);
+        }
+    }
+
+    /**
+     * Unsubscribe from all the CDs, complete all the subscriptions and stop
+     * the client. The messages not delivered yet are dropped.
+     */
+    @Override
+    public void stop() {
+        List<Entry<CDSubscription>> subscriptions;
+        synchronized (_subscribedCDs) {
+            _closed = true;
+            subscriptions = _subscriptions.values();
+        }
+        for (Entry<CDSubscription> subscription : subscriptions) {
+            remove(subscription.value());
+            subscription.value().complete();
+        }
+        _sender.shutdown();
+        try {
+            _sender.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        super.stop();
+        _dispatcher.shutdown();
+    }
+
+    /**
+     * Decode the messages of a packet, copying only the contents of the ones
+     * subscribed to. Called by the receive thread only.
+     */
+    @Override
+    protected void handlePacket(DatagramPacket packet) {
+        ByteBuffer buf = ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength()).slice();
+        try {
+            switch (PacketClassifier.type(buf)) {
+                case COPSSProtocolDTags.Multicast:
+                    handleMulticast(new MulticastView(buf));
+                    break;
+                case COPSSProtocolDTags.MulticastBatch:
+                    MulticastBatchView batch = new MulticastBatchView(buf);
+                    for (int i = 0; i < batch.size(); i++) {
+                        handleMulticast(batch.message(i));
+                    }
+                    break;
+                default:
+                    Logger.getLogger(AsyncCOPSSClient.class.getName()).log(Level.WARNING, "Invalid packet type: {0}. Ignore.", PacketClassifier.type(buf));
+            }
+        } catch (Exception ex) {
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "Error in packet handling", ex);
+        }
+    }
+
+    private void handleMulticast(MulticastView view) throws ContentDecodingException {
+        SubscriptionTable<CDSubscription>.Snapshot subscriptions = _subscriptions.snapshot();
+        // fragments are kept even if nobody subscribes now, the payload may be
+        // subscribed to when it completes.
+        if (!view.isFragment() && !matches(subscriptions, view.contentNames())) {
+            _unmatched.incrementAndGet();
+            return;
+        }
+        Multicast multicast = _reassembler.add(view.toMulticast());
+        if (multicast == null) {
+            return;
+        }
+        Dispatch dispatch = new Dispatch(multicast, _received.incrementAndGet());
+        for (ContentName CD : multicast.contentNames()) {
+            subscriptions.visitValues(CD, dispatch);
+        }
+    }
+
+    private static boolean matches(SubscriptionTable<CDSubscription>.Snapshot subscriptions, List<ContentName> CDs) {
+        for (ContentName CD : CDs) {
+            if (subscriptions.getMatch(CD) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("AsyncCOPSSClient: subscriptions=%d, CDs=%d, published=%d, received=%d, unmatched=%d, delivered=%d, dropped=%d",
+                _subscriptions.size(), _subscribedCDs.size(), _published.get(), _received.get(), _unmatched.get(), _delivered.get(), _dropped.get());
+    }
+
+    /**
+     * Receives the messages of a subscription.
+     */
+    public interface Handler {
+
+        void handle(Multicast multicast);
+    }
+
+    /**
+     * Offers a message to the subscriptions matching its CDs, once to each
+     * subscription even if it matches several CDs.
+     */
+    private static class Dispatch implements SubscriptionTable.Visitor<CDSubscription> {
+
+        private final Multicast _multicast;
+        private final long _sequence;
+
+        Dispatch(Multicast multicast, long sequence) {
+            _multicast = multicast;
+            _sequence = sequence;
+        }
+
+        @Override
+        public void visit(CDSubscription subscription) {
+            if (subscription._lastSequence != _sequence) {
+                subscription._lastSequence = _sequence;
+                subscription.offer(_multicast);
+            }
+        }
+    }
+
+    /**
+     * A subscriber of a CD: the messages queued for it, and the number it has
+     * requested. The messages are delivered by one task on the dispatch
+     * executor at a time, so the subscriber is never called concurrently.
+     */
+    private class CDSubscription implements Flow.Subscription, Runnable {
+
+        private final ContentName _CD;
+        private final Flow.Subscriber<? super Multicast> _subscriber;
+        private final int _bufferSize;
+        private final ArrayDeque<Multicast> _queue = new ArrayDeque<>();
+        private long _demand = 0;
+        private boolean _scheduled = false, _cancelled = false, _completed = false;
+        private Throwable _error;
+        /**
+         * The last message offered, written by the receive thread only.
+         */
+        private long _lastSequence = 0;
+
+        CDSubscription(ContentName CD, Flow.Subscriber<? super Multicast> subscriber, int bufferSize) {
+            _CD = CD;
+            _subscriber = subscriber;
+            _bufferSize = bufferSize;
+        }
+
+        /**
+         * Queue a message, called by the receive thread.
+         */
+        synchronized void offer(Multicast multicast) {
+            if (_cancelled || _completed) {
+                return;
+            }
+            if (_queue.size() >= _bufferSize) {
+                _dropped.incrementAndGet();
+                return;
+            }
+            _queue.addLast(multicast);
+            schedule();
+        }
+
+        /**
+         * Check if the subscription is cancelled or completing.
+         */
+        synchronized boolean isDone() {
+            return _cancelled || _completed;
+        }
+
+        /**
+         * Signal onComplete after the messages already requested.
+         */
+        synchronized void complete() {
+            _completed = true;
+            schedule();
+        }
+
+        @Override
+        public void request(long n) {
+            synchronized (this) {
+                if (n <= 0) {
+                    _error = new IllegalArgumentException("Non-positive request: " + n);
+                    _completed = true;
+                } else {
+                    _demand = _demand + n < 0 ? Long.MAX_VALUE : _demand + n;
+                }
+                schedule();
+            }
+            if (n <= 0) {
+                remove(this);
+            }
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                _cancelled = true;
+                _queue.clear();
+            }
+            remove(this);
+        }
+
+        /**
+         * Start a delivery task if there is something to deliver, called with
+         * the lock held.
+         */
+        private void schedule() {
+            if (_scheduled || _cancelled || (!_completed && (_queue.isEmpty() || _demand == 0))) {
+                return;
+            }
+            _scheduled = true;
+            try {
+                _dispatcher.execute(this);
+            } catch (RuntimeException ex) {
+                // the client is stopped
+                _scheduled = false;
+                _cancelled = true;
+            }
+        }
+
+        /**
+         * Deliver the requested messages, then the completion.
+         */
+        @Override
+        public void run() {
+            while (true) {
+                Multicast next;
+                synchronized (this) {
+                    if (_cancelled) {
+                        _scheduled = false;
+                        return;
+                    }
+                    if (_queue.isEmpty() || _demand == 0 || _error != null) {
+                        if (!_completed) {
+                            _scheduled = false;
+                            return;
+                        }
+                        _dropped.addAndGet(_queue.size());
+                        _queue.clear();
+                        _cancelled = true;
+                        break;
+                    }
+                    next = _queue.pollFirst();
+                    if (_demand != Long.MAX_VALUE) {
+                        _demand--;
+                    }
+                }
+                try {
+                    _subscriber.onNext(next);
+                    _delivered.incrementAndGet();
+                } catch (Throwable ex) {
+                    // a subscriber that throws is cancelled
+                    cancel();
+                    Logger.getLogger(AsyncCOPSSClient.class.getName()).log(Level.SEVERE, "Error in subscriber, cancelled", ex);
+                    return;
+                }
+            }
+            try {
+                if (_error != null) {
+                    _subscriber.onError(_error);
+                } else {
+                    _subscriber.onComplete();
+                }
+            } catch (Throwable ex) {
+                Logger.getLogger(AsyncCOPSSClient.class.getName()).log(Level.SEVERE, "Error in subscriber", ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package simplecopssclient;
+
+/**
+ * Interfaces of demand-driven streams, with the same methods and contract as
+ * java.util.concurrent.Flow (Reactive Streams), which is not available on
+ * Java 7.
+ *
+ * A Subscriber receives nothing until it requests items through its
+ * Subscription; onSubscribe, onNext, onError and onComplete of a Subscriber
+ * are never called concurrently.
+ *
+ * @author Jiachen Chen
+ */
+public final class Flow {
+
+    private Flow() {
+    }
+
+    /**
+     * A source of items sent to the Subscribers as they request them.
+     *
+     * @param <T> type of the items.
+     */
+    public interface Publisher<T> {
+
+        /**
+         * Add a subscriber. Its onSubscribe is called with a new Subscription.
+         *
+         * @param subscriber the subscriber.
+         */
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    /**
+     * A receiver of items.
+     *
+     * @param <T> type of the items.
+     */
+    public interface Subscriber<T> {
+
+        void onSubscribe(Subscription subscription);
+
+        void onNext(T item);
+
+        void onError(Throwable throwable);
+
+        void onComplete();
+    }
+
+    /**
+     * The link between a Publisher and one of its Subscribers.
+     */
+    public interface Subscription {
+
+        /**
+         * Allow n more items to be sent to the subscriber. Long.MAX_VALUE
+         * means no limit.
+         *
+         * @param n the number of items, must be positive.
+         */
+        void request(long n);
+
+        /**
+         * Stop sending items to the subscriber.
+         */
+        void cancel();
+    }
+}
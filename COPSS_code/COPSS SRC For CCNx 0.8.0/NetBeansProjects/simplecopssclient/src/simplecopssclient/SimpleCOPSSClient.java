@@ -2,8 +2,12 @@ package simplecopssclient;
 
 import common.NetworkListener;
 import copss.protocol.COPSSProtocolDTags;
+import copss.protocol.CompactFormat;
 import copss.protocol.Control;
+import copss.protocol.FragmentReassembler;
 import copss.protocol.Multicast;
+import copss.protocol.MulticastBatch;
+import copss.protocol.PacketClassifier;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
@@ -12,8 +16,15 @@ import java.io.UnsupportedEncodingException;
 import java.net.DatagramPacket;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.ccnx.ccn.impl.encoding.XMLCodecFactory;
@@ -25,6 +36,55 @@ import org.ccnx.ccn.protocol.MalformedContentNameStringException;
 public class SimpleCOPSSClient extends NetworkListener {
 
     public static final InetSocketAddress COPSS_ADDRESS = new InetSocketAddress(STR_LOCALHOST, 9696);
+    /**
+     * System property: send packets in the compact format (see
+     * CompactFormat) instead of ccnb. Received packets are accepted in both.
+     */
+    public static final String PROP_COMPACT_FORMAT = "simplecopssclient.compactFormat";
+    /**
+     * System property: maximum size (bytes) of a packet packing published
+     * messages (e.g. 1400 to fit the MTU). 0 (default) sends each message in
+     * its own packet.
+     */
+    public static final String PROP_BATCH_SIZE = "simplecopssclient.batchSize";
+    /**
+     * System property: time (ms) a published message waits for others to
+     * fill its batch, default 5. 0 means only sent when the batch is full or
+     * on flush().
+     */
+    public static final String PROP_BATCH_LINGER = "simplecopssclient.batchLinger";
+    /**
+     * System property: maximum content size (bytes) of a published packet,
+     * larger payloads are sent as fragments. Default 0, no fragmentation:
+     * routers and subscribers without fragment support drop fragments. 4096
+     * fits in a datagram and in an encapsulating Interest.
+     */
+    public static final String PROP_FRAGMENT_SIZE = "simplecopssclient.fragmentSize";
+    /**
+     * System property: maximum size (bytes) of the fragments kept for
+     * reassembly, default 16 MB.
+     */
+    public static final String PROP_REASSEMBLY_MEMORY = "simplecopssclient.reassemblyMemory";
+    /**
+     * System property: time (ms) a fragmented payload may take to arrive,
+     * default 5000.
+     */
+    public static final String PROP_REASSEMBLY_TIMEOUT = "simplecopssclient.reassemblyTimeout";
+    private boolean _compactFormat;
+    private int _fragmentSize = 0;
+    private final Random _random = new Random();
+    private FragmentReassembler _reassembler = new FragmentReassembler(16 << 20, 5000);
+    private int _batchSize;
+    private long _batchLinger;
+    /**
+     * Encoded messages waiting to be sent, all in the format of
+     * _batchCompact.
+     */
+    private final ArrayList<ByteBuffer> _batch = new ArrayList<>();
+    private int _batchLength;
+    private boolean _batchCompact;
+    private ScheduledThreadPoolExecutor _batchTimer;
+    private ScheduledFuture<?> _batchFlush;
 
     public static void main(String[] args) {
         if (args.length == 0) {
@@ -35,6 +95,10 @@ public class SimpleCOPSSClient extends NetworkListener {
         SimpleCOPSSClient client;
         try {
             client = new SimpleCOPSSClient(port);
+            client.setCompactFormat(Boolean.getBoolean(PROP_COMPACT_FORMAT));
+            client.setFragmentation(Integer.getInteger(PROP_FRAGMENT_SIZE, 0));
+            client.setReassembly(Integer.getInteger(PROP_REASSEMBLY_MEMORY, 16 << 20), Long.getLong(PROP_REASSEMBLY_TIMEOUT, 5000));
+            client.setBatching(Integer.getInteger(PROP_BATCH_SIZE, 0), Long.getLong(PROP_BATCH_LINGER, 5));
             client.start();
         } catch (Exception ex) {
             ex.printStackTrace(System.out);
@@ -181,9 +245,78 @@ public class SimpleCOPSSClient extends NetworkListener {
         super(listenPort);
     }
 
+    /**
+     * Send packets in the compact format or in ccnb (default). Only use the
+     * compact format if the COPSS router understands it.
+     *
+     * @param compactFormat if packets are sent in the compact format.
+     */
+    public void setCompactFormat(boolean compactFormat) {
+        _compactFormat = compactFormat;
+    }
+
+    /**
+     * Publish payloads larger than fragmentSize as fragments (see
+     * Multicast.fragment), reassembled by the subscribers.
+     *
+     * @param fragmentSize the maximum content size of a packet, 0 (default)
+     * for no fragmentation.
+     */
+    public void setFragmentation(int fragmentSize) {
+        _fragmentSize = fragmentSize;
+    }
+
+    /**
+     * Bound the memory and time used to reassemble the fragmented payloads
+     * received. The fragments kept so far are dropped.
+     *
+     * @param maxBytes the maximum size of the fragments kept.
+     * @param timeout the time (ms) a payload may take to arrive.
+     */
+    public void setReassembly(int maxBytes, long timeout) {
+        _reassembler = new FragmentReassembler(maxBytes, timeout);
+    }
+
+    /**
+     * Pack published messages into batches (see MulticastBatch) of up to
+     * size bytes. A batch is sent when the next message does not fit, when
+     * its first message has waited for linger ms, or on flush(). Messages
+     * larger than a batch are sent alone. Pending messages are sent first.
+     *
+     * @param size the maximum size of a batch, 0 to send each message in its
+     * own packet.
+     * @param linger the maximum time (ms) a message waits, 0 to wait until
+     * the batch is full.
+     * @throws IOException
+     */
+    public void setBatching(int size, long linger) throws IOException {
+        synchronized (_batch) {
+            flush();
+            _batchSize = size;
+            _batchLinger = linger;
+            if (size > 0 && linger > 0 && _batchTimer == null) {
+                _batchTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "SimpleCOPSSClient batch");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+        }
+    }
+
     public void Subscribe(LinkedList<ContentName> cdsAdd, LinkedList<ContentName> cdsRemove) throws IOException {
         Control ctrl = new Control(Control.ControlType.STChange, cdsAdd, cdsRemove, 0, -1);
-        send(ctrl.encode());
+        if (_compactFormat) {
+            ByteBuffer buf = ByteBuffer.allocate(ctrl.encodedSize());
+            ctrl.encodeTo(buf);
+            send(buf.array());
+        } else {
+            send(ctrl.encode());
+        }
     }
 
     public void Publish(String message, ContentName[] CDs) throws IOException {
@@ -191,8 +324,88 @@ public class SimpleCOPSSClient extends NetworkListener {
         cds.addAll(Arrays.asList(CDs));
 
         Multicast multicast = new Multicast(cds, message.getBytes("UTF8"));
+        for (Multicast fragment : multicast.fragment(_fragmentSize, _random.nextLong())) {
+            publish(fragment);
+        }
+    }
 
-        send(multicast.encode());
+    private void publish(Multicast multicast) throws IOException {
+        byte[] packet;
+        if (_compactFormat) {
+            ByteBuffer buf = ByteBuffer.allocate(multicast.encodedSize());
+            multicast.encodeTo(buf);
+            packet = buf.array();
+        } else {
+            packet = multicast.encode();
+        }
+        synchronized (_batch) {
+            if (_batchSize <= 0) {
+                send(packet);
+                return;
+            }
+            if (!_batch.isEmpty() && (_batchCompact != _compactFormat
+                    || MulticastBatch.packedSize(_batch.size() + 1, _batchLength + packet.length, _compactFormat) > _batchSize)) {
+                flush();
+            }
+            if (MulticastBatch.packedSize(1, packet.length, _compactFormat) > _batchSize) {
+                send(packet);
+                return;
+            }
+            _batch.add(ByteBuffer.wrap(packet));
+            _batchLength += packet.length;
+            _batchCompact = _compactFormat;
+            if (_batch.size() == 1 && _batchLinger > 0 && _batchTimer != null) {
+                _batchFlush = _batchTimer.schedule(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            flush();
+                        } catch (IOException ex) {
+                            Logger.getLogger(SimpleCOPSSClient.class.getName()).log(Level.SEVERE, "Error in sending batch", ex);
+                        }
+                    }
+                }, _batchLinger, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Send the messages waiting in the batch, as a Multicast if there is only
+     * one.
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        synchronized (_batch) {
+            if (_batchFlush != null) {
+                _batchFlush.cancel(false);
+                _batchFlush = null;
+            }
+            if (_batch.isEmpty()) {
+                return;
+            }
+            byte[] packet = _batch.size() == 1 ? _batch.get(0).array() : MulticastBatch.pack(_batch, _batchCompact);
+            _batch.clear();
+            _batchLength = 0;
+            send(packet);
+        }
+    }
+
+    /**
+     * Send the pending messages and stop the client.
+     */
+    @Override
+    public void stop() {
+        try {
+            flush();
+        } catch (IOException ex) {
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "Error in sending batch", ex);
+        }
+        if (_batchTimer != null) {
+            _batchTimer.shutdownNow();
+        }
+        super.stop();
     }
 
     protected void send(byte[] buf) throws IOException {
@@ -211,6 +424,26 @@ public class SimpleCOPSSClient extends NetworkListener {
         byte[] content = new byte[packet.getLength()];
         System.arraycopy(packet.getData(), 0, content, 0, content.length);
 
+        ByteBuffer buf = ByteBuffer.wrap(content);
+        if (CompactFormat.isCompact(buf)) {
+            try {
+                if (PacketClassifier.type(buf) == COPSSProtocolDTags.MulticastBatch) {
+                    MulticastBatch batch = new MulticastBatch();
+                    batch.decodeFrom(buf);
+                    for (Multicast m : batch.multicasts()) {
+                        HandleMulticast(m);
+                    }
+                    return;
+                }
+                Multicast m = new Multicast();
+                m.decodeFrom(buf);
+                HandleMulticast(m);
+            } catch (Exception ex) {
+                Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "Error in packet handling", ex);
+            }
+            return;
+        }
+
         try (ByteArrayInputStream bais = new ByteArrayInputStream(content)) {
 //        	System.out.println("INSIDE TRY");
             XMLDecoder decoder = XMLCodecFactory.getDecoder();
@@ -223,6 +456,13 @@ public class SimpleCOPSSClient extends NetworkListener {
                     m.decode(decoder);
                     HandleMulticast(m);
                     break;
+                case COPSSProtocolDTags.MulticastBatch:
+                    MulticastBatch batch = new MulticastBatch();
+                    batch.decode(decoder);
+                    for (Multicast multicast : batch.multicasts()) {
+                        HandleMulticast(multicast);
+                    }
+                    break;
                 default:
                     System.out.printf("Invalid packet type: %d. Ignore.%n", type);
 //                    throw new Exception("Illegal packet type");
@@ -235,6 +475,10 @@ public class SimpleCOPSSClient extends NetworkListener {
     }
 
     private void HandleMulticast(Multicast multicast) {
+        multicast = _reassembler.add(multicast);
+        if (multicast == null) {
+            return;
+        }
         ContentName[] CDs = new ContentName[multicast.contentNames().size()];
         multicast.contentNames().toArray(CDs);
         byte[] content = multicast.content();